@@ -0,0 +1,176 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2016 Joachim Nicolay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Messages per second over loopback, with several clients sending at once. Every benchmark thread is a client with a
+ * connection of its own, sending one message after the other.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EndToEndBenchmark {
+
+	/**
+	 * The server, shared by all clients.
+	 */
+	@State(Scope.Benchmark)
+	public static class Server {
+		/** blocking: a worker thread per client; nonBlocking: two selector threads for all clients. */
+		@Param({"blocking", "nonBlocking"})
+		public String engine;
+
+		/** Number of body lines of each message. */
+		@Param({"20"})
+		public int lines;
+
+		private SimpleSmtpServer server;
+		private byte[] message;
+
+		@Setup
+		public void start() throws IOException {
+			SimpleSmtpServer.Builder builder = SimpleSmtpServer.builder().maxRetainedEmails(10000);
+			if ("nonBlocking".equals(engine)) {
+				builder.nonBlocking(2);
+			} else {
+				builder.workerThreads(64);
+			}
+			server = builder.start();
+			StringBuilder data = new StringBuilder("Subject: Benchmark\r\nTo: receiver@there.com\r\n\r\n");
+			for (int i = 0; i < lines; i++) {
+				data.append("Lorem ipsum dolor sit amet, consectetur adipiscing elit, sed do eiusmod tempor\r\n");
+			}
+			message = data.append(".\r\n").toString().getBytes(StandardCharsets.ISO_8859_1);
+		}
+
+		@TearDown
+		public void stop() {
+			server.stop();
+		}
+	}
+
+	/**
+	 * A client connection, greeted once and then used for all messages.
+	 */
+	@State(Scope.Thread)
+	public static class Client {
+		private Socket socket;
+		private InputStream in;
+		private OutputStream out;
+
+		@Setup(Level.Trial)
+		public void connect(Server server) throws IOException {
+			socket = new Socket("localhost", server.server.getPort());
+			socket.setTcpNoDelay(true);
+			in = new BufferedInputStream(socket.getInputStream());
+			out = new BufferedOutputStream(socket.getOutputStream());
+			expect(220);
+			send("EHLO localhost\r\n".getBytes(StandardCharsets.ISO_8859_1));
+			expect(250);
+		}
+
+		@TearDown(Level.Trial)
+		public void disconnect() throws IOException {
+			socket.close();
+		}
+
+		private void sendMessage(byte[] message) throws IOException {
+			send("MAIL FROM:<sender@here.com>\r\n".getBytes(StandardCharsets.ISO_8859_1));
+			expect(250);
+			send("RCPT TO:<receiver@there.com>\r\n".getBytes(StandardCharsets.ISO_8859_1));
+			expect(250);
+			send("DATA\r\n".getBytes(StandardCharsets.ISO_8859_1));
+			expect(354);
+			send(message);
+			expect(250);
+		}
+
+		private void send(byte[] bytes) throws IOException {
+			out.write(bytes);
+			out.flush();
+		}
+
+		/**
+		 * Reads a reply, skipping the leading lines of a multiline reply.
+		 */
+		private void expect(int code) throws IOException {
+			while (true) {
+				int received = 0;
+				for (int i = 0; i < 3; i++) {
+					received = received * 10 + in.read() - '0';
+				}
+				int separator = in.read();
+				int b;
+				while ((b = in.read()) != '\n') {
+					if (b < 0) {
+						throw new IOException("connection closed by server");
+					}
+				}
+				if (received != code) {
+					throw new IOException("expected " + code + " but got " + received);
+				}
+				if (separator != '-') {
+					return;
+				}
+			}
+		}
+	}
+
+	@Benchmark
+	@Threads(1)
+	public void oneClient(Server server, Client client) throws IOException {
+		client.sendMessage(server.message);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public void fourClients(Server server, Client client) throws IOException {
+		client.sendMessage(server.message);
+	}
+
+	@Benchmark
+	@Threads(16)
+	public void sixteenClients(Server server, Client client) throws IOException {
+		client.sendMessage(server.message);
+	}
+}
@@ -0,0 +1,95 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2016 Joachim Nicolay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of {@link SimpleSmtpServer#getReceivedEmails()} at various store sizes, alone and while messages arrive.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MailStoreBenchmark {
+
+	/** Number of messages in the store. */
+	@Param({"0", "1000", "100000"})
+	public int size;
+
+	private MailStore store;
+	private final SmtpMessage msg = new SmtpMessage();
+
+	@Setup
+	public void setUp() {
+		// a fixed size, so the store does not grow while appending
+		store = new MailStore(Math.max(size, 1), Long.MAX_VALUE, 0, null);
+		for (int i = 0; i < size; i++) {
+			store.deliver(msg);
+		}
+	}
+
+	@Benchmark
+	public List<SmtpMessage> snapshot() {
+		return store.snapshot();
+	}
+
+	/**
+	 * Iterating over all messages, as tests filtering the list do.
+	 */
+	@Benchmark
+	public int iterate() {
+		int count = 0;
+		for (SmtpMessage received : store.snapshot()) {
+			if (received != null) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	@Benchmark
+	@Group("concurrent")
+	@GroupThreads(3)
+	public List<SmtpMessage> snapshotWhileAppending() {
+		return store.snapshot();
+	}
+
+	@Benchmark
+	@Group("concurrent")
+	@GroupThreads(1)
+	public void append() {
+		store.deliver(msg);
+	}
+}
@@ -0,0 +1,84 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2016 Joachim Nicolay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of storing a message line by line, and of reading it back.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SmtpMessageBenchmark {
+
+	private static final SmtpResponse HEADER = new SmtpResponse(-1, "", SmtpState.DATA_HDR);
+	private static final SmtpResponse BODY = new SmtpResponse(-1, "", SmtpState.DATA_BODY);
+
+	/** Number of body lines of the message. */
+	@Param({"10", "1000"})
+	public int lines;
+
+	private final byte[] header = "Subject: Benchmark".getBytes(StandardCharsets.ISO_8859_1);
+	private final byte[] line = "Lorem ipsum dolor sit amet, consectetur adipiscing elit, sed do eiusmod tempor"
+			.getBytes(StandardCharsets.ISO_8859_1);
+	private SmtpMessage stored;
+
+	@Setup
+	public void setUp() {
+		stored = store();
+	}
+
+	/**
+	 * Receiving a message: one header and the body lines.
+	 */
+	@Benchmark
+	public SmtpMessage store() {
+		SmtpMessage msg = new SmtpMessage();
+		msg.store(HEADER, header, 0, header.length);
+		for (int i = 0; i < lines; i++) {
+			msg.store(BODY, line, 0, line.length);
+		}
+		return msg;
+	}
+
+	@Benchmark
+	public String getBody() {
+		return stored.getBody();
+	}
+
+	@Benchmark
+	public String getHeaderValue() {
+		return stored.getHeaderValue("Subject");
+	}
+}
@@ -0,0 +1,74 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2016 Joachim Nicolay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of parsing and executing a single line of client input.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SmtpRequestBenchmark {
+
+	private final byte[] command = bytes("RCPT TO:<receiver@there.com>");
+	private final byte[] bodyLine = bytes("Lorem ipsum dolor sit amet, consectetur adipiscing elit, sed do eiusmod tempor");
+
+	/**
+	 * A command, as parsed and executed by the session.
+	 */
+	@Benchmark
+	public SmtpResponse command() {
+		return SmtpRequest.createRequest(command, 0, command.length, SmtpState.RCPT).execute();
+	}
+
+	/**
+	 * A line of message data, parsed and executed like a command.
+	 */
+	@Benchmark
+	public SmtpResponse dataLineAsRequest() {
+		return SmtpRequest.createRequest(bodyLine, 0, bodyLine.length, SmtpState.DATA_BODY).execute();
+	}
+
+	/**
+	 * A line of message data, classified without creating a request.
+	 */
+	@Benchmark
+	public SmtpResponse dataLine() {
+		return SmtpRequest.transition(SmtpRequest.dataAction(bodyLine, 0, bodyLine.length, SmtpState.DATA_BODY),
+				SmtpState.DATA_BODY);
+	}
+
+	private static byte[] bytes(String line) {
+		return line.getBytes(StandardCharsets.ISO_8859_1);
+	}
+}
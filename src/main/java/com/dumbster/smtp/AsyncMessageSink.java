@@ -0,0 +1,41 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2016 Joachim Nicolay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+/**
+ * Receives the messages completed by sessions that must not wait for the delivery, e.g. those served by a selector
+ * thread, which would hold up all other connections meanwhile.
+ */
+interface AsyncMessageSink {
+	/**
+	 * Starts delivering a message. The client is to be told the outcome only once the callback has been called.
+	 *
+	 * @param msg      the message
+	 * @param callback called exactly once, from any thread, possibly before this method returns
+	 */
+	void deliver(SmtpMessage msg, Callback callback);
+
+	/**
+	 * Told when a delivery is done.
+	 */
+	interface Callback {
+		/**
+		 * @param failure null if the message has been delivered, otherwise why not
+		 */
+		void delivered(Exception failure);
+	}
+}
@@ -0,0 +1,425 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2016 Joachim Nicolay
+ * Copyright 2004 Jason Paul Kitchen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serves every connection with blocking socket I/O on a thread of its own, taken from an executor.
+ */
+@Slf4j
+class BlockingSmtpEngine implements SmtpEngine {
+
+	/** Rejected connections waiting for their reply; beyond this number they are closed without one. */
+	private static final int MAX_PENDING_REJECTIONS = 64;
+
+	/** The server socket this server listens to. */
+	private final ServerSocket serverSocket;
+
+	/** Runs the SMTP sessions of accepted connections. */
+	private final ExecutorService sessionExecutor;
+
+	/** Receives the completed messages. */
+	private final MessageSink sink;
+
+	/** Counts the sessions. */
+	private final ServerMetrics metrics;
+
+	/** Delays the responses and slows down reading. */
+	private final TrafficShaping shaping;
+
+	/** Times out silent clients, and ends the sessions when stopping. */
+	private final SessionTimeouts timeouts;
+
+	/** Maximum number of sessions served or waiting for a thread at once. */
+	private final int maxSessions;
+
+	/** Number of sessions accepted and not yet finished. */
+	private final AtomicInteger sessions = new AtomicInteger();
+
+	/** Thread that accepts client connections. */
+	private final Thread workerThread;
+
+	/** Writes the replies to rejected connections, so a client not reading its reply cannot hold up accepting. */
+	private final ThreadPoolExecutor rejector = new ThreadPoolExecutor(1, 1, 1, TimeUnit.SECONDS,
+			new ArrayBlockingQueue<Runnable>(MAX_PENDING_REJECTIONS), new NamedThreadFactory("dumbster-reject-"));
+
+	/** The rejection whose reply is being written, null if none is. */
+	private volatile Rejection rejecting;
+
+	/** Indicates the server thread that it should stop */
+	private volatile boolean stopped = false;
+
+	/**
+	 * Starts accepting connections right away.
+	 *
+	 * @param serverSocket    socket to listen on
+	 * @param sessionExecutor runs the sessions
+	 * @param sink            receives the completed messages
+	 * @param metrics         counts the sessions
+	 * @param shaping         delays the responses and slows down reading
+	 * @param timeouts        times out silent clients
+	 * @param maxSessions     connections beyond this number of sessions are rejected
+	 */
+	BlockingSmtpEngine(ServerSocket serverSocket, ExecutorService sessionExecutor, MessageSink sink,
+			ServerMetrics metrics, TrafficShaping shaping, SessionTimeouts timeouts, int maxSessions) {
+		this.serverSocket = serverSocket;
+		this.sessionExecutor = sessionExecutor;
+		this.sink = sink;
+		this.metrics = metrics;
+		this.shaping = shaping;
+		this.timeouts = timeouts;
+		this.maxSessions = maxSessions;
+		this.rejector.allowCoreThreadTimeOut(true);
+		this.workerThread = new Thread(
+				new Runnable() {
+					@Override
+					public void run() {
+						performWork();
+					}
+				});
+		this.workerThread.start();
+	}
+
+	@Override
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	@Override
+	public List<Integer> getPorts() {
+		return Collections.singletonList(getPort());
+	}
+
+	@Override
+	public void stop(long timeoutMillis) {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		// Mark us closed
+		stopped = true;
+		try {
+			// Kick the server accept loop
+			serverSocket.close();
+		} catch (IOException e) {
+			log.warn("trouble closing the server socket", e);
+		}
+		// end the idle sessions, the others once their messages are through
+		timeouts.shutdown();
+		// and block until worker and all sessions are finished
+		try {
+			// join(0) would wait without limit, so do not wait at all once the time is up
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining > 0) {
+				workerThread.join(remaining);
+			}
+			if (workerThread.isAlive()) {
+				log.warn("accept thread still running after {} ms, aborting the sessions", timeoutMillis);
+			}
+			stopRejecting();
+			sessionExecutor.shutdown();
+			// the sessions only get what is left of the timeout
+			remaining = workerThread.isAlive() ? 0 : Math.max(deadline - System.currentTimeMillis(), 0);
+			if (!sessionExecutor.awaitTermination(remaining, TimeUnit.MILLISECONDS)) {
+				log.warn("sessions still running after {} ms, aborting them", timeoutMillis);
+				timeouts.abort();
+				sessionExecutor.shutdownNow();
+			}
+		} catch (InterruptedException e) {
+			log.warn("interrupted when waiting for worker thread to finish", e);
+		}
+	}
+
+	/**
+	 * Main loop of the SMTP server: accepts connections and hands them over to the session executor.
+	 */
+	private void performWork() {
+		try {
+			// Server: loop until stopped
+			while (!stopped) {
+				// Start server socket and listen for client connections
+				final Socket socket = serverSocket.accept();
+				if (sessions.incrementAndGet() > maxSessions) {
+					sessions.decrementAndGet();
+					reject(socket, SmtpSession.TOO_MANY_SESSIONS);
+					continue;
+				}
+				try {
+					sessionExecutor.execute(new Runnable() {
+						@Override
+						public void run() {
+							try {
+								handleSession(socket);
+							} finally {
+								sessions.decrementAndGet();
+							}
+						}
+					});
+				} catch (RejectedExecutionException e) {
+					// the server is stopping and the executor has been shut down, or the executor is full
+					sessions.decrementAndGet();
+					reject(socket, stopped ? SmtpSession.SHUTTING_DOWN : SmtpSession.TOO_MANY_SESSIONS);
+				}
+			}
+		} catch (Exception e) {
+			// SocketException expected when stopping the server
+			if (!stopped) {
+				log.error("hit exception when running server", e);
+				try {
+					serverSocket.close();
+				} catch (IOException ex) {
+					log.error("and one when closing the port", ex);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Tells a client that the server is busy or stopping, instead of letting it wait for a free thread. The reply is
+	 * written on a thread of its own: it usually fits into the socket buffer of a new connection, but that is not
+	 * guaranteed, e.g. with a client that does not read. If too many replies are pending, the connection is closed
+	 * without one.
+	 *
+	 * @param socket   the accepted client connection
+	 * @param response why the connection is not served
+	 */
+	private void reject(Socket socket, SmtpResponse response) {
+		metrics.connectionRejected();
+		Rejection rejection = new Rejection(socket, response);
+		try {
+			rejector.execute(rejection);
+		} catch (RejectedExecutionException e) {
+			rejection.close();
+		}
+	}
+
+	/**
+	 * Closes the rejected connections still waiting for their reply, or still being written to.
+	 */
+	private void stopRejecting() {
+		for (Runnable pending : rejector.shutdownNow()) {
+			((Rejection) pending).close();
+		}
+		Rejection current = rejecting;
+		if (current != null) {
+			current.close();
+		}
+	}
+
+	/**
+	 * Serves a single client connection until it quits or disconnects.
+	 *
+	 * @param socket the accepted client connection
+	 */
+	private void handleSession(final Socket socket) {
+		SessionWatchdog watchdog = new SessionWatchdog(timeouts) {
+			@Override
+			void expired() {
+				try {
+					// wakes up the session thread waiting for input
+					socket.shutdownInput();
+				} catch (IOException e) {
+					log.debug("could not shut down input", e);
+				}
+			}
+
+			@Override
+			void abort() {
+				try {
+					socket.close();
+				} catch (IOException e) {
+					log.debug("trouble closing client connection", e);
+				}
+			}
+		};
+		watchdog.start();
+		try (Socket s = socket;
+		     OutputStream out = new BufferedOutputStream(s.getOutputStream())) {
+			TrafficShaping.ReadThrottle throttle = shaping.newReadThrottle();
+			InputStream in = throttle == null ? s.getInputStream() : new ThrottledInputStream(s.getInputStream(), throttle);
+			handleTransaction(out, new SmtpLineReader(in, out), watchdog);
+		} catch (IOException e) {
+			log.debug("client connection failed", e);
+		} catch (Exception e) {
+			if (!stopped) {
+				log.warn("hit exception when serving client", e);
+			}
+		} finally {
+			watchdog.close();
+		}
+	}
+
+	/**
+	 * Handle an SMTP transaction, i.e. all activity between initial connect and QUIT command. Delayed responses are
+	 * waited for on the thread serving the session, which does nothing else anyway.
+	 *
+	 * @param out      output stream, flushed by the input whenever it runs out of buffered lines
+	 * @param input    input stream
+	 * @param watchdog times out the client
+	 * @throws IOException when talking to the client fails
+	 */
+	private void handleTransaction(OutputStream out, SmtpLineReader input, SessionWatchdog watchdog)
+			throws IOException {
+		SmtpSession session = new SmtpSession(sink, metrics);
+		try {
+			// Send initial response
+			sendResponse(out, session.connect(), session);
+
+			transaction:
+			while (!session.isFinished()) {
+				watchdog.waiting(session);
+				// a line cut short by the watchdog is not processed
+				if (!input.next() || watchdog.isExpired()) {
+					break;
+				}
+				watchdog.working();
+				// Process the line and send response to client
+				SmtpResponse response = session.handle(input.buffer(), input.lineStart(), input.lineLength());
+				while (response == null) {
+					// BDAT: read the data before responding
+					watchdog.waiting(session);
+					int length = input.nextChunk(session.getChunkRemaining());
+					if (length == 0 || watchdog.isExpired()) {
+						break transaction;
+					}
+					watchdog.working();
+					response = session.receiveChunk(input.buffer(), input.lineStart(), length);
+				}
+				sendResponse(out, response, session);
+			}
+			SmtpResponse expiredWith = watchdog.getExpiredWith();
+			if (expiredWith != null) {
+				if (expiredWith == SmtpSession.TIMEOUT) {
+					metrics.sessionTimedOut();
+				}
+				out.write(expiredWith.toBytes());
+				out.flush();
+			}
+		} finally {
+			session.close();
+		}
+	}
+
+	/**
+	 * Send response to client. The response is only buffered, so the responses to pipelined commands go out together.
+	 * If the response is to be delayed, the responses before it are sent first.
+	 *
+	 * @param out          socket output stream
+	 * @param smtpResponse response object
+	 * @param session      the session, which knows the command answered
+	 * @throws IOException when writing fails
+	 */
+	private void sendResponse(OutputStream out, SmtpResponse smtpResponse, SmtpSession session) throws IOException {
+		if (smtpResponse.getCode() > 0) {
+			long delay = shaping.responseDelay(session.getLastAction());
+			if (delay > 0) {
+				out.flush();
+				sleep(delay);
+			}
+			out.write(smtpResponse.toBytes());
+		}
+	}
+
+	private static void sleep(long nanos) throws InterruptedIOException {
+		try {
+			TimeUnit.NANOSECONDS.sleep(nanos);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while delaying a response");
+		}
+	}
+
+	/**
+	 * Reads no faster than the throttle allows, waiting after each read.
+	 */
+	private static final class ThrottledInputStream extends FilterInputStream {
+		private final TrafficShaping.ReadThrottle throttle;
+
+		private ThrottledInputStream(InputStream in, TrafficShaping.ReadThrottle throttle) {
+			super(in);
+			this.throttle = throttle;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b >= 0) {
+				sleep(throttle.pause(1));
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, Math.min(len, throttle.maxRead()));
+			if (n > 0) {
+				sleep(throttle.pause(n));
+			}
+			return n;
+		}
+	}
+
+	/**
+	 * A rejected connection and the reply it gets.
+	 */
+	private final class Rejection implements Runnable {
+		private final Socket socket;
+		private final SmtpResponse response;
+
+		private Rejection(Socket socket, SmtpResponse response) {
+			this.socket = socket;
+			this.response = response;
+		}
+
+		@Override
+		public void run() {
+			rejecting = this;
+			try {
+				socket.getOutputStream().write(response.toBytes());
+			} catch (IOException e) {
+				log.debug("could not reject client connection", e);
+			} finally {
+				rejecting = null;
+				close();
+			}
+		}
+
+		private void close() {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				log.debug("trouble closing rejected client connection", e);
+			}
+		}
+	}
+}
@@ -0,0 +1,237 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2016 Joachim Nicolay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Streams decoded MIME content straight from the raw bytes of a message. The content is decoded while it is read,
+ * a few bytes at a time, so even large attachments are never decoded into memory as a whole.
+ */
+final class ContentDecoder {
+
+	/** Value of each base64 character, -1 for characters to be skipped. */
+	private static final byte[] BASE64 = new byte[256];
+
+	static {
+		Arrays.fill(BASE64, (byte) -1);
+		String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+		for (int i = 0; i < alphabet.length(); i++) {
+			BASE64[alphabet.charAt(i)] = (byte) i;
+		}
+	}
+
+	private ContentDecoder() {
+	}
+
+	/**
+	 * @param content  the encoded content, not changed by reading the stream
+	 * @param encoding value of the Content-Transfer-Encoding header, null for none
+	 * @return stream of the decoded content; content in unknown encodings, 7bit, 8bit and binary is passed through
+	 */
+	static InputStream decode(ByteBuffer content, String encoding) {
+		String normalized = encoding == null ? "" : encoding.trim().toLowerCase(Locale.ROOT);
+		switch (normalized) {
+			case "base64":
+				return new Base64Stream(content.duplicate());
+			case "quoted-printable":
+				return new QuotedPrintableStream(content.duplicate());
+			default:
+				return new RawStream(content.duplicate());
+		}
+	}
+
+	/**
+	 * Reads a buffer as it is.
+	 */
+	private static final class RawStream extends InputStream {
+		private final ByteBuffer source;
+
+		private RawStream(ByteBuffer source) {
+			this.source = source;
+		}
+
+		@Override
+		public int read() {
+			return source.hasRemaining() ? source.get() & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (len == 0) {
+				return 0;
+			}
+			if (!source.hasRemaining()) {
+				return -1;
+			}
+			int n = Math.min(len, source.remaining());
+			source.get(b, off, n);
+			return n;
+		}
+
+		@Override
+		public long skip(long n) {
+			int skipped = (int) Math.max(0, Math.min(n, source.remaining()));
+			source.position(source.position() + skipped);
+			return skipped;
+		}
+
+		@Override
+		public int available() {
+			return source.remaining();
+		}
+	}
+
+	/**
+	 * Decodes base64 (RFC 2045), skipping line breaks and other characters outside of the alphabet. Decoding stops at
+	 * the padding.
+	 */
+	private static final class Base64Stream extends InputStream {
+		private final ByteBuffer source;
+		/** Decoded bytes of the current quantum, from {@link #next} to {@link #count}. */
+		private final byte[] decoded = new byte[3];
+		private int next;
+		private int count;
+		private boolean finished;
+
+		private Base64Stream(ByteBuffer source) {
+			this.source = source;
+		}
+
+		@Override
+		public int read() {
+			if (next == count && !decodeQuantum()) {
+				return -1;
+			}
+			return decoded[next++] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (len == 0) {
+				return 0;
+			}
+			int n = 0;
+			while (n < len) {
+				if (next == count && !decodeQuantum()) {
+					break;
+				}
+				int chunk = Math.min(len - n, count - next);
+				System.arraycopy(decoded, next, b, off + n, chunk);
+				next += chunk;
+				n += chunk;
+			}
+			return n == 0 ? -1 : n;
+		}
+
+		/**
+		 * Decodes the next four characters into up to three bytes.
+		 *
+		 * @return false at the end of the content
+		 */
+		private boolean decodeQuantum() {
+			if (finished) {
+				return false;
+			}
+			int bits = 0;
+			int chars = 0;
+			while (chars < 4 && source.hasRemaining()) {
+				int c = source.get() & 0xff;
+				if (c == '=') {
+					finished = true;
+					break;
+				}
+				int value = BASE64[c];
+				if (value >= 0) {
+					bits = bits << 6 | value;
+					chars++;
+				}
+			}
+			if (chars < 4) {
+				finished = true;
+				// a partial quantum holds 1 or 2 bytes
+				bits <<= 6 * (4 - chars);
+			}
+			next = 0;
+			count = chars < 2 ? 0 : chars - 1;
+			decoded[0] = (byte) (bits >> 16);
+			decoded[1] = (byte) (bits >> 8);
+			decoded[2] = (byte) bits;
+			return count > 0;
+		}
+	}
+
+	/**
+	 * Decodes quoted-printable (RFC 2045): "=" followed by two hex digits stands for a byte, "=" at the end of a line
+	 * joins it with the next line. Malformed escapes are passed through.
+	 */
+	private static final class QuotedPrintableStream extends InputStream {
+		private final ByteBuffer source;
+
+		private QuotedPrintableStream(ByteBuffer source) {
+			this.source = source;
+		}
+
+		@Override
+		public int read() {
+			while (source.hasRemaining()) {
+				int c = source.get() & 0xff;
+				if (c != '=') {
+					return c;
+				}
+				int position = source.position();
+				int limit = source.limit();
+				if (limit - position >= 2 && source.get(position) == '\r' && source.get(position + 1) == '\n') {
+					// soft line break
+					source.position(position + 2);
+					continue;
+				}
+				if (limit - position >= 1 && source.get(position) == '\n') {
+					source.position(position + 1);
+					continue;
+				}
+				int high = limit - position >= 2 ? Character.digit(source.get(position), 16) : -1;
+				int low = high >= 0 ? Character.digit(source.get(position + 1), 16) : -1;
+				if (low < 0) {
+					return c;
+				}
+				source.position(position + 2);
+				return high << 4 | low;
+			}
+			return -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (len == 0) {
+				return 0;
+			}
+			int n = 0;
+			while (n < len) {
+				int c = read();
+				if (c < 0) {
+					break;
+				}
+				b[off + n++] = (byte) c;
+			}
+			return n == 0 ? -1 : n;
+		}
+	}
+}
@@ -0,0 +1,101 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2016 Joachim Nicolay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The kind of threads running the sessions of a server with blocking I/O.
+ *
+ * @see SimpleSmtpServer.Builder#executionMode(ExecutionMode)
+ */
+public enum ExecutionMode {
+	/** A fixed number of platform threads, further sessions wait for a free one. This is the default. */
+	POOLED {
+		@Override
+		ExecutorService createExecutor(int workerThreads, ThreadFactory threadFactory) {
+			return Executors.newFixedThreadPool(workerThreads, threadFactory);
+		}
+	},
+	/** A new platform thread for every session, ending with the session. */
+	PLATFORM_THREAD_PER_SESSION {
+		@Override
+		ExecutorService createExecutor(int workerThreads, ThreadFactory threadFactory) {
+			return new ThreadPoolExecutor(0, Integer.MAX_VALUE, 0, TimeUnit.MILLISECONDS,
+					new SynchronousQueue<Runnable>(), threadFactory);
+		}
+	},
+	/**
+	 * A new virtual thread for every session. Keeps the simple blocking session code, but scales to as many
+	 * concurrent sessions as the non-blocking engine. Only available when running on Java 21 or later.
+	 */
+	VIRTUAL_THREAD_PER_SESSION {
+		@Override
+		ExecutorService createExecutor(int workerThreads, ThreadFactory threadFactory) {
+			if (NEW_VIRTUAL_THREAD_EXECUTOR == null) {
+				throw new UnsupportedOperationException("virtual threads need Java 21 or later, running on " + System.getProperty("java.version"));
+			}
+			try {
+				return (ExecutorService) NEW_VIRTUAL_THREAD_EXECUTOR.invoke(null);
+			} catch (IllegalAccessException | InvocationTargetException e) {
+				throw new IllegalStateException("could not create virtual thread executor", e);
+			}
+		}
+
+		@Override
+		public boolean isSupported() {
+			return NEW_VIRTUAL_THREAD_EXECUTOR != null;
+		}
+	};
+
+	/**
+	 * {@code Executors.newVirtualThreadPerTaskExecutor()}, looked up at runtime because the library is still built
+	 * for Java 7. Null when the running JVM does not have virtual threads.
+	 */
+	private static final Method NEW_VIRTUAL_THREAD_EXECUTOR = findVirtualThreadExecutorFactory();
+
+	/**
+	 * @return true if the running JVM supports this mode
+	 */
+	public boolean isSupported() {
+		return true;
+	}
+
+	/**
+	 * Creates the executor running the sessions.
+	 *
+	 * @param workerThreads number of threads, if the mode has a fixed number
+	 * @param threadFactory creates platform threads
+	 * @return a new executor
+	 */
+	abstract ExecutorService createExecutor(int workerThreads, ThreadFactory threadFactory);
+
+	private static Method findVirtualThreadExecutorFactory() {
+		try {
+			return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,139 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2016 Joachim Nicolay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+/**
+ * Counts durations in logarithmic buckets, to tell percentiles without keeping every single value. Each power of two
+ * is split into {@value #SUB_BUCKETS} buckets, so a percentile is off by at most about 3%, whatever the range of the
+ * values.
+ * <p>
+ * Recording takes no allocation and no lock. A histogram is not thread safe; let each thread record into its own
+ * histogram and {@link #add(LatencyHistogram) add} them up in the end.
+ */
+class LatencyHistogram {
+	/** Buckets per power of two. */
+	private static final int SUB_BUCKETS = 32;
+	/** log2 of {@link #SUB_BUCKETS}. */
+	private static final int SUB_BUCKET_BITS = 5;
+
+	private final long[] counts = new long[64 * SUB_BUCKETS];
+	private long count;
+	private long sum;
+	private long min = Long.MAX_VALUE;
+	private long max;
+
+	/**
+	 * @param value a duration, negative values count as 0
+	 */
+	void record(long value) {
+		long v = Math.max(value, 0);
+		counts[index(v)]++;
+		count++;
+		sum += v;
+		min = Math.min(min, v);
+		max = Math.max(max, v);
+	}
+
+	/**
+	 * Adds the values recorded by another histogram to this one.
+	 *
+	 * @param other the histogram to add
+	 */
+	void add(LatencyHistogram other) {
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] += other.counts[i];
+		}
+		count += other.count;
+		sum += other.sum;
+		min = Math.min(min, other.min);
+		max = Math.max(max, other.max);
+	}
+
+	/**
+	 * @return number of values recorded
+	 */
+	long getCount() {
+		return count;
+	}
+
+	/**
+	 * @return smallest value recorded, 0 if there is none
+	 */
+	long getMin() {
+		return count == 0 ? 0 : min;
+	}
+
+	/**
+	 * @return largest value recorded, 0 if there is none
+	 */
+	long getMax() {
+		return max;
+	}
+
+	/**
+	 * @return average of the values recorded, 0 if there is none
+	 */
+	double getMean() {
+		return count == 0 ? 0 : (double) sum / count;
+	}
+
+	/**
+	 * @param percentile between 0 and 100, e.g. 99.9
+	 * @return a value at least as large as the given percentage of the values recorded, 0 if there is none
+	 */
+	long getPercentile(double percentile) {
+		if (percentile < 0 || percentile > 100) {
+			throw new IllegalArgumentException("percentile must be between 0 and 100, got " + percentile);
+		}
+		if (count == 0) {
+			return 0;
+		}
+		long rank = Math.max((long) Math.ceil(percentile / 100 * count), 1);
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= rank) {
+				return Math.max(Math.min(highestValue(i), max), getMin());
+			}
+		}
+		return max;
+	}
+
+	/**
+	 * Values below 2 * {@link #SUB_BUCKETS} get a bucket each, larger ones share a bucket with the values having the
+	 * same highest {@link #SUB_BUCKET_BITS} + 1 bits.
+	 */
+	private static int index(long value) {
+		if (value < 2 * SUB_BUCKETS) {
+			return (int) value;
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		return shift * SUB_BUCKETS + (int) (value >>> shift);
+	}
+
+	/**
+	 * @return the largest value falling into a bucket
+	 */
+	private static long highestValue(int index) {
+		if (index < 2 * SUB_BUCKETS) {
+			return index;
+		}
+		int shift = index / SUB_BUCKETS - 1;
+		long top = index % SUB_BUCKETS + SUB_BUCKETS;
+		return ((top + 1) << shift) - 1;
+	}
+}
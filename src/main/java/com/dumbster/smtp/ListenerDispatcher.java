@@ -0,0 +1,126 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2016 Joachim Nicolay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands received messages to the {@link MessageListener}s on a thread of its own. Sessions only put the message into
+ * a bounded queue; if the listeners cannot keep up and the queue is full, notifications are dropped rather than
+ * holding up the sessions.
+ */
+@Slf4j
+class ListenerDispatcher implements MessageSink {
+	private final List<MessageListener> listeners = new CopyOnWriteArrayList<>();
+	private final BlockingQueue<SmtpMessage> queue;
+	private final String threadName;
+	private final AtomicLong dropped = new AtomicLong();
+	/** Started with the first listener. */
+	private Thread thread;
+	private volatile boolean stopped = false;
+
+	/**
+	 * @param capacity   maximum number of messages waiting for the listeners
+	 * @param threadName name of the dispatching thread
+	 */
+	ListenerDispatcher(int capacity, String threadName) {
+		this.queue = new ArrayBlockingQueue<>(capacity);
+		this.threadName = threadName;
+	}
+
+	synchronized void addListener(MessageListener listener) {
+		listeners.add(listener);
+		if (thread == null && !stopped) {
+			thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					dispatch();
+				}
+			}, threadName);
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	void removeListener(MessageListener listener) {
+		listeners.remove(listener);
+	}
+
+	@Override
+	public void deliver(SmtpMessage msg) {
+		if (listeners.isEmpty()) {
+			return;
+		}
+		if (!queue.offer(msg) && dropped.getAndIncrement() == 0) {
+			log.warn("message listeners are too slow, dropping notifications");
+		}
+	}
+
+	/**
+	 * @return number of notifications dropped because the queue was full
+	 */
+	long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * Notifies the listeners about the messages still queued, then ends the dispatching thread.
+	 *
+	 * @param timeoutMillis how long to wait for the listeners
+	 */
+	void stop(long timeoutMillis) {
+		Thread running;
+		synchronized (this) {
+			stopped = true;
+			running = thread;
+		}
+		if (running != null) {
+			try {
+				running.join(timeoutMillis);
+			} catch (InterruptedException e) {
+				log.warn("interrupted when waiting for listener thread to finish", e);
+			}
+		}
+	}
+
+	private void dispatch() {
+		try {
+			while (!stopped || !queue.isEmpty()) {
+				SmtpMessage msg = queue.poll(100, TimeUnit.MILLISECONDS);
+				if (msg == null) {
+					continue;
+				}
+				for (MessageListener listener : listeners) {
+					try {
+						listener.messageReceived(msg);
+					} catch (RuntimeException e) {
+						log.warn("message listener {} failed", listener, e);
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			log.warn("listener thread interrupted, {} notifications left", queue.size());
+		}
+	}
+}
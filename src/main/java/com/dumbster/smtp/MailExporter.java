@@ -0,0 +1,272 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2016 Joachim Nicolay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Writes messages to an mbox file or a Maildir, for reading them with other tools. The messages are written as they
+ * were received, straight from their raw bytes through a buffer into the file channel, without building a string of
+ * a message. Lines end with LF in both formats, as the tools reading them expect.
+ * <p>
+ * The mbox file uses the mboxrd format: every message starts with a "From " line with its envelope sender and the
+ * time it was received, body lines starting with "From " after any number of "&gt;" get another "&gt;" in front.
+ * Maildir messages get a Return-Path header with the envelope sender, and are written by several threads in
+ * parallel, each one into tmp first and then moved to new.
+ */
+final class MailExporter {
+	/** Size of the write buffers. */
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final byte[] FROM = {'F', 'r', 'o', 'm', ' '};
+	/** Makes the Maildir file names unique between exports. */
+	private static final AtomicInteger EXPORT_NUMBER = new AtomicInteger();
+
+	private MailExporter() {
+	}
+
+	/**
+	 * Writes the messages to an mbox file, replacing the file if it exists.
+	 *
+	 * @param messages the messages to write, e.g. a snapshot of the store
+	 * @param file     the mbox file
+	 * @return number of messages written
+	 * @throws IOException when writing fails
+	 */
+	static int exportMbox(List<SmtpMessage> messages, Path file) throws IOException {
+		SimpleDateFormat asctime = new SimpleDateFormat("EEE MMM dd HH:mm:ss yyyy", Locale.US);
+		asctime.setTimeZone(TimeZone.getTimeZone("UTC"));
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			Output out = new Output(channel);
+			int count = 0;
+			for (SmtpMessage msg : messages) {
+				String sender = msg.getEnvelopeSender();
+				out.put("From " + (sender == null || sender.isEmpty() ? "MAILER-DAEMON" : sender) + " "
+						+ asctime.format(new Date(msg.receivedAt)) + "\n");
+				out.putLines(msg.rawHeaders(), false);
+				out.put("\n");
+				out.putLines(msg.rawBody(), true);
+				out.put("\n");
+				count++;
+			}
+			out.flush();
+			return count;
+		}
+	}
+
+	/**
+	 * Writes each message to a file of its own in the new directory of a Maildir, creating the Maildir if needed.
+	 *
+	 * @param messages the messages to write, e.g. a snapshot of the store
+	 * @param maildir  the Maildir, the directory holding tmp, new and cur
+	 * @param threads  number of threads writing in parallel
+	 * @return number of messages written
+	 * @throws IOException when writing fails
+	 */
+	static int exportMaildir(final List<SmtpMessage> messages, Path maildir, int threads) throws IOException {
+		final Path tmp = Files.createDirectories(maildir.resolve("tmp"));
+		final Path target = Files.createDirectories(maildir.resolve("new"));
+		Files.createDirectories(maildir.resolve("cur"));
+		// time.unique.host as usual, unique between exports and JVMs
+		final String prefix = ".M" + System.nanoTime() + "P" + EXPORT_NUMBER.incrementAndGet() + "Q";
+		final AtomicInteger next = new AtomicInteger();
+		int workers = Math.max(1, Math.min(threads, messages.size()));
+		ExecutorService executor = Executors.newFixedThreadPool(workers, new NamedThreadFactory("dumbster-export-"));
+		try {
+			List<Future<Void>> results = new ArrayList<>();
+			for (int i = 0; i < workers; i++) {
+				results.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws IOException {
+						ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+						int index;
+						while ((index = next.getAndIncrement()) < messages.size()) {
+							SmtpMessage msg = messages.get(index);
+							String name = msg.receivedAt / 1000 + prefix + index + ".dumbster";
+							Path file = tmp.resolve(name);
+							writeMaildirMessage(msg, file, buffer);
+							Files.move(file, target.resolve(name), StandardCopyOption.ATOMIC_MOVE);
+						}
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> result : results) {
+				result.get();
+			}
+			return messages.size();
+		} catch (ExecutionException e) {
+			next.set(messages.size());
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IllegalStateException("export failed", e.getCause());
+		} catch (InterruptedException e) {
+			next.set(messages.size());
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted while exporting", e);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	private static void writeMaildirMessage(SmtpMessage msg, Path file, ByteBuffer buffer) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+			Output out = new Output(channel, buffer);
+			String sender = msg.getEnvelopeSender();
+			if (sender != null) {
+				out.put("Return-Path: <" + sender + ">\n");
+			}
+			out.putLines(msg.rawHeaders(), false);
+			out.put("\n");
+			out.putLines(msg.rawBody(), false);
+			out.flush();
+		}
+	}
+
+	/**
+	 * Buffers the bytes written to a channel, turning CRLF line ends into LF on the way. Lines are copied into the
+	 * buffer in bulk.
+	 */
+	private static final class Output {
+		private final FileChannel channel;
+		private final ByteBuffer buffer;
+
+		private Output(FileChannel channel) {
+			this(channel, ByteBuffer.allocateDirect(BUFFER_SIZE));
+		}
+
+		private Output(FileChannel channel, ByteBuffer buffer) {
+			this.channel = channel;
+			this.buffer = buffer;
+			buffer.clear();
+		}
+
+		private void put(String s) throws IOException {
+			ByteBuffer bytes = ByteBuffer.wrap(s.getBytes(StandardCharsets.UTF_8));
+			put(bytes, 0, bytes.limit());
+		}
+
+		/**
+		 * Copies lines, each one ending with CRLF, replacing the line ends with LF. A last line without line end gets
+		 * one.
+		 *
+		 * @param lines     the lines
+		 * @param quoteFrom whether to quote "From " lines as mboxrd does
+		 */
+		private void putLines(ByteBuffer lines, boolean quoteFrom) throws IOException {
+			int end = lines.limit();
+			int pos = lines.position();
+			while (pos < end) {
+				int lineEnd = indexOfCrlf(lines, pos, end);
+				if (quoteFrom && isFromLine(lines, pos, lineEnd)) {
+					put((byte) '>');
+				}
+				put(lines, pos, lineEnd);
+				put((byte) '\n');
+				pos = lineEnd + 2;
+			}
+		}
+
+		/**
+		 * @return position of the first CRLF in the given range, the end of the range if there is none
+		 */
+		private static int indexOfCrlf(ByteBuffer data, int from, int to) {
+			for (int i = from; i < to - 1; i++) {
+				if (data.get(i) == '\r' && data.get(i + 1) == '\n') {
+					return i;
+				}
+			}
+			return to;
+		}
+
+		/**
+		 * @return true if the line is "From " after any number of "&gt;"
+		 */
+		private static boolean isFromLine(ByteBuffer lines, int from, int to) {
+			int i = from;
+			while (i < to && lines.get(i) == '>') {
+				i++;
+			}
+			if (to - i < FROM.length) {
+				return false;
+			}
+			for (int j = 0; j < FROM.length; j++) {
+				if (lines.get(i + j) != FROM[j]) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private void put(ByteBuffer source, int from, int to) throws IOException {
+			ByteBuffer part = source.duplicate();
+			part.limit(to);
+			part.position(from);
+			while (part.hasRemaining()) {
+				if (!buffer.hasRemaining()) {
+					drain();
+				}
+				if (part.remaining() <= buffer.remaining()) {
+					buffer.put(part);
+				} else {
+					part.limit(part.position() + buffer.remaining());
+					buffer.put(part);
+					part.limit(to);
+				}
+			}
+		}
+
+		private void put(byte b) throws IOException {
+			if (!buffer.hasRemaining()) {
+				drain();
+			}
+			buffer.put(b);
+		}
+
+		private void drain() throws IOException {
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			buffer.clear();
+		}
+
+		private void flush() throws IOException {
+			drain();
+		}
+	}
+}
@@ -0,0 +1,498 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2016 Joachim Nicolay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Append-only store of the received messages. Neither appending, reading nor resetting ever takes a lock, and
+ * without a retention policy a snapshot of the store is a constant-time view, not a copy.
+ * <p>
+ * Messages live in fixed-size chunks which are never moved once created. A snapshot remembers the chunk directory
+ * and the range of messages present at the time it was taken; later appends only write behind that range, so
+ * the snapshot never changes. {@link #reset()} starts a new, empty generation instead of clearing anything.
+ * <p>
+ * A retention policy limits the number, total size and age of the messages kept. The oldest messages are evicted
+ * by moving the start of the range and clearing their slots, so the store never holds on to more than the policy
+ * allows; once a whole chunk has been evicted, it is dropped from the directory. Only one thread evicts at a time,
+ * the others go on without waiting. As slots are cleared, a snapshot of a store with a policy copies the messages
+ * kept, which the policy bounds; evicted messages stay in the snapshots taken before.
+ * <p>
+ * Threads waiting for messages are woken by the appending thread. As long as nobody waits, appending does not touch
+ * the lock used for this.
+ */
+class MailStore implements MessageSink {
+	/** Chunks hold 2^CHUNK_SHIFT messages. */
+	private static final int CHUNK_SHIFT = 10;
+	private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+	private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+	/** Maximum number of messages kept. */
+	private final int maxCount;
+	/** Maximum total size of the messages kept, see {@link SmtpMessage#size()}. */
+	private final long maxBytes;
+	/** Maximum age of the messages kept, 0 for no limit. */
+	private final long maxAgeMillis;
+	/** Whether there is a retention policy at all. */
+	private final boolean limited;
+	/** Told about every evicted message, may be null. */
+	private final MessageSink evictions;
+
+	/** The generation receiving messages, replaced on reset. */
+	private final AtomicReference<Generation> current = new AtomicReference<>(new Generation());
+	/** Number of messages evicted by the retention policy, over all generations. */
+	private final AtomicLong evicted = new AtomicLong();
+
+	/** Number of threads waiting for messages. */
+	private final AtomicInteger waiting = new AtomicInteger();
+	private final ReentrantLock waitLock = new ReentrantLock();
+	/** Signalled whenever a message was appended while somebody is waiting. */
+	private final Condition appended = waitLock.newCondition();
+
+	/**
+	 * Creates a store keeping all messages until reset.
+	 */
+	MailStore() {
+		this(Integer.MAX_VALUE, Long.MAX_VALUE, 0, null);
+	}
+
+	/**
+	 * Creates a store with a retention policy.
+	 *
+	 * @param maxCount     maximum number of messages kept
+	 * @param maxBytes     maximum total size of the messages kept
+	 * @param maxAgeMillis maximum age of the messages kept, 0 for no limit
+	 * @param evictions    told about every evicted message, may be null
+	 */
+	MailStore(int maxCount, long maxBytes, long maxAgeMillis, MessageSink evictions) {
+		this.maxCount = maxCount;
+		this.maxBytes = maxBytes;
+		this.maxAgeMillis = maxAgeMillis;
+		this.evictions = evictions;
+		this.limited = maxCount < Integer.MAX_VALUE || maxBytes < Long.MAX_VALUE || maxAgeMillis > 0;
+	}
+
+	/**
+	 * Appends a message. A message appended concurrently with {@link #reset()} may or may not survive the reset.
+	 *
+	 * @param msg the message
+	 */
+	@Override
+	public void deliver(SmtpMessage msg) {
+		Generation generation = current.get();
+		generation.append(msg);
+		evict(generation);
+		if (waiting.get() > 0) {
+			waitLock.lock();
+			try {
+				appended.signalAll();
+			} finally {
+				waitLock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Waits until at least the given number of messages has been appended since start or last reset.
+	 *
+	 * @param count   number of messages to wait for
+	 * @param timeout how long to wait at most
+	 * @param unit    unit of the timeout
+	 * @return a snapshot with the messages kept, fewer than count if the time ran out or older ones were evicted
+	 * @throws InterruptedException when interrupted while waiting
+	 */
+	List<SmtpMessage> await(int count, long timeout, TimeUnit unit) throws InterruptedException {
+		long remaining = unit.toNanos(timeout);
+		waiting.incrementAndGet();
+		try {
+			while (true) {
+				Generation generation = current.get();
+				evict(generation);
+				long end = generation.published.get();
+				if (end >= count || remaining <= 0) {
+					return generation.snapshot(limited);
+				}
+				remaining = awaitAppend(generation, end, remaining);
+			}
+		} finally {
+			waiting.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Waits until a message matching the predicate has been appended since start or last reset. Each message is
+	 * tested only once, and never while holding a lock.
+	 *
+	 * @param predicate condition on the message
+	 * @param timeout   how long to wait at most
+	 * @param unit      unit of the timeout
+	 * @return the first matching message, null if there was none in time
+	 * @throws InterruptedException when interrupted while waiting
+	 */
+	SmtpMessage await(MessagePredicate predicate, long timeout, TimeUnit unit) throws InterruptedException {
+		long remaining = unit.toNanos(timeout);
+		Generation tested = null;
+		long testedCount = 0;
+		waiting.incrementAndGet();
+		try {
+			while (true) {
+				Generation generation = current.get();
+				if (generation != tested) {
+					tested = generation;
+					testedCount = 0;
+				}
+				evict(generation);
+				long end = generation.published.get();
+				for (testedCount = Math.max(testedCount, generation.start); testedCount < end; testedCount++) {
+					SmtpMessage msg = generation.find(testedCount);
+					// null if evicted meanwhile
+					if (msg != null && predicate.test(msg)) {
+						return msg;
+					}
+				}
+				if (remaining <= 0) {
+					return null;
+				}
+				remaining = awaitAppend(generation, testedCount, remaining);
+			}
+		} finally {
+			waiting.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Waits until a condition on something kept along with the store holds, e.g. the number of messages in a
+	 * {@link Mailbox}. The condition is checked once when starting and once whenever messages have been appended,
+	 * not once per message, so waiting does not scan the store.
+	 *
+	 * @param condition checked without holding a lock, must hold by the time a message it waits for is appended here
+	 * @param timeout   how long to wait at most
+	 * @param unit      unit of the timeout
+	 * @return true if the condition holds, false if the time ran out
+	 * @throws InterruptedException when interrupted while waiting
+	 */
+	boolean await(WaitCondition condition, long timeout, TimeUnit unit) throws InterruptedException {
+		long remaining = unit.toNanos(timeout);
+		waiting.incrementAndGet();
+		try {
+			while (true) {
+				Generation generation = current.get();
+				// look before checking, so an append in between is not slept through
+				long end = generation.published.get();
+				if (condition.holds()) {
+					return true;
+				}
+				if (remaining <= 0) {
+					return false;
+				}
+				remaining = awaitAppend(generation, end, remaining);
+			}
+		} finally {
+			waiting.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Blocks until the store has changed since the caller looked at it, or the time runs out.
+	 *
+	 * @param generation the generation the caller looked at
+	 * @param end        number of messages appended when the caller looked
+	 * @param nanos      maximum time to wait
+	 * @return remaining time
+	 */
+	private long awaitAppend(Generation generation, long end, long nanos) throws InterruptedException {
+		waitLock.lock();
+		try {
+			if (current.get() == generation && generation.published.get() == end) {
+				return appended.awaitNanos(nanos);
+			}
+			return nanos;
+		} finally {
+			waitLock.unlock();
+		}
+	}
+
+	/**
+	 * @return an unmodifiable view of the messages kept, not affected by later appends, evictions or resets
+	 */
+	List<SmtpMessage> snapshot() {
+		Generation generation = current.get();
+		evict(generation);
+		return generation.snapshot(limited);
+	}
+
+	/**
+	 * @return number of messages kept
+	 */
+	int size() {
+		Generation generation = current.get();
+		evict(generation);
+		long end = generation.published.get();
+		return (int) (end - Math.min(generation.start, end));
+	}
+
+	/**
+	 * @return number of messages evicted by the retention policy since the store was created
+	 */
+	long getEvicted() {
+		return evicted.get();
+	}
+
+	/**
+	 * Forgets all messages. Snapshots taken before keep their content.
+	 */
+	void reset() {
+		current.set(new Generation());
+	}
+
+	/**
+	 * Evicts the oldest messages until the retention policy is met, unless another thread is already doing so.
+	 * Checking a policy that is met costs a few reads.
+	 */
+	private void evict(Generation generation) {
+		if (!limited || !generation.evicting.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			long oldestAllowed = maxAgeMillis > 0 ? System.currentTimeMillis() - maxAgeMillis : Long.MIN_VALUE;
+			while (true) {
+				long start = generation.start;
+				long end = generation.published.get();
+				if (start >= end) {
+					return;
+				}
+				SmtpMessage oldest = generation.get(start);
+				if (end - start <= maxCount && generation.bytes.get() <= maxBytes && oldest.receivedAt >= oldestAllowed) {
+					return;
+				}
+				generation.bytes.addAndGet(-oldest.size());
+				generation.start = start + 1;
+				// only after moving the start, so a reader finding the slot empty knows it has been evicted
+				generation.clear(start);
+				evicted.incrementAndGet();
+				if (evictions != null) {
+					evictions.deliver(oldest);
+				}
+				if (((start + 1) & CHUNK_MASK) == 0) {
+					generation.dropChunksBefore((start + 1) >>> CHUNK_SHIFT);
+				}
+			}
+		} finally {
+			generation.evicting.set(false);
+		}
+	}
+
+	/**
+	 * Something to {@link #await(WaitCondition, long, TimeUnit) wait} for.
+	 */
+	interface WaitCondition {
+		/**
+		 * @return true once the waiting can end
+		 */
+		boolean holds();
+	}
+
+	/**
+	 * All messages received between two resets. Messages are numbered from 0 on, in the order they were appended.
+	 */
+	private static final class Generation {
+		/** Number of slots handed out to appending threads. */
+		private final AtomicLong reserved = new AtomicLong();
+		/** Number of slots visible to readers, all slots below are filled. */
+		private final AtomicLong published = new AtomicLong();
+		/** Number of the oldest message kept, only moved by the thread evicting. */
+		private volatile long start;
+		/** Total size of the messages kept. */
+		private final AtomicLong bytes = new AtomicLong();
+		/** Set while a thread is evicting. */
+		private final AtomicBoolean evicting = new AtomicBoolean();
+		/** Chunk directory, copied on write when a chunk is added or dropped. */
+		private final AtomicReference<Directory> directory = new AtomicReference<>(new Directory(0, new Object[4]));
+
+		private void append(SmtpMessage msg) {
+			if (msg.receivedAt == 0) {
+				msg.receivedAt = System.currentTimeMillis();
+			}
+			bytes.addAndGet(msg.size());
+			long index = reserved.getAndIncrement();
+			chunk(index).set((int) index & CHUNK_MASK, msg);
+			publish();
+		}
+
+		private SmtpMessage get(long index) {
+			return directory.get().get(index);
+		}
+
+		/**
+		 * @return the message with the given number, null if it has been evicted
+		 */
+		private SmtpMessage find(long index) {
+			Directory current = directory.get();
+			return index >>> CHUNK_SHIFT < current.first ? null : current.get(index);
+		}
+
+		/**
+		 * Releases an evicted message, only called by the thread evicting.
+		 */
+		private void clear(long index) {
+			Directory current = directory.get();
+			chunkAt(current.chunks, (int) ((index >>> CHUNK_SHIFT) - current.first)).set((int) index & CHUNK_MASK, null);
+		}
+
+		/**
+		 * Gets the chunk holding the given index, creating it if necessary.
+		 */
+		private AtomicReferenceArray<SmtpMessage> chunk(long index) {
+			long chunkNumber = index >>> CHUNK_SHIFT;
+			while (true) {
+				Directory current = directory.get();
+				int slot = (int) (chunkNumber - current.first);
+				if (slot < current.chunks.length && current.chunks[slot] != null) {
+					return chunkAt(current.chunks, slot);
+				}
+				Object[] grown = Arrays.copyOf(current.chunks, Math.max(current.chunks.length, 2 * (slot + 1)));
+				grown[slot] = new AtomicReferenceArray<SmtpMessage>(CHUNK_SIZE);
+				directory.compareAndSet(current, new Directory(current.first, grown));
+			}
+		}
+
+		/**
+		 * Removes the chunks holding only evicted messages from the directory, so they can be collected.
+		 */
+		private void dropChunksBefore(long chunkNumber) {
+			while (true) {
+				Directory current = directory.get();
+				if (current.first >= chunkNumber) {
+					return;
+				}
+				int dropped = (int) (chunkNumber - current.first);
+				Object[] kept = Arrays.copyOfRange(current.chunks, dropped, Math.max(current.chunks.length, dropped + 4));
+				if (directory.compareAndSet(current, new Directory(chunkNumber, kept))) {
+					return;
+				}
+			}
+		}
+
+		/**
+		 * Moves the published mark over all filled slots. Every appending thread calls this after filling its slot,
+		 * so the mark stops at a slot still being filled and the thread filling it takes over.
+		 */
+		private void publish() {
+			while (true) {
+				long mark = published.get();
+				if (mark >= reserved.get()) {
+					return;
+				}
+				Directory current = directory.get();
+				int slot = (int) ((mark >>> CHUNK_SHIFT) - current.first);
+				if (slot >= current.chunks.length || current.chunks[slot] == null
+						|| chunkAt(current.chunks, slot).get((int) mark & CHUNK_MASK) == null) {
+					return;
+				}
+				published.compareAndSet(mark, mark + 1);
+			}
+		}
+
+		/**
+		 * @param copy true to copy the messages, needed once messages are evicted and their slots cleared
+		 */
+		private List<SmtpMessage> snapshot(boolean copy) {
+			// read the end first: the directory read afterwards contains all chunks below it. Read the start last:
+			// the directory only lacks chunks below the start at the time it was read.
+			long end = published.get();
+			Directory current = directory.get();
+			long first = Math.min(start, end);
+			if (!copy) {
+				return new Snapshot(current, first, end);
+			}
+			SmtpMessage[] messages = new SmtpMessage[(int) (end - first)];
+			for (int i = 0; i < messages.length; i++) {
+				messages[i] = current.get(first + i);
+			}
+			// a slot is cleared after the start has been moved over it: skip what was evicted while copying
+			long kept = Math.min(start, end);
+			return Collections.unmodifiableList(Arrays.asList(messages).subList((int) (Math.max(kept, first) - first),
+					messages.length));
+		}
+	}
+
+	/**
+	 * The chunks of a generation, starting with the chunk holding the oldest message kept.
+	 */
+	private static final class Directory {
+		/** Number of the first chunk. */
+		private final long first;
+		/** The chunks, AtomicReferenceArrays; null where not yet created. */
+		private final Object[] chunks;
+
+		private Directory(long first, Object[] chunks) {
+			this.first = first;
+			this.chunks = chunks;
+		}
+
+		private SmtpMessage get(long index) {
+			return chunkAt(chunks, (int) ((index >>> CHUNK_SHIFT) - first)).get((int) index & CHUNK_MASK);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static AtomicReferenceArray<SmtpMessage> chunkAt(Object[] chunks, int slot) {
+		return (AtomicReferenceArray<SmtpMessage>) chunks[slot];
+	}
+
+	/**
+	 * Fixed view on a range of messages of a generation whose slots are never cleared.
+	 */
+	private static final class Snapshot extends AbstractList<SmtpMessage> implements RandomAccess {
+		private final Directory directory;
+		/** Number of the first message in the view. */
+		private final long start;
+		/** Number of the message behind the view. */
+		private final long end;
+
+		private Snapshot(Directory directory, long start, long end) {
+			this.directory = directory;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		public SmtpMessage get(int index) {
+			if (index < 0 || index >= size()) {
+				throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+			}
+			return directory.get(start + index);
+		}
+
+		@Override
+		public int size() {
+			return (int) (end - start);
+		}
+	}
+}
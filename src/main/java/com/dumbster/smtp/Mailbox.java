@@ -0,0 +1,99 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2016 Joachim Nicolay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The messages a server received for one recipient or one recipient domain, as given with RCPT TO. Tests running in
+ * parallel against one server can each use a mailbox of their own: they only see their own messages, and resetting
+ * a mailbox leaves the others alone. Mailboxes do not lock each other out.
+ * <p>
+ * A message sent to several recipients is in each of their mailboxes. Mailboxes follow the retention policy and
+ * {@link SimpleSmtpServer#reset()} of their server.
+ *
+ * @see SimpleSmtpServer#getMailbox(String)
+ * @see SimpleSmtpServer#getDomainMailbox(String)
+ */
+public final class Mailbox {
+	private final MessageIndex index;
+	private final MessageIndex.Key key;
+	private final String name;
+	/** The store of the server, to wait for messages. */
+	private final MailStore store;
+
+	Mailbox(MessageIndex index, MessageIndex.Key key, String name, MailStore store) {
+		this.index = index;
+		this.key = key;
+		this.name = name;
+		this.store = store;
+	}
+
+	/**
+	 * @return the recipient address or domain of this mailbox
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return the messages in this mailbox, oldest first; a copy not affected by further messages
+	 */
+	public List<SmtpMessage> getReceivedEmails() {
+		return index.find(key, name);
+	}
+
+	/**
+	 * @return number of messages in this mailbox
+	 */
+	public int getReceivedEmailCount() {
+		return index.count(key, name);
+	}
+
+	/**
+	 * Waits until this mailbox holds at least the given number of messages.
+	 *
+	 * @param count   number of messages to wait for
+	 * @param timeout how long to wait at most
+	 * @param unit    unit of the timeout
+	 * @return the messages in this mailbox, fewer than count if the time ran out
+	 * @throws InterruptedException when interrupted while waiting
+	 */
+	public List<SmtpMessage> awaitEmails(final int count, long timeout, TimeUnit unit) throws InterruptedException {
+		// woken by every message the server receives, but only counts the own messages, not those of the store
+		store.await(new MailStore.WaitCondition() {
+			@Override
+			public boolean holds() {
+				return getReceivedEmailCount() >= count;
+			}
+		}, timeout, unit);
+		return getReceivedEmails();
+	}
+
+	/**
+	 * Forgets the messages in this mailbox. Other mailboxes and the messages of the server are not affected.
+	 */
+	public void reset() {
+		index.clear(key, name);
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+}
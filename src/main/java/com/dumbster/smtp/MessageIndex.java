@@ -0,0 +1,250 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2016 Joachim Nicolay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Indexes the received messages by envelope recipient, recipient domain, envelope sender, Subject and Message-ID, so
+ * tests can look up their messages without scanning all of them. The indexes are maintained when a message arrives;
+ * only the two headers needed are looked up in the raw header block, the other headers stay unparsed.
+ * <p>
+ * Each key has its own list of messages and its own lock, so delivering, querying and clearing only contend on the
+ * same key. This makes the lists usable as independent {@link Mailbox}es. Addresses and domains are compared
+ * ignoring case.
+ */
+class MessageIndex implements MessageSink {
+
+	/** What the messages are indexed by. */
+	enum Key {
+		RECIPIENT, DOMAIN, SENDER, SUBJECT, MESSAGE_ID;
+
+		private String normalize(String value) {
+			if (value == null || this == SUBJECT || this == MESSAGE_ID) {
+				return value;
+			}
+			return value.toLowerCase(Locale.ROOT);
+		}
+	}
+
+	/** The indexes, replaced on reset. */
+	private final AtomicReference<Indexes> current = new AtomicReference<>(new Indexes());
+
+	/**
+	 * Adds a message to the indexes. A message added concurrently with {@link #reset()} may or may not survive the
+	 * reset.
+	 *
+	 * @param msg the message
+	 */
+	@Override
+	public void deliver(SmtpMessage msg) {
+		Indexes indexes = current.get();
+		List<String> recipients = msg.getEnvelopeRecipients();
+		for (int i = 0; i < recipients.size(); i++) {
+			add(indexes, Key.RECIPIENT, recipients.get(i), msg);
+			if (isFirstOfDomain(recipients, i)) {
+				add(indexes, Key.DOMAIN, domain(recipients.get(i)), msg);
+			}
+		}
+		add(indexes, Key.SENDER, msg.getEnvelopeSender(), msg);
+		add(indexes, Key.SUBJECT, msg.findHeaderValue("Subject"), msg);
+		add(indexes, Key.MESSAGE_ID, msg.findHeaderValue("Message-ID"), msg);
+	}
+
+	/**
+	 * Removes a message evicted from the store. Evicted messages are the oldest ones, so they are found at the head of
+	 * their lists.
+	 *
+	 * @param msg the message
+	 */
+	void remove(SmtpMessage msg) {
+		Indexes indexes = current.get();
+		List<String> recipients = msg.getEnvelopeRecipients();
+		for (int i = 0; i < recipients.size(); i++) {
+			remove(indexes, Key.RECIPIENT, recipients.get(i), msg);
+			if (isFirstOfDomain(recipients, i)) {
+				remove(indexes, Key.DOMAIN, domain(recipients.get(i)), msg);
+			}
+		}
+		remove(indexes, Key.SENDER, msg.getEnvelopeSender(), msg);
+		remove(indexes, Key.SUBJECT, msg.findHeaderValue("Subject"), msg);
+		remove(indexes, Key.MESSAGE_ID, msg.findHeaderValue("Message-ID"), msg);
+	}
+
+	/**
+	 * @param key   what to look up by
+	 * @param value the value looked up
+	 * @return copy of the messages with this value, in the order they were received
+	 */
+	List<SmtpMessage> find(Key key, String value) {
+		Entries entries = get(key, value);
+		if (entries == null) {
+			return Collections.emptyList();
+		}
+		synchronized (entries) {
+			return Collections.unmodifiableList(new ArrayList<>(entries.messages));
+		}
+	}
+
+	/**
+	 * @param key   what to look up by
+	 * @param value the value looked up
+	 * @return number of messages with this value
+	 */
+	int count(Key key, String value) {
+		Entries entries = get(key, value);
+		if (entries == null) {
+			return 0;
+		}
+		synchronized (entries) {
+			return entries.messages.size();
+		}
+	}
+
+	/**
+	 * Forgets the messages with the given value, the other keys and values are not affected.
+	 *
+	 * @param key   what to look up by
+	 * @param value the value looked up
+	 */
+	void clear(Key key, String value) {
+		ConcurrentMap<String, Entries> index = current.get().index(key);
+		String normalized = key.normalize(value);
+		Entries entries = normalized == null ? null : index.get(normalized);
+		if (entries != null) {
+			synchronized (entries) {
+				entries.messages.clear();
+				entries.removed = true;
+				index.remove(normalized, entries);
+			}
+		}
+	}
+
+	/**
+	 * Forgets all messages.
+	 */
+	void reset() {
+		current.set(new Indexes());
+	}
+
+	private Entries get(Key key, String value) {
+		String normalized = key.normalize(value);
+		return normalized == null ? null : current.get().index(key).get(normalized);
+	}
+
+	/**
+	 * @return the part of the address after the @, null if there is none
+	 */
+	private static String domain(String address) {
+		int at = address == null ? -1 : address.lastIndexOf('@');
+		return at < 0 ? null : address.substring(at + 1);
+	}
+
+	/**
+	 * @return true unless an earlier recipient has the same domain, so a message is listed once per domain
+	 */
+	private static boolean isFirstOfDomain(List<String> recipients, int index) {
+		String domain = Key.DOMAIN.normalize(domain(recipients.get(index)));
+		for (int i = 0; i < index; i++) {
+			if (domain != null && domain.equals(Key.DOMAIN.normalize(domain(recipients.get(i))))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static void add(Indexes indexes, Key key, String value, SmtpMessage msg) {
+		String normalized = key.normalize(value);
+		if (normalized == null) {
+			return;
+		}
+		ConcurrentMap<String, Entries> index = indexes.index(key);
+		while (true) {
+			Entries entries = index.get(normalized);
+			if (entries == null) {
+				entries = new Entries();
+				Entries present = index.putIfAbsent(normalized, entries);
+				if (present != null) {
+					entries = present;
+				}
+			}
+			synchronized (entries) {
+				if (!entries.removed) {
+					// a recipient given twice still lists the message once
+					if (entries.messages.peekLast() != msg) {
+						entries.messages.addLast(msg);
+					}
+					return;
+				}
+			}
+			// emptied and removed in the meantime, make sure it is gone and start over
+			index.remove(normalized, entries);
+		}
+	}
+
+	private static void remove(Indexes indexes, Key key, String value, SmtpMessage msg) {
+		String normalized = key.normalize(value);
+		if (normalized == null) {
+			return;
+		}
+		ConcurrentMap<String, Entries> index = indexes.index(key);
+		Entries entries = index.get(normalized);
+		if (entries == null) {
+			return;
+		}
+		synchronized (entries) {
+			entries.messages.removeFirstOccurrence(msg);
+			if (entries.messages.isEmpty()) {
+				entries.removed = true;
+				index.remove(normalized, entries);
+			}
+		}
+	}
+
+	/**
+	 * The indexes of one generation of messages.
+	 */
+	private static final class Indexes {
+		private final List<ConcurrentMap<String, Entries>> indexes = new ArrayList<>();
+
+		private Indexes() {
+			for (int i = 0; i < Key.values().length; i++) {
+				indexes.add(new ConcurrentHashMap<String, Entries>());
+			}
+		}
+
+		private ConcurrentMap<String, Entries> index(Key key) {
+			return indexes.get(key.ordinal());
+		}
+	}
+
+	/**
+	 * Messages under one key, guarded by itself.
+	 */
+	private static final class Entries {
+		private final ArrayDeque<SmtpMessage> messages = new ArrayDeque<>(2);
+		/** Set once the list has become empty and is no longer in the index. */
+		private boolean removed;
+	}
+}
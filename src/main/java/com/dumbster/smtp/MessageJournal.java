@@ -0,0 +1,494 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2016 Joachim Nicolay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Appends every received message to a file, so the messages survive a restart of the server. On start up, the
+ * messages in the file are read back.
+ * <p>
+ * The sessions only encode their message into a record; a single writer thread appends all the records pending at
+ * once and forces them to disk with one fsync, so concurrent sessions share the cost of syncing (group commit). With
+ * a sync interval of 0, a session waits for its record to be synced before the client is told that the message has
+ * been accepted; sessions that must not block are called back instead. With a longer interval, sessions do not wait and the file is synced at most that often: a crash of
+ * the machine may lose the messages of the last interval, a crash of the JVM only the records not yet written.
+ * <p>
+ * The file starts with {@link #MAGIC} and a version byte, followed by the records. A record is the length of its
+ * content and a CRC32 of it as ints, and the content: the time received as a long, the envelope sender, the number of
+ * recipients as an int and the recipients, then the header block and the body as received. Strings are an int length
+ * followed by UTF-8 bytes, -1 for null; byte blocks are an int length followed by the bytes. A record cut short by a
+ * crash fails its check and is dropped, along with anything after it.
+ */
+@Slf4j
+class MessageJournal implements MessageSink, AsyncMessageSink {
+	/** Marks a journal file. */
+	private static final byte[] MAGIC = {'D', 'J', 'N', 'L'};
+	/** Version of the record format. */
+	private static final byte VERSION = 1;
+	/** Length of the file header. */
+	private static final int FILE_HEADER_LENGTH = MAGIC.length + 1;
+	/** Length and checksum before the content of each record. */
+	private static final int RECORD_HEADER_LENGTH = 8;
+	/** How long to wait for the writer thread when closing. */
+	private static final int CLOSE_TIMEOUT = 5000;
+
+	private final Path file;
+	private final long syncIntervalNanos;
+	private final FileChannel channel;
+	private final Thread writer;
+
+	/** Encoded records not yet written, guarded by this. */
+	private List<ByteBuffer> pending = new ArrayList<>();
+	/** Number of records handed to the journal, guarded by this. */
+	private long appended;
+	/** Number of records written and synced as required, guarded by this. */
+	private long committed;
+	/** Callbacks of records not yet committed, in the order of the records, guarded by this. */
+	private final Queue<Waiter> waiters = new ArrayDeque<>();
+	/** Set when the file is to be emptied, guarded by this. */
+	private boolean truncateRequested;
+	/** Set once writing has failed, no more records are taken from then on, guarded by this. */
+	private IOException failure;
+	/** Guarded by this. */
+	private boolean closed;
+
+	/**
+	 * Opens the journal, creating the file if there is none, but does not start writing yet. Read back the messages
+	 * first with {@link #replay(MessageSink)}.
+	 *
+	 * @param file              the journal file
+	 * @param syncIntervalNanos 0 to sync every message before it is acknowledged, otherwise how often to sync
+	 * @param threadName        name of the writer thread
+	 * @throws IOException when the file cannot be opened, or is not a journal
+	 */
+	MessageJournal(Path file, long syncIntervalNanos, String threadName) throws IOException {
+		this.file = file;
+		this.syncIntervalNanos = syncIntervalNanos;
+		this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			if (channel.tryLock() == null) {
+				throw new IOException("journal " + file + " is in use by another process");
+			}
+		} catch (IOException | OverlappingFileLockException e) {
+			channel.close();
+			throw e instanceof IOException ? (IOException) e
+					: new IOException("journal " + file + " is in use by another server", e);
+		}
+		this.writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				write();
+			}
+		}, threadName);
+		this.writer.setDaemon(true);
+	}
+
+	/**
+	 * Reads back the messages in the journal, then starts appending to it. A damaged end of the file is cut off.
+	 *
+	 * @param sink receives the messages, in the order they were received
+	 * @return number of messages read back
+	 * @throws IOException when reading the file fails, or it is not a journal
+	 */
+	long replay(MessageSink sink) throws IOException {
+		long count = 0;
+		try {
+			long end = channel.size();
+			if (end == 0) {
+				ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_LENGTH);
+				header.put(MAGIC).put(VERSION).flip();
+				writeFully(header, 0);
+				channel.force(true);
+			} else {
+				ByteBuffer header = readFully(0, FILE_HEADER_LENGTH, end);
+				if (header == null || !isJournalHeader(header)) {
+					throw new IOException(file + " is not a message journal");
+				}
+				long position = FILE_HEADER_LENGTH;
+				CRC32 crc = new CRC32();
+				while (position < end) {
+					ByteBuffer recordHeader = readFully(position, RECORD_HEADER_LENGTH, end);
+					int length = recordHeader == null ? -1 : recordHeader.getInt();
+					ByteBuffer content = length < 0 ? null : readFully(position + RECORD_HEADER_LENGTH, length, end);
+					if (content != null) {
+						crc.reset();
+						crc.update(content.array(), 0, length);
+					}
+					if (content == null || (int) crc.getValue() != recordHeader.getInt()) {
+						log.warn("dropping damaged end of journal {} at {} of {} bytes", file, position, end);
+						channel.truncate(position);
+						channel.force(true);
+						break;
+					}
+					sink.deliver(decode(content));
+					count++;
+					position += RECORD_HEADER_LENGTH + length;
+				}
+			}
+			channel.position(channel.size());
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		log.info("read back {} messages from journal {}", count, file);
+		writer.start();
+		return count;
+	}
+
+	/**
+	 * Appends a message. With a sync interval of 0, waits until it is on disk.
+	 *
+	 * @param msg a completely received message
+	 * @throws IllegalStateException when the journal has failed or is closed, so the message cannot be kept
+	 */
+	@Override
+	public void deliver(SmtpMessage msg) {
+		ByteBuffer record = encode(stamp(msg));
+		synchronized (this) {
+			IOException unavailable = unavailable();
+			if (unavailable != null) {
+				throw new IllegalStateException(unavailable.getMessage(), unavailable);
+			}
+			pending.add(record);
+			long sequence = ++appended;
+			notifyAll();
+			if (syncIntervalNanos > 0) {
+				return;
+			}
+			boolean interrupted = false;
+			while (committed < sequence && failure == null) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+			if (committed < sequence) {
+				throw new IllegalStateException(failure.getMessage(), failure);
+			}
+		}
+	}
+
+	/**
+	 * Appends a message without waiting. With a sync interval of 0, the callback is called from the writer thread once
+	 * the message is on disk, otherwise right away.
+	 *
+	 * @param msg      a completely received message
+	 * @param callback told whether the message has been journaled
+	 */
+	@Override
+	public void deliver(SmtpMessage msg, Callback callback) {
+		ByteBuffer record = encode(stamp(msg));
+		IOException unavailable;
+		synchronized (this) {
+			unavailable = unavailable();
+			if (unavailable == null) {
+				pending.add(record);
+				long sequence = ++appended;
+				notifyAll();
+				if (syncIntervalNanos == 0) {
+					waiters.add(new Waiter(sequence, callback));
+					return;
+				}
+			}
+		}
+		callback.delivered(unavailable);
+	}
+
+	private static SmtpMessage stamp(SmtpMessage msg) {
+		if (msg.receivedAt == 0) {
+			msg.receivedAt = System.currentTimeMillis();
+		}
+		return msg;
+	}
+
+	/**
+	 * @return why no more records are taken, null if they are
+	 */
+	private IOException unavailable() {
+		if (failure != null) {
+			return failure;
+		}
+		return closed ? new IOException("journal " + file + " is closed") : null;
+	}
+
+	/**
+	 * Empties the journal, so the messages received so far are not read back on the next start. Messages appended
+	 * concurrently may or may not be kept.
+	 */
+	synchronized void reset() {
+		pending.clear();
+		committed = appended;
+		truncateRequested = true;
+		notifyAll();
+	}
+
+	/**
+	 * Writes and syncs the pending records, then stops the writer thread and closes the file.
+	 */
+	void close() {
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			notifyAll();
+		}
+		try {
+			writer.join(CLOSE_TIMEOUT);
+		} catch (InterruptedException e) {
+			log.warn("interrupted when waiting for journal to be written", e);
+			Thread.currentThread().interrupt();
+		}
+		try {
+			channel.close();
+		} catch (IOException e) {
+			log.warn("trouble closing journal {}", file, e);
+		}
+	}
+
+	/**
+	 * Main loop of the writer thread: takes all pending records, writes them with one gathering write and syncs them
+	 * when due.
+	 */
+	private void write() {
+		long lastSync = System.nanoTime();
+		boolean unsynced = false;
+		while (true) {
+			List<ByteBuffer> batch;
+			long sequence;
+			boolean truncate;
+			boolean closing;
+			synchronized (this) {
+				while (pending.isEmpty() && !truncateRequested && !closed && !(unsynced && syncDue(lastSync))) {
+					try {
+						if (unsynced) {
+							long remaining = syncIntervalNanos - (System.nanoTime() - lastSync);
+							TimeUnit.NANOSECONDS.timedWait(this, Math.max(remaining, 1));
+						} else {
+							wait();
+						}
+					} catch (InterruptedException e) {
+						// only closing stops the writer
+					}
+				}
+				batch = pending;
+				pending = new ArrayList<>();
+				sequence = appended;
+				truncate = truncateRequested;
+				truncateRequested = false;
+				closing = closed;
+			}
+			try {
+				if (truncate) {
+					channel.truncate(FILE_HEADER_LENGTH);
+					channel.position(FILE_HEADER_LENGTH);
+					unsynced = true;
+				}
+				if (!batch.isEmpty()) {
+					ByteBuffer[] buffers = batch.toArray(new ByteBuffer[batch.size()]);
+					long remaining = 0;
+					for (ByteBuffer buffer : buffers) {
+						remaining += buffer.remaining();
+					}
+					while (remaining > 0) {
+						remaining -= channel.write(buffers);
+					}
+					unsynced = true;
+				}
+				if (unsynced && (syncIntervalNanos == 0 || closing || syncDue(lastSync))) {
+					channel.force(false);
+					lastSync = System.nanoTime();
+					unsynced = false;
+				}
+			} catch (IOException e) {
+				log.error("could not write journal {}, messages are no longer accepted", file, e);
+				List<Waiter> failed;
+				synchronized (this) {
+					failure = e;
+					failed = new ArrayList<>(waiters);
+					waiters.clear();
+					notifyAll();
+				}
+				for (Waiter waiter : failed) {
+					waiter.callback.delivered(e);
+				}
+				return;
+			}
+			List<Waiter> done = new ArrayList<>();
+			boolean finished;
+			synchronized (this) {
+				committed = Math.max(committed, sequence);
+				while (!waiters.isEmpty() && waiters.peek().sequence <= committed) {
+					done.add(waiters.poll());
+				}
+				notifyAll();
+				finished = closing && pending.isEmpty();
+			}
+			for (Waiter waiter : done) {
+				waiter.callback.delivered(null);
+			}
+			if (finished) {
+				return;
+			}
+		}
+	}
+
+	private boolean syncDue(long lastSync) {
+		return System.nanoTime() - lastSync >= syncIntervalNanos;
+	}
+
+	/**
+	 * @return the record of a message, ready to be written
+	 */
+	static ByteBuffer encode(SmtpMessage msg) {
+		byte[] sender = utf8(msg.getEnvelopeSender());
+		List<String> recipients = msg.getEnvelopeRecipients();
+		byte[][] recipientBytes = new byte[recipients.size()][];
+		int length = 8 + 4 + (sender == null ? 0 : sender.length) + 4;
+		for (int i = 0; i < recipientBytes.length; i++) {
+			recipientBytes[i] = utf8(recipients.get(i));
+			length += 4 + recipientBytes[i].length;
+		}
+		ByteBuffer headers = msg.rawHeaders();
+		ByteBuffer body = msg.rawBody();
+		length += 4 + headers.remaining() + 4 + body.remaining();
+
+		ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_LENGTH + length);
+		record.putInt(length).putInt(0);
+		record.putLong(msg.receivedAt);
+		putBytes(record, sender);
+		record.putInt(recipientBytes.length);
+		for (byte[] recipient : recipientBytes) {
+			putBytes(record, recipient);
+		}
+		record.putInt(headers.remaining()).put(headers);
+		record.putInt(body.remaining()).put(body);
+		CRC32 crc = new CRC32();
+		crc.update(record.array(), RECORD_HEADER_LENGTH, length);
+		record.putInt(4, (int) crc.getValue());
+		record.flip();
+		return record;
+	}
+
+	/**
+	 * @param content the content of a record, without length and checksum
+	 * @return the message
+	 */
+	static SmtpMessage decode(ByteBuffer content) {
+		long receivedAt = content.getLong();
+		String sender = getString(content);
+		int recipientCount = content.getInt();
+		List<String> recipients = new ArrayList<>(recipientCount);
+		for (int i = 0; i < recipientCount; i++) {
+			recipients.add(getString(content));
+		}
+		byte[] headers = getBytes(content);
+		byte[] body = getBytes(content);
+		return SmtpMessage.restore(sender, recipients, headers, body, receivedAt);
+	}
+
+	private static byte[] utf8(String s) {
+		return s == null ? null : s.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static void putBytes(ByteBuffer target, byte[] bytes) {
+		if (bytes == null) {
+			target.putInt(-1);
+		} else {
+			target.putInt(bytes.length).put(bytes);
+		}
+	}
+
+	private static String getString(ByteBuffer source) {
+		byte[] bytes = getBytes(source);
+		return bytes == null ? null : new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static byte[] getBytes(ByteBuffer source) {
+		int length = source.getInt();
+		if (length < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		source.get(bytes);
+		return bytes;
+	}
+
+	private static boolean isJournalHeader(ByteBuffer header) {
+		for (byte b : MAGIC) {
+			if (header.get() != b) {
+				return false;
+			}
+		}
+		return header.get() == VERSION;
+	}
+
+	/**
+	 * @return the bytes at the given position, null if the file ends before
+	 */
+	private ByteBuffer readFully(long position, int length, long end) throws IOException {
+		if (end - position < length) {
+			return null;
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				return null;
+			}
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	private void writeFully(ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer, position + buffer.position());
+		}
+	}
+
+	/**
+	 * A callback waiting for its record to be committed.
+	 */
+	private static final class Waiter {
+		private final long sequence;
+		private final Callback callback;
+
+		private Waiter(long sequence, Callback callback) {
+			this.sequence = sequence;
+			this.callback = callback;
+		}
+	}
+}
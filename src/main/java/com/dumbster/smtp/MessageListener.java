@@ -0,0 +1,32 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2016 Joachim Nicolay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+/**
+ * Gets notified about every message the server receives.
+ *
+ * @see SimpleSmtpServer#addMessageListener(MessageListener)
+ */
+public interface MessageListener {
+	/**
+	 * Called on the server's listener thread, one message after the other, in the order the messages were received.
+	 * The session that received the message does not wait for this.
+	 *
+	 * @param msg the received message
+	 */
+	void messageReceived(SmtpMessage msg);
+}
@@ -0,0 +1,31 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2016 Joachim Nicolay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+/**
+ * Condition on a received message. Has the shape of {@code java.util.function.Predicate}, so on Java 8 and later a
+ * lambda can be used, e.g. {@code msg -> "Test".equals(msg.getHeaderValue("Subject"))}.
+ *
+ * @see SimpleSmtpServer#awaitEmail(MessagePredicate, long, java.util.concurrent.TimeUnit)
+ */
+public interface MessagePredicate {
+	/**
+	 * @param msg a received message
+	 * @return true if the message matches
+	 */
+	boolean test(SmtpMessage msg);
+}
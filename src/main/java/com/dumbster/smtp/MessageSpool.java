@@ -0,0 +1,133 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2016 Joachim Nicolay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Keeps message content outside of the heap, in memory-mapped segment files. The operating system pages the content
+ * in and out as needed, so the amount of mail held is limited by disk space rather than by the heap.
+ * <p>
+ * Segment files are deleted right after they have been mapped. Their space stays in use as long as a message
+ * refers to the segment, and is given back once the garbage collector has released the mapping.
+ */
+@Slf4j
+class MessageSpool {
+	/** Default size of the segment files. */
+	static final int DEFAULT_SEGMENT_SIZE = 64 << 20;
+
+	private final Path directory;
+	private final int segmentSize;
+
+	/** Segment currently being filled, guarded by this. */
+	private ByteBuffer segment;
+	/** First free byte in the {@link #segment}, guarded by this. */
+	private int segmentPosition;
+
+	/**
+	 * @param directory   where to create the segment files
+	 * @param segmentSize size of the segment files, larger content gets a file of its own
+	 */
+	MessageSpool(Path directory, int segmentSize) {
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+	}
+
+	/**
+	 * Moves the body of a message into the spool. If that fails, the body stays on the heap.
+	 *
+	 * @param msg a completely received message
+	 */
+	void spool(SmtpMessage msg) {
+		try {
+			msg.moveBodyTo(this);
+		} catch (IOException e) {
+			log.warn("could not spool message, keeping it on the heap", e);
+		}
+	}
+
+	/**
+	 * Copies content into the spool. Only finding the space is done under a lock, concurrent writers copy in
+	 * parallel.
+	 *
+	 * @param data   buffer holding the content
+	 * @param offset start of the content in the buffer
+	 * @param length length of the content
+	 * @return a buffer holding exactly the content, to be read with absolute gets or through a duplicate
+	 * @throws IOException when a segment file cannot be created
+	 */
+	ByteBuffer write(byte[] data, int offset, int length) throws IOException {
+		ByteBuffer target = allocate(length);
+		int start = target.position();
+		target.put(data, offset, length);
+		target.position(start);
+		return target.slice();
+	}
+
+	/**
+	 * Reserves space for content.
+	 *
+	 * @return buffer on the reserved space, positioned at its start
+	 */
+	private ByteBuffer allocate(int length) throws IOException {
+		ByteBuffer reserved;
+		int start;
+		synchronized (this) {
+			if (length > segmentSize) {
+				reserved = map(length);
+				start = 0;
+			} else {
+				if (segment == null || segmentSize - segmentPosition < length) {
+					segment = map(segmentSize);
+					segmentPosition = 0;
+				}
+				reserved = segment;
+				start = segmentPosition;
+				segmentPosition += length;
+			}
+		}
+		ByteBuffer target = reserved.duplicate();
+		target.limit(start + length);
+		target.position(start);
+		return target;
+	}
+
+	/**
+	 * Creates and maps a new segment file, then deletes it again.
+	 */
+	private ByteBuffer map(int size) throws IOException {
+		Path file = Files.createTempFile(directory, "dumbster-", ".spool");
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+		} finally {
+			try {
+				Files.delete(file);
+			} catch (IOException e) {
+				// some platforms do not delete mapped files
+				log.debug("could not delete spool file {} right away", file, e);
+				file.toFile().deleteOnExit();
+			}
+		}
+	}
+}
@@ -0,0 +1,378 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2016 Joachim Nicolay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A MIME entity of a received message (RFC 2045, 2046): the message itself or one of its parts. A part is a view on
+ * the raw bytes of the message, nothing is copied or decoded up front. The parts of a multipart entity are found with
+ * a single pass over its content the first time they are asked for, and content is only decoded while it is read from
+ * {@link #getInputStream()}. So checking a single attachment of a large message costs little more than reading that
+ * attachment.
+ * <p>
+ * Header values are returned unfolded, but encoded words (RFC 2047) are not decoded.
+ *
+ * @see SmtpMessage#getMimePart()
+ */
+public final class MimePart {
+	private static final String DEFAULT_CONTENT_TYPE = "text/plain";
+
+	/** Header lines as received, each one followed by CRLF. */
+	private final ByteBuffer headers;
+	/** The content, still encoded. */
+	private final ByteBuffer content;
+	/** The parts, found on first use. */
+	private volatile List<MimePart> parts;
+
+	/**
+	 * @param headers header lines, each one followed by CRLF, positioned at 0
+	 * @param content the encoded content, positioned at 0
+	 */
+	MimePart(ByteBuffer headers, ByteBuffer content) {
+		this.headers = headers;
+		this.content = content;
+	}
+
+	/**
+	 * @param name header name, compared ignoring case
+	 * @return value of the first header with this name, unfolded and trimmed, null if there is none
+	 */
+	public String getHeaderValue(String name) {
+		int end = headers.limit();
+		int pos = 0;
+		while (pos < end) {
+			int lineEnd = indexOfCrlf(headers, pos, end);
+			int colon = indexOf(headers, ':', pos, lineEnd);
+			if (colon > 0 && matches(headers, pos, colon, name)) {
+				StringBuilder value = new StringBuilder(ascii(headers, colon + 1, lineEnd));
+				// continuation lines start with whitespace
+				while (lineEnd + 2 < end && isWhitespace(headers.get(lineEnd + 2))) {
+					int next = lineEnd + 2;
+					lineEnd = indexOfCrlf(headers, next, end);
+					value.append(' ').append(ascii(headers, next, lineEnd).trim());
+				}
+				return value.toString().trim();
+			}
+			pos = lineEnd + 2;
+		}
+		return null;
+	}
+
+	/**
+	 * @return the media type in lower case without parameters, e.g. "text/plain", which is also the default
+	 */
+	public String getContentType() {
+		String value = getHeaderValue("Content-Type");
+		if (value == null) {
+			return DEFAULT_CONTENT_TYPE;
+		}
+		int semicolon = value.indexOf(';');
+		String type = (semicolon < 0 ? value : value.substring(0, semicolon)).trim().toLowerCase(Locale.ROOT);
+		return type.isEmpty() ? DEFAULT_CONTENT_TYPE : type;
+	}
+
+	/**
+	 * @param name parameter name, compared ignoring case, e.g. "charset"
+	 * @return value of the parameter of the Content-Type header without quotes, null if there is none
+	 */
+	public String getContentTypeParameter(String name) {
+		return parameter(getHeaderValue("Content-Type"), name);
+	}
+
+	/**
+	 * @return the file name of an attachment, from the Content-Disposition or else the Content-Type header, null if
+	 * there is none
+	 */
+	public String getFileName() {
+		String fileName = parameter(getHeaderValue("Content-Disposition"), "filename");
+		return fileName != null ? fileName : getContentTypeParameter("name");
+	}
+
+	/**
+	 * @return the Content-Transfer-Encoding in lower case, "7bit" if there is none
+	 */
+	public String getTransferEncoding() {
+		String value = getHeaderValue("Content-Transfer-Encoding");
+		return value == null || value.isEmpty() ? "7bit" : value.toLowerCase(Locale.ROOT);
+	}
+
+	/**
+	 * @return true if this is a multipart entity with a boundary, whose parts are returned by {@link #getParts()}
+	 */
+	public boolean isMultipart() {
+		return getContentType().startsWith("multipart/") && getContentTypeParameter("boundary") != null;
+	}
+
+	/**
+	 * Finds the parts on first use, in a single pass over the content; the parts are views on it, not copies.
+	 *
+	 * @return the parts of a multipart entity in order, empty for any other entity
+	 */
+	public List<MimePart> getParts() {
+		List<MimePart> found = parts;
+		if (found == null) {
+			// threads racing here find the same parts
+			found = isMultipart() ? Collections.unmodifiableList(findParts(getContentTypeParameter("boundary")))
+					: Collections.<MimePart>emptyList();
+			parts = found;
+		}
+		return found;
+	}
+
+	/**
+	 * @return size of the content as received, before decoding
+	 */
+	public int getEncodedSize() {
+		return content.limit();
+	}
+
+	/**
+	 * Streams the content, decoding base64 and quoted-printable while it is read. Every call returns a new stream
+	 * from the start of the content.
+	 *
+	 * @return the decoded content
+	 */
+	public InputStream getInputStream() {
+		return ContentDecoder.decode(content, getTransferEncoding());
+	}
+
+	/**
+	 * Decodes the whole content into a string, using the charset of the Content-Type, or US-ASCII. Meant for text
+	 * parts; use {@link #getInputStream()} for large content.
+	 *
+	 * @return the decoded content
+	 */
+	public String getContentAsString() {
+		ByteArrayOutputStream decoded = new ByteArrayOutputStream(content.limit());
+		byte[] buffer = new byte[4096];
+		try (InputStream in = getInputStream()) {
+			int n;
+			while ((n = in.read(buffer)) > 0) {
+				decoded.write(buffer, 0, n);
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException("decoding from memory failed", e);
+		}
+		return new String(decoded.toByteArray(), charset());
+	}
+
+	@Override
+	public String toString() {
+		return getContentType() + (isMultipart() ? " with " + getParts().size() + " parts" : ", "
+				+ getTransferEncoding() + ", " + getEncodedSize() + " bytes");
+	}
+
+	/**
+	 * Creates the view on an entity consisting of headers, a blank line and the content.
+	 *
+	 * @param entity the entity, positioned at 0
+	 * @return the entity
+	 */
+	static MimePart parse(ByteBuffer entity) {
+		int end = entity.limit();
+		int pos = 0;
+		while (pos < end) {
+			int lineEnd = indexOfCrlf(entity, pos, end);
+			if (lineEnd == pos) {
+				return new MimePart(slice(entity, 0, pos), slice(entity, Math.min(pos + 2, end), end));
+			}
+			pos = lineEnd + 2;
+		}
+		// only headers
+		return new MimePart(slice(entity, 0, end), slice(entity, end, end));
+	}
+
+	/**
+	 * Splits the content at the delimiter lines. The preamble before the first and the epilogue after the closing
+	 * delimiter are ignored. Without a closing delimiter, the last part goes on to the end.
+	 */
+	private List<MimePart> findParts(String boundary) {
+		byte[] delimiter = ("--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+		List<MimePart> found = new ArrayList<>();
+		int end = content.limit();
+		int partStart = -1;
+		int pos = 0;
+		while (pos < end) {
+			int lineEnd = indexOfCrlf(content, pos, end);
+			int delimiterEnd = delimiterEnd(content, pos, lineEnd, delimiter);
+			if (delimiterEnd >= 0) {
+				if (partStart >= 0) {
+					// the line break before the delimiter belongs to the delimiter
+					found.add(parse(slice(content, partStart, Math.max(pos - 2, partStart))));
+				}
+				if (delimiterEnd + 2 <= lineEnd && content.get(delimiterEnd) == '-' && content.get(delimiterEnd + 1) == '-') {
+					return found;
+				}
+				partStart = Math.min(lineEnd + 2, end);
+			}
+			pos = lineEnd + 2;
+		}
+		if (partStart >= 0 && partStart < end) {
+			found.add(parse(slice(content, partStart, end)));
+		}
+		return found;
+	}
+
+	/**
+	 * @return end of the delimiter if the line is one, optionally followed by "--" and whitespace, -1 otherwise
+	 */
+	private static int delimiterEnd(ByteBuffer data, int lineStart, int lineEnd, byte[] delimiter) {
+		if (lineEnd - lineStart < delimiter.length) {
+			return -1;
+		}
+		for (int i = 0; i < delimiter.length; i++) {
+			if (data.get(lineStart + i) != delimiter[i]) {
+				return -1;
+			}
+		}
+		int end = lineStart + delimiter.length;
+		int rest = end;
+		if (rest + 2 <= lineEnd && data.get(rest) == '-' && data.get(rest + 1) == '-') {
+			rest += 2;
+		}
+		for (int i = rest; i < lineEnd; i++) {
+			if (!isWhitespace(data.get(i))) {
+				return -1;
+			}
+		}
+		return end;
+	}
+
+	private Charset charset() {
+		String name = getContentTypeParameter("charset");
+		try {
+			return name == null ? StandardCharsets.US_ASCII : Charset.forName(name);
+		} catch (IllegalArgumentException e) {
+			return StandardCharsets.ISO_8859_1;
+		}
+	}
+
+	/**
+	 * @return value of a parameter of a header value like {@code type/subtype; name="value"}, null if there is none
+	 */
+	static String parameter(String headerValue, String name) {
+		if (headerValue == null) {
+			return null;
+		}
+		int pos = headerValue.indexOf(';');
+		while (pos >= 0 && pos < headerValue.length()) {
+			int equals = headerValue.indexOf('=', pos);
+			if (equals < 0) {
+				return null;
+			}
+			String parameterName = headerValue.substring(pos + 1, equals).trim();
+			int valueStart = equals + 1;
+			while (valueStart < headerValue.length() && headerValue.charAt(valueStart) == ' ') {
+				valueStart++;
+			}
+			String value;
+			int next;
+			if (valueStart < headerValue.length() && headerValue.charAt(valueStart) == '"') {
+				StringBuilder quoted = new StringBuilder();
+				int i = valueStart + 1;
+				for (; i < headerValue.length() && headerValue.charAt(i) != '"'; i++) {
+					char c = headerValue.charAt(i);
+					if (c == '\\' && i + 1 < headerValue.length()) {
+						c = headerValue.charAt(++i);
+					}
+					quoted.append(c);
+				}
+				value = quoted.toString();
+				next = headerValue.indexOf(';', i);
+			} else {
+				next = headerValue.indexOf(';', valueStart);
+				value = headerValue.substring(valueStart, next < 0 ? headerValue.length() : next).trim();
+			}
+			if (parameterName.equalsIgnoreCase(name)) {
+				return value;
+			}
+			pos = next;
+		}
+		return null;
+	}
+
+	private static ByteBuffer slice(ByteBuffer buffer, int from, int to) {
+		ByteBuffer part = buffer.duplicate();
+		part.limit(to);
+		part.position(from);
+		return part.slice();
+	}
+
+	/**
+	 * @return position of the first CRLF in the given range, the end of the range if there is none
+	 */
+	private static int indexOfCrlf(ByteBuffer data, int from, int to) {
+		for (int i = from; i < to - 1; i++) {
+			if (data.get(i) == '\r' && data.get(i + 1) == '\n') {
+				return i;
+			}
+		}
+		return to;
+	}
+
+	private static int indexOf(ByteBuffer data, char c, int from, int to) {
+		for (int i = from; i < to; i++) {
+			if (data.get(i) == c) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return true if the range holds the name, possibly surrounded by whitespace, ignoring case
+	 */
+	private static boolean matches(ByteBuffer data, int from, int to, String name) {
+		while (from < to && isWhitespace(data.get(from))) {
+			from++;
+		}
+		while (to > from && isWhitespace(data.get(to - 1))) {
+			to--;
+		}
+		if (to - from != name.length()) {
+			return false;
+		}
+		for (int i = 0; i < name.length(); i++) {
+			if (Character.toLowerCase((char) (data.get(from + i) & 0xff)) != Character.toLowerCase(name.charAt(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean isWhitespace(byte b) {
+		return b == ' ' || b == '\t';
+	}
+
+	private static String ascii(ByteBuffer data, int from, int to) {
+		byte[] bytes = new byte[to - from];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = data.get(from + i);
+		}
+		return new String(bytes, StandardCharsets.ISO_8859_1);
+	}
+}
@@ -0,0 +1,154 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2016 Joachim Nicolay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Serves the connections of one server on the selector threads of an {@link SmtpEventLoopGroup}, which may be
+ * shared with other servers. The server can listen on several addresses at once.
+ */
+@Slf4j
+class NioSmtpEngine implements SmtpEngine {
+
+	/** The selector threads serving the connections. */
+	private final SmtpEventLoopGroup group;
+
+	/** Whether the group was created for this engine alone, and is closed with it. */
+	private final boolean ownsGroup;
+
+	/** The channels this server listens to. */
+	private final List<ServerSocketChannel> serverChannels;
+
+	/** Receives the completed messages, without holding up the selector thread. */
+	final AsyncMessageSink sink;
+
+	/** Counts the sessions. */
+	final ServerMetrics metrics;
+
+	/** Delays the responses and slows down reading. */
+	final TrafficShaping shaping;
+
+	/** Times out silent clients, and ends the sessions when stopping. */
+	final SessionTimeouts timeouts;
+
+	/** Connections beyond this number of open ones are rejected. */
+	private final int maxSessions;
+
+	/** Number of connections accepted and not yet closed, guarded by this. */
+	private int openConnections;
+
+	/**
+	 * Starts accepting connections right away.
+	 *
+	 * @param group          the selector threads to use
+	 * @param ownsGroup      true to close the group when stopping
+	 * @param serverChannels bound channels to listen on
+	 * @param sink           receives the completed messages
+	 * @param metrics        counts the sessions
+	 * @param shaping        delays the responses and slows down reading
+	 * @param timeouts       times out silent clients
+	 * @param maxSessions    connections beyond this number of open ones are rejected
+	 * @throws IOException when switching the channels to non-blocking mode fails
+	 */
+	NioSmtpEngine(SmtpEventLoopGroup group, boolean ownsGroup, List<ServerSocketChannel> serverChannels,
+			AsyncMessageSink sink, ServerMetrics metrics, TrafficShaping shaping, SessionTimeouts timeouts, int maxSessions)
+			throws IOException {
+		this.group = group;
+		this.ownsGroup = ownsGroup;
+		this.serverChannels = new ArrayList<>(serverChannels);
+		this.sink = sink;
+		this.metrics = metrics;
+		this.shaping = shaping;
+		this.timeouts = timeouts;
+		this.maxSessions = maxSessions;
+		for (ServerSocketChannel channel : serverChannels) {
+			channel.configureBlocking(false);
+		}
+		for (ServerSocketChannel channel : serverChannels) {
+			group.register(channel, this);
+		}
+	}
+
+	@Override
+	public int getPort() {
+		return serverChannels.get(0).socket().getLocalPort();
+	}
+
+	@Override
+	public List<Integer> getPorts() {
+		List<Integer> ports = new ArrayList<>(serverChannels.size());
+		for (ServerSocketChannel channel : serverChannels) {
+			ports.add(channel.socket().getLocalPort());
+		}
+		return Collections.unmodifiableList(ports);
+	}
+
+	@Override
+	public void stop(long timeoutMillis) {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		for (ServerSocketChannel channel : serverChannels) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				log.warn("trouble closing the server socket", e);
+			}
+		}
+		// end the idle sessions, the others once their messages are through
+		timeouts.shutdown();
+		try {
+			synchronized (this) {
+				long remaining;
+				while (openConnections > 0 && (remaining = deadline - System.currentTimeMillis()) > 0) {
+					wait(remaining);
+				}
+			}
+		} catch (InterruptedException e) {
+			log.warn("interrupted when waiting for sessions to finish", e);
+			Thread.currentThread().interrupt();
+		}
+		group.closeConnections(this);
+		if (ownsGroup) {
+			group.close();
+		}
+	}
+
+	/**
+	 * @return false if the connection has to be rejected, because as many as allowed are open already
+	 */
+	synchronized boolean connectionOpened() {
+		if (openConnections >= maxSessions) {
+			metrics.connectionRejected();
+			return false;
+		}
+		openConnections++;
+		return true;
+	}
+
+	synchronized void connectionClosed() {
+		openConnections--;
+		if (openConnections == 0) {
+			notifyAll();
+		}
+	}
+}
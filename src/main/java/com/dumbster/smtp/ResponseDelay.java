@@ -0,0 +1,124 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2016 Joachim Nicolay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How long the server waits before it sends a response, to make it behave like a slow mail provider. Every response
+ * gets a new delay drawn from the distribution. Responses are sent in order, so a delayed response also holds up the
+ * responses to the commands pipelined after it.
+ *
+ * @see SimpleSmtpServer.Builder#responseDelay(String, ResponseDelay)
+ */
+public abstract class ResponseDelay {
+
+	/** Log-normal delays are capped at this multiple of the median, to keep the rare outliers within reason. */
+	private static final double LOG_NORMAL_CAP = 1000;
+
+	private ResponseDelay() {
+	}
+
+	/**
+	 * @param delay the delay
+	 * @param unit  unit of the delay
+	 * @return the same delay for every response
+	 */
+	public static ResponseDelay fixed(long delay, TimeUnit unit) {
+		checkNotNegative(delay);
+		final long nanos = unit.toNanos(delay);
+		return new ResponseDelay() {
+			@Override
+			long nextNanos() {
+				return nanos;
+			}
+
+			@Override
+			public String toString() {
+				return "fixed " + nanos + " ns";
+			}
+		};
+	}
+
+	/**
+	 * @param min  shortest delay
+	 * @param max  longest delay
+	 * @param unit unit of the delays
+	 * @return delays spread evenly between min and max
+	 */
+	public static ResponseDelay uniform(long min, long max, TimeUnit unit) {
+		checkNotNegative(min);
+		if (max < min) {
+			throw new IllegalArgumentException("maximum delay " + max + " is shorter than minimum delay " + min);
+		}
+		final long minNanos = unit.toNanos(min);
+		final long maxNanos = unit.toNanos(max);
+		return new ResponseDelay() {
+			@Override
+			long nextNanos() {
+				return minNanos == maxNanos ? minNanos : minNanos + ThreadLocalRandom.current().nextLong(maxNanos - minNanos + 1);
+			}
+
+			@Override
+			public String toString() {
+				return "uniform " + minNanos + " to " + maxNanos + " ns";
+			}
+		};
+	}
+
+	/**
+	 * Log-normal delays, which is what response times of real servers usually look like: most responses take about
+	 * the median, some take a lot longer. Delays are capped at 1000 times the median.
+	 *
+	 * @param median delay half of the responses are faster than
+	 * @param sigma  spread, the standard deviation of the logarithm of the delays; with 0.5, about one response in
+	 *               twelve takes more than twice the median, with 1, one in twenty more than five times the median
+	 * @param unit   unit of the median
+	 * @return log-normally distributed delays
+	 */
+	public static ResponseDelay logNormal(long median, final double sigma, TimeUnit unit) {
+		checkNotNegative(median);
+		if (!(sigma >= 0)) {
+			throw new IllegalArgumentException("sigma must not be negative, got " + sigma);
+		}
+		final long medianNanos = unit.toNanos(median);
+		return new ResponseDelay() {
+			@Override
+			long nextNanos() {
+				double factor = Math.min(Math.exp(sigma * ThreadLocalRandom.current().nextGaussian()), LOG_NORMAL_CAP);
+				return (long) (medianNanos * factor);
+			}
+
+			@Override
+			public String toString() {
+				return "log-normal, median " + medianNanos + " ns, sigma " + sigma;
+			}
+		};
+	}
+
+	/**
+	 * @return the delay for the next response in nanoseconds
+	 */
+	abstract long nextNanos();
+
+	private static void checkNotNegative(long delay) {
+		if (delay < 0) {
+			throw new IllegalArgumentException("delay must not be negative, got " + delay);
+		}
+	}
+}
@@ -0,0 +1,116 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2016 Joachim Nicolay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts what the sessions of a server do, to tell whether the server keeps up with its clients. Counters are
+ * updated per command and per message, not per line of data: the sessions add up the bytes they receive themselves
+ * and report them with each message.
+ */
+class ServerMetrics {
+	private final AtomicLong sessionsOpened = new AtomicLong();
+	private final AtomicLong sessionsClosed = new AtomicLong();
+	private final AtomicLong connectionsRejected = new AtomicLong();
+	private final AtomicLong sessionsTimedOut = new AtomicLong();
+	private final AtomicLongArray commands = new AtomicLongArray(SmtpActionType.values().length);
+	private final AtomicLong errorResponses = new AtomicLong();
+	private final AtomicLong bytesReceived = new AtomicLong();
+	private final AtomicLong messagesReceived = new AtomicLong();
+	/** Nanoseconds from connect to close, guarded by itself. */
+	private final LatencyHistogram sessionDurations = new LatencyHistogram();
+	/** Nanoseconds from the start of the data to the message being stored, guarded by itself. */
+	private final LatencyHistogram dataDurations = new LatencyHistogram();
+
+	void sessionOpened() {
+		sessionsOpened.incrementAndGet();
+	}
+
+	/**
+	 * @param nanos how long the session lasted
+	 * @param bytes bytes received since the last message
+	 */
+	void sessionClosed(long nanos, long bytes) {
+		sessionsClosed.incrementAndGet();
+		bytesReceived.addAndGet(bytes);
+		synchronized (sessionDurations) {
+			sessionDurations.record(nanos);
+		}
+	}
+
+	/**
+	 * Counts a connection turned away because the server is serving as many sessions as it may.
+	 */
+	void connectionRejected() {
+		connectionsRejected.incrementAndGet();
+	}
+
+	/**
+	 * Counts a session ended because the client did not send anything for too long.
+	 */
+	void sessionTimedOut() {
+		sessionsTimedOut.incrementAndGet();
+	}
+
+	/**
+	 * @param action the command
+	 * @param code   code of the response to it
+	 */
+	void command(SmtpActionType action, int code) {
+		commands.incrementAndGet(action.ordinal());
+		if (code >= 500) {
+			errorResponses.incrementAndGet();
+		}
+	}
+
+	/**
+	 * @param dataNanos how long receiving the data took, from DATA or the first BDAT to storing the message
+	 * @param bytes     bytes received since the last message
+	 */
+	void messageReceived(long dataNanos, long bytes) {
+		messagesReceived.incrementAndGet();
+		bytesReceived.addAndGet(bytes);
+		synchronized (dataDurations) {
+			dataDurations.record(dataNanos);
+		}
+	}
+
+	/**
+	 * @param storedMessages number of messages currently held
+	 * @param evictedMessages number of messages evicted so far
+	 * @return the current values
+	 */
+	SmtpMetrics snapshot(int storedMessages, long evictedMessages) {
+		long[] commandCounts = new long[commands.length()];
+		for (int i = 0; i < commandCounts.length; i++) {
+			commandCounts[i] = commands.get(i);
+		}
+		return new SmtpMetrics(sessionsOpened.get(), sessionsClosed.get(), connectionsRejected.get(),
+				sessionsTimedOut.get(), commandCounts, errorResponses.get(), bytesReceived.get(), messagesReceived.get(),
+				storedMessages, evictedMessages, copy(sessionDurations), copy(dataDurations));
+	}
+
+	private static LatencyHistogram copy(LatencyHistogram histogram) {
+		LatencyHistogram copy = new LatencyHistogram();
+		synchronized (histogram) {
+			copy.add(histogram);
+		}
+		return copy;
+	}
+}
@@ -0,0 +1,150 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2016 Joachim Nicolay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The timeouts of the sessions of a server, and the {@link SessionWatchdog}s of its open connections. The watchdogs
+ * share one {@link TimerWheel}, which is only started if a timeout is set. The watchdogs are also used to end the
+ * sessions quickly when the server stops.
+ */
+final class SessionTimeouts implements AutoCloseable {
+	/** Precision of the timeouts. */
+	private static final long TICK_MILLIS = 10;
+
+	/** Nanoseconds to wait for a client to start a mail transaction, 0 for no limit. */
+	private final long idleNanos;
+	/** Nanoseconds to wait for a command within a mail transaction, 0 for no limit. */
+	private final long commandNanos;
+	/** Nanoseconds to wait for message data, 0 for no limit. */
+	private final long dataNanos;
+	/** Checks the timeouts, null if there are none. */
+	private final TimerWheel wheel;
+	/** Watchdogs of the open connections. */
+	private final Set<SessionWatchdog> watchdogs =
+			Collections.newSetFromMap(new ConcurrentHashMap<SessionWatchdog, Boolean>());
+	/** Set once the server stops. */
+	private volatile boolean stopping;
+
+	/**
+	 * @param idleNanos    how long to wait for a client to start a mail transaction, 0 for no limit
+	 * @param commandNanos how long to wait for a command within a mail transaction, 0 for no limit
+	 * @param dataNanos    how long to wait for message data, 0 for no limit
+	 * @param threadName   name of the timer thread, if one is needed
+	 */
+	SessionTimeouts(long idleNanos, long commandNanos, long dataNanos, String threadName) {
+		this.idleNanos = idleNanos;
+		this.commandNanos = commandNanos;
+		this.dataNanos = dataNanos;
+		this.wheel = idleNanos > 0 || commandNanos > 0 || dataNanos > 0
+				? new TimerWheel(TICK_MILLIS, TimeUnit.MILLISECONDS, threadName) : null;
+	}
+
+	/**
+	 * @param session a session waiting for input
+	 * @return true if no mail transaction is in progress, so the session can be ended without losing a message
+	 */
+	static boolean isIdle(SmtpSession session) {
+		SmtpState state = session.getState();
+		return session.getChunkRemaining() == 0
+				&& (state == SmtpState.GREET || state == SmtpState.MAIL || state == SmtpState.QUIT);
+	}
+
+	/**
+	 * @param session a session waiting for input
+	 * @return how long to wait for the input in nanoseconds, 0 for no limit
+	 */
+	long timeoutFor(SmtpSession session) {
+		if (isIdle(session)) {
+			return idleNanos;
+		}
+		return session.getState() == SmtpState.RCPT && session.getChunkRemaining() == 0 ? commandNanos : dataNanos;
+	}
+
+	/**
+	 * @return the wheel checking the timeouts, null if there are no timeouts
+	 */
+	TimerWheel getWheel() {
+		return wheel;
+	}
+
+	/**
+	 * @return how often a watchdog has to check its connection at least
+	 */
+	long checkInterval() {
+		long interval = Long.MAX_VALUE;
+		for (long timeout : new long[]{idleNanos, commandNanos, dataNanos}) {
+			if (timeout > 0) {
+				interval = Math.min(interval, timeout);
+			}
+		}
+		return interval;
+	}
+
+	/**
+	 * Keeps track of the watchdog of a new connection. If the server is stopping already, the session is ended as
+	 * soon as it is idle.
+	 *
+	 * @param watchdog the watchdog
+	 */
+	void register(SessionWatchdog watchdog) {
+		watchdogs.add(watchdog);
+		if (stopping) {
+			watchdog.shutdown();
+		}
+	}
+
+	/**
+	 * @param watchdog watchdog of a closed connection
+	 */
+	void unregister(SessionWatchdog watchdog) {
+		watchdogs.remove(watchdog);
+	}
+
+	/**
+	 * Ends the idle sessions right away, and the others once they are idle.
+	 */
+	void shutdown() {
+		stopping = true;
+		for (SessionWatchdog watchdog : watchdogs) {
+			watchdog.shutdown();
+		}
+	}
+
+	/**
+	 * Closes all connections still open, whatever they are doing.
+	 */
+	void abort() {
+		for (SessionWatchdog watchdog : watchdogs) {
+			watchdog.abort();
+		}
+	}
+
+	/**
+	 * Stops the timer thread.
+	 */
+	@Override
+	public void close() {
+		if (wheel != null) {
+			wheel.close();
+		}
+	}
+}
@@ -0,0 +1,158 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2016 Joachim Nicolay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+/**
+ * Watches a connection for a client that stays silent too long, and ends the session when the server stops. The
+ * thread serving the connection tells the watchdog when it waits for input and when it works on it; this only writes
+ * a few fields, so it can be done for every line. The watchdog checks the connection from time to time on the
+ * {@link TimerWheel}, and {@link #expired() lets the engine know} once the session has to end. The engine then
+ * sends the {@link #getExpiredWith() reason} to the client and closes the connection on its own thread.
+ */
+abstract class SessionWatchdog implements Runnable {
+	private final SessionTimeouts timeouts;
+	/** Set while the connection waits for input outside of a mail transaction. */
+	private volatile boolean waitingIdle;
+	/**
+	 * When the wait for input times out, in nanoseconds, 0 while the connection does not wait. A single field, so the
+	 * timer thread cannot see a new wait with the deadline of an old one.
+	 */
+	private volatile long deadline;
+	/** Set once the server stops. */
+	private volatile boolean stopping;
+	/** Set once the connection is closed. */
+	private volatile boolean closed;
+	/** Why the session has to end, null as long as it does not; only set while holding the lock on this. */
+	private volatile SmtpResponse expiredWith;
+
+	/**
+	 * @param timeouts timeouts of the server
+	 */
+	SessionWatchdog(SessionTimeouts timeouts) {
+		this.timeouts = timeouts;
+	}
+
+	/**
+	 * Starts watching the connection.
+	 */
+	void start() {
+		if (timeouts.getWheel() != null) {
+			timeouts.getWheel().schedule(this, timeouts.checkInterval());
+		}
+		timeouts.register(this);
+	}
+
+	/**
+	 * The connection waits for input. The timeout starts unless it is running already, so a client sending a line a
+	 * byte at a time does not get more time.
+	 *
+	 * @param session the session, to tell which timeout applies
+	 */
+	void waiting(SmtpSession session) {
+		boolean idle = SessionTimeouts.isIdle(session);
+		waitingIdle = idle;
+		if (idle && stopping) {
+			expire(SmtpSession.SHUTTING_DOWN);
+			return;
+		}
+		if (deadline == 0) {
+			long timeout = timeouts.timeoutFor(session);
+			if (timeout > 0) {
+				long due = System.nanoTime() + timeout;
+				deadline = due == 0 ? 1 : due;
+			}
+		}
+	}
+
+	/**
+	 * The connection works on input it received, or waits for something else than the client.
+	 */
+	void working() {
+		deadline = 0;
+		waitingIdle = false;
+	}
+
+	/**
+	 * Ends the session right away if it is idle, otherwise as soon as it is.
+	 */
+	void shutdown() {
+		stopping = true;
+		if (waitingIdle) {
+			expire(SmtpSession.SHUTTING_DOWN);
+		}
+	}
+
+	/**
+	 * The connection has been closed, the watchdog is no longer needed.
+	 */
+	void close() {
+		closed = true;
+		timeouts.unregister(this);
+	}
+
+	/**
+	 * @return true once the session has to end
+	 */
+	boolean isExpired() {
+		return expiredWith != null;
+	}
+
+	/**
+	 * @return the response telling the client why the session ends, null as long as it does not have to
+	 */
+	SmtpResponse getExpiredWith() {
+		return expiredWith;
+	}
+
+	/**
+	 * Checks the timeout, called by the timer wheel.
+	 */
+	@Override
+	public void run() {
+		if (closed || isExpired()) {
+			return;
+		}
+		long due = deadline;
+		long remaining = due - System.nanoTime();
+		if (due != 0 && remaining <= 0) {
+			expire(SmtpSession.TIMEOUT);
+		} else {
+			timeouts.getWheel().schedule(this, due != 0 ? remaining : timeouts.checkInterval());
+		}
+	}
+
+	private void expire(SmtpResponse response) {
+		synchronized (this) {
+			if (expiredWith != null) {
+				return;
+			}
+			expiredWith = response;
+		}
+		expired();
+	}
+
+	/**
+	 * Makes the thread serving the connection notice that the session has to end, e.g. by waking it up. Called on
+	 * the timer thread, the thread stopping the server, or the thread serving the connection itself.
+	 */
+	abstract void expired();
+
+	/**
+	 * Closes the connection, whatever it is doing. Called on the thread stopping the server.
+	 */
+	abstract void abort();
+}
@@ -17,24 +17,24 @@
  */
 package com.dumbster.smtp;
 
-import lombok.extern.slf4j.Slf4j;
-
+import javax.management.ObjectName;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
-import java.net.Socket;
-import java.nio.charset.StandardCharsets;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Iterator;
+import java.util.EnumMap;
 import java.util.List;
-import java.util.Scanner;
-import java.util.regex.Pattern;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /** Dummy SMTP server for testing purposes. */
-@Slf4j
 public final class SimpleSmtpServer implements AutoCloseable {
 
 	/** Default SMTP port is 25. */
@@ -43,21 +43,40 @@ public final class SimpleSmtpServer implements AutoCloseable {
 	/** pick any free port. */
 	public static final int AUTO_SMTP_PORT = 0;
 
-	/** When stopping wait this long for any still ongoing transmission */
+	/** When stopping wait this long for the listeners to be notified */
 	private static final int STOP_TIMEOUT = 20000;
 
-	private static final Pattern CRLF = Pattern.compile("\r\n");
+	/** Numbers the servers, to tell their threads apart. */
+	private static final AtomicInteger SERVER_NUMBER = new AtomicInteger();
 
 	/** Stores all of the email received since this instance started up. */
-	private final List<SmtpMessage> receivedMail;
+	private final MailStore receivedMail;
+
+	/** Finds received messages by recipient, sender, subject and message id. */
+	private final MessageIndex index;
+
+	/** Notifies the message listeners. */
+	private final ListenerDispatcher listeners;
+
+	/** Counts what the sessions do. */
+	private final ServerMetrics metrics = new ServerMetrics();
+
+	/** Keeps the received messages across restarts, null if there is no journal. */
+	private final MessageJournal journal;
+
+	/** Times out silent clients, and ends the sessions when stopping. */
+	private final SessionTimeouts timeouts;
+
+	/** When stopping wait this long for sessions in the middle of a message, in milliseconds. */
+	private final long shutdownTimeoutMillis;
 
-	/** The server socket this server listens to. */
-	private final ServerSocket serverSocket;
+	/** Accepts and serves the client connections. */
+	private final SmtpEngine engine;
 
-	/** Thread that does the work. */
-	private final Thread workerThread;
+	/** Name of the metrics published over JMX, null if they are not published. */
+	private final ObjectName mbeanName;
 
-	/** Indicates the server thread that it should stop */
+	/** Indicates that the server has been stopped */
 	private volatile boolean stopped = false;
 
 	/**
@@ -68,54 +87,366 @@ public final class SimpleSmtpServer implements AutoCloseable {
 	 * @throws IOException when listening on the socket causes one
 	 */
 	public static SimpleSmtpServer start(int port) throws IOException {
-		return new SimpleSmtpServer(new ServerSocket(Math.max(port, 0)));
+		return builder().port(port).start();
+	}
+
+	/**
+	 * Creates a builder for a server with non-default settings, e.g. several sessions served in parallel.
+	 *
+	 * @return a new builder
+	 */
+	public static Builder builder() {
+		return new Builder();
 	}
 
 	/**
 	 * private constructor because factory method {@link #start(int)} better indicates that
 	 * the created server is already running
-	 * @param serverSocket socket to listen on
+	 * @param builder settings of the server
+	 * @throws IOException when listening on the socket causes one
 	 */
-	private SimpleSmtpServer(ServerSocket serverSocket) {
-		this.receivedMail = new ArrayList<>();
-		this.serverSocket = serverSocket;
-		this.workerThread = new Thread(
-				new Runnable() {
+	private SimpleSmtpServer(Builder builder) throws IOException {
+		String threadPrefix = "dumbster-" + SERVER_NUMBER.incrementAndGet() + "-";
+		this.index = new MessageIndex();
+		this.receivedMail = new MailStore(builder.maxRetainedEmails, builder.maxRetainedBytes, builder.maxRetainedAgeMillis,
+				new MessageSink() {
 					@Override
-					public void run() {
-						performWork();
+					public void deliver(SmtpMessage msg) {
+						index.remove(msg);
 					}
 				});
-		this.workerThread.start();
+		this.listeners = new ListenerDispatcher(builder.listenerQueueCapacity, threadPrefix + "listener");
+		final MessageSpool spool = builder.spoolDirectory == null ? null
+				: new MessageSpool(builder.spoolDirectory, MessageSpool.DEFAULT_SEGMENT_SIZE);
+		final MessageSink store = new MessageSink() {
+			@Override
+			public void deliver(SmtpMessage msg) {
+				if (spool != null) {
+					spool.spool(msg);
+				}
+				index.deliver(msg);
+				receivedMail.deliver(msg);
+			}
+		};
+		this.journal = builder.journalFile == null ? null
+				: new MessageJournal(builder.journalFile, builder.journalSyncIntervalNanos, threadPrefix + "journal");
+		if (journal != null) {
+			journal.replay(store);
+		}
+		MessageSink sink = new MessageSink() {
+			@Override
+			public void deliver(SmtpMessage msg) {
+				if (journal != null) {
+					journal.deliver(msg);
+				}
+				store.deliver(msg);
+				listeners.deliver(msg);
+			}
+		};
+		// the non-blocking engine must not wait for the journal to sync on its selector threads
+		AsyncMessageSink asyncSink = new AsyncMessageSink() {
+			@Override
+			public void deliver(final SmtpMessage msg, final Callback callback) {
+				if (journal == null) {
+					deliverNow(msg, callback);
+					return;
+				}
+				journal.deliver(msg, new Callback() {
+					@Override
+					public void delivered(Exception failure) {
+						if (failure == null) {
+							deliverNow(msg, callback);
+						} else {
+							callback.delivered(failure);
+						}
+					}
+				});
+			}
+
+			private void deliverNow(SmtpMessage msg, Callback callback) {
+				try {
+					store.deliver(msg);
+					listeners.deliver(msg);
+				} catch (RuntimeException e) {
+					callback.delivered(e);
+					return;
+				}
+				callback.delivered(null);
+			}
+		};
+		this.timeouts = new SessionTimeouts(builder.idleTimeoutNanos, builder.commandTimeoutNanos,
+				builder.dataTimeoutNanos, threadPrefix + "timer");
+		this.shutdownTimeoutMillis = builder.shutdownTimeoutMillis;
+		try {
+			this.engine = startEngine(builder, threadPrefix, sink, asyncSink);
+		} catch (IOException e) {
+			timeouts.close();
+			if (journal != null) {
+				journal.close();
+			}
+			throw e;
+		}
+		this.mbeanName = builder.jmx ? SmtpServerJmx.register(this) : null;
+	}
+
+	/**
+	 * Starts listening with the engine chosen by the builder.
+	 */
+	private SmtpEngine startEngine(Builder builder, String threadPrefix, MessageSink sink, AsyncMessageSink asyncSink)
+			throws IOException {
+		List<InetSocketAddress> addresses = builder.addresses.isEmpty()
+				? Collections.singletonList(new InetSocketAddress(Math.max(builder.port, 0))) : builder.addresses;
+		TrafficShaping shaping = TrafficShaping.of(builder.responseDelays, builder.defaultResponseDelay,
+				builder.readBytesPerSecond);
+		if (builder.ioThreads > 0 || builder.eventLoopGroup != null) {
+			List<ServerSocketChannel> channels = new ArrayList<>();
+			SmtpEventLoopGroup group = builder.eventLoopGroup;
+			try {
+				for (InetSocketAddress address : addresses) {
+					ServerSocketChannel channel = ServerSocketChannel.open();
+					channels.add(channel);
+					channel.bind(address, builder.backlog);
+				}
+				if (group == null) {
+					group = new SmtpEventLoopGroup(builder.ioThreads, threadPrefix + "io-");
+				}
+				return new NioSmtpEngine(group, builder.eventLoopGroup == null, channels, asyncSink, metrics, shaping,
+						timeouts, builder.maxSessions);
+			} catch (IOException e) {
+				for (ServerSocketChannel channel : channels) {
+					channel.close();
+				}
+				if (group != null && builder.eventLoopGroup == null) {
+					group.close();
+				}
+				throw e;
+			}
+		} else {
+			InetSocketAddress address = addresses.get(0);
+			ExecutorService sessionExecutor = builder.executionMode.createExecutor(builder.workerThreads,
+					new NamedThreadFactory(threadPrefix + "session-"));
+			try {
+				return new BlockingSmtpEngine(new ServerSocket(address.getPort(), builder.backlog, address.getAddress()),
+						sessionExecutor, sink, metrics, shaping, timeouts, builder.maxSessions);
+			} catch (IOException e) {
+				sessionExecutor.shutdown();
+				throw e;
+			}
+		}
 	}
 
 	/**
 	 * @return the port the server is listening on
 	 */
 	public int getPort() {
-		return serverSocket.getLocalPort();
+		return engine.getPort();
+	}
+
+	/**
+	 * @return the ports the server is listening on, in the order the addresses were bound
+	 */
+	public List<Integer> getPorts() {
+		return engine.getPorts();
 	}
 
 	/**
-	 * @return list of {@link SmtpMessage}s received by since start up or last reset.
+	 * Returns the messages received so far. This is a cheap snapshot, not a copy: it is unmodifiable and does not
+	 * change when further messages arrive or the server is reset.
+	 *
+	 * @return list of {@link SmtpMessage}s received by since start up or last reset, without the ones evicted by the
+	 * retention policy.
 	 */
 	public List<SmtpMessage> getReceivedEmails() {
-		synchronized (receivedMail) {
-			return Collections.unmodifiableList(new ArrayList<>(receivedMail));
+		return receivedMail.snapshot();
+	}
+
+	/**
+	 * Looks up the messages sent to a recipient, as given with RCPT TO. The lookup uses an index and takes time
+	 * proportional to the number of messages found, not to the number of messages received.
+	 *
+	 * @param recipient the recipient's address, without angle brackets, compared ignoring case
+	 * @return the messages received since start up or last reset and still kept, oldest first
+	 */
+	public List<SmtpMessage> getReceivedEmailsByRecipient(String recipient) {
+		return index.find(MessageIndex.Key.RECIPIENT, recipient);
+	}
+
+	/**
+	 * Looks up the messages sent by a sender, as given with MAIL FROM. The lookup uses an index.
+	 *
+	 * @param sender the sender's address, without angle brackets, compared ignoring case
+	 * @return the messages received since start up or last reset and still kept, oldest first
+	 */
+	public List<SmtpMessage> getReceivedEmailsBySender(String sender) {
+		return index.find(MessageIndex.Key.SENDER, sender);
+	}
+
+	/**
+	 * Looks up the messages with the given Subject header. The lookup uses an index.
+	 *
+	 * @param subject the complete subject, as sent
+	 * @return the messages received since start up or last reset and still kept, oldest first
+	 */
+	public List<SmtpMessage> getReceivedEmailsBySubject(String subject) {
+		return index.find(MessageIndex.Key.SUBJECT, subject);
+	}
+
+	/**
+	 * Looks up the messages with the given Message-ID header. The lookup uses an index.
+	 *
+	 * @param messageId the message id, including angle brackets as sent
+	 * @return the messages received since start up or last reset and still kept, usually at most one
+	 */
+	public List<SmtpMessage> getReceivedEmailsByMessageId(String messageId) {
+		return index.find(MessageIndex.Key.MESSAGE_ID, messageId);
+	}
+
+	/**
+	 * Gets the mailbox of a recipient: the messages sent to it with RCPT TO, separate from those of other recipients.
+	 *
+	 * @param recipient the recipient's address, without angle brackets, compared ignoring case
+	 * @return the mailbox, also before any message arrived for the recipient
+	 */
+	public Mailbox getMailbox(String recipient) {
+		if (recipient == null) {
+			throw new IllegalArgumentException("recipient must not be null");
+		}
+		return new Mailbox(index, MessageIndex.Key.RECIPIENT, recipient, receivedMail);
+	}
+
+	/**
+	 * Gets the mailbox of a domain: the messages sent to any recipient in the domain.
+	 *
+	 * @param domain the part of the recipient addresses after the @, compared ignoring case
+	 * @return the mailbox, also before any message arrived for the domain
+	 */
+	public Mailbox getDomainMailbox(String domain) {
+		if (domain == null) {
+			throw new IllegalArgumentException("domain must not be null");
+		}
+		return new Mailbox(index, MessageIndex.Key.DOMAIN, domain, receivedMail);
+	}
+
+	/**
+	 * @return number of messages received since start up or last reset, and not evicted by the retention policy
+	 */
+	public int getReceivedEmailCount() {
+		return receivedMail.size();
+	}
+
+	/**
+	 * @return number of messages evicted since start up because of the retention policy, see
+	 * {@link Builder#maxRetainedEmails(int)}
+	 */
+	public long getEvictedEmailCount() {
+		return receivedMail.getEvicted();
+	}
+
+	/**
+	 * Waits until at least the given number of messages have been received since start up or last reset. The
+	 * waiting thread is woken when messages arrive, there is no polling.
+	 *
+	 * @param count   number of messages to wait for
+	 * @param timeout how long to wait at most
+	 * @param unit    unit of the timeout
+	 * @return the received messages, fewer than count if the time ran out or the retention policy evicted some
+	 * @throws InterruptedException when interrupted while waiting
+	 */
+	public List<SmtpMessage> awaitEmails(int count, long timeout, TimeUnit unit) throws InterruptedException {
+		return receivedMail.await(count, timeout, unit);
+	}
+
+	/**
+	 * Waits until a message matching the predicate has been received since start up or last reset. Messages
+	 * received before the call count as well.
+	 *
+	 * @param predicate condition the message has to meet
+	 * @param timeout   how long to wait at most
+	 * @param unit      unit of the timeout
+	 * @return the first matching message, null if none arrived in time
+	 * @throws InterruptedException when interrupted while waiting
+	 */
+	public SmtpMessage awaitEmail(MessagePredicate predicate, long timeout, TimeUnit unit) throws InterruptedException {
+		return receivedMail.await(predicate, timeout, unit);
+	}
+
+	/**
+	 * Registers a listener to be notified about every message received from now on. Listeners are called
+	 * asynchronously on a separate thread, so a slow listener does not slow down the clients. If the listeners fall
+	 * too far behind, notifications are dropped, see {@link Builder#listenerQueueCapacity(int)}.
+	 *
+	 * @param listener the listener
+	 */
+	public void addMessageListener(MessageListener listener) {
+		if (listener == null) {
+			throw new IllegalArgumentException("listener must not be null");
 		}
+		listeners.addListener(listener);
+	}
+
+	/**
+	 * Unregisters a listener.
+	 *
+	 * @param listener the listener
+	 */
+	public void removeMessageListener(MessageListener listener) {
+		listeners.removeListener(listener);
+	}
+
+	/**
+	 * @return number of messages the listeners were not notified about because they could not keep up
+	 */
+	public long getDroppedListenerNotifications() {
+		return listeners.getDropped();
+	}
+
+	/**
+	 * Writes the messages received so far to an mbox file (mboxrd), replacing the file if it exists. The messages are
+	 * streamed from their raw bytes into the file, so even a large store can be exported without much memory.
+	 *
+	 * @param file the mbox file
+	 * @return number of messages written
+	 * @throws IOException when writing fails
+	 */
+	public int exportMbox(Path file) throws IOException {
+		return MailExporter.exportMbox(receivedMail.snapshot(), file);
+	}
+
+	/**
+	 * Writes the messages received so far to a Maildir, each one to a file of its own in the new directory. The files
+	 * are written in parallel, and streamed from the raw bytes of the messages.
+	 *
+	 * @param directory the Maildir, created if it does not exist
+	 * @return number of messages written
+	 * @throws IOException when writing fails
+	 */
+	public int exportMaildir(Path directory) throws IOException {
+		return MailExporter.exportMaildir(receivedMail.snapshot(), directory, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @return what the server has done since it was started, to tell whether it keeps up with a load test; not
+	 * affected by {@link #reset()}
+	 */
+	public SmtpMetrics getMetrics() {
+		return metrics.snapshot(receivedMail.size(), receivedMail.getEvicted());
 	}
 
 	/**
 	 * forgets all received emails
 	 */
 	public void reset() {
-		synchronized (receivedMail) {
-			receivedMail.clear();
+		receivedMail.reset();
+		index.reset();
+		if (journal != null) {
+			journal.reset();
 		}
 	}
 
 	/**
-	 * Stops the server. Server is shutdown after processing of the current request is complete.
+	 * Stops the server. Sessions waiting for their clients to start a mail transaction are ended right away with a
+	 * 421 reply, the others as soon as their message is through. Sessions still running after the
+	 * {@link Builder#shutdownTimeout(long, TimeUnit) shutdown timeout} are aborted.
 	 */
 	public void stop() {
 		if (stopped) {
@@ -123,18 +454,15 @@ public final class SimpleSmtpServer implements AutoCloseable {
 		}
 		// Mark us closed
 		stopped = true;
-		try {
-			// Kick the server accept loop
-			serverSocket.close();
-		} catch (IOException e) {
-			log.warn("trouble closing the server socket", e);
-		}
-		// and block until worker is finished
-		try {
-			workerThread.join(STOP_TIMEOUT);
-		} catch (InterruptedException e) {
-			log.warn("interrupted when waiting for worker thread to finish", e);
+		// and block until all sessions are finished
+		engine.stop(shutdownTimeoutMillis);
+		timeouts.close();
+		// and the listeners know about all messages
+		listeners.stop(STOP_TIMEOUT);
+		if (journal != null) {
+			journal.close();
 		}
+		SmtpServerJmx.unregister(mbeanName);
 	}
 
 	/**
@@ -146,105 +474,413 @@ public final class SimpleSmtpServer implements AutoCloseable {
 	}
 
 	/**
-	 * Main loop of the SMTP server.
+	 * Collects the settings of a server to be started.
 	 */
-	private void performWork() {
-		try {
-			// Server: loop until stopped
-			while (!stopped) {
-				// Start server socket and listen for client connections
-				//noinspection resource
-				try (Socket socket = serverSocket.accept();
-				     Scanner input = new Scanner(new InputStreamReader(socket.getInputStream(), StandardCharsets.ISO_8859_1)).useDelimiter(CRLF);
-				     PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.ISO_8859_1));) {
-
-					synchronized (receivedMail) {
-						/*
-						 * We synchronize over the handle method and the list update because the client call completes inside
-						 * the handle method and we have to prevent the client from reading the list until we've updated it.
-						 */
-						receivedMail.addAll(handleTransaction(out, input));
-					}
-				}
+	public static final class Builder {
+		private int port = AUTO_SMTP_PORT;
+		private ExecutionMode executionMode = ExecutionMode.POOLED;
+		private int workerThreads = 1;
+		private int ioThreads = 0;
+		private SmtpEventLoopGroup eventLoopGroup;
+		private final List<InetSocketAddress> addresses = new ArrayList<>();
+		private int maxSessions = Integer.MAX_VALUE;
+		private int backlog = 50;
+		private final Map<SmtpActionType, ResponseDelay> responseDelays = new EnumMap<>(SmtpActionType.class);
+		private ResponseDelay defaultResponseDelay;
+		private long readBytesPerSecond = 0;
+		private int listenerQueueCapacity = 10000;
+		private Path spoolDirectory;
+		private int maxRetainedEmails = Integer.MAX_VALUE;
+		private long maxRetainedBytes = Long.MAX_VALUE;
+		private long maxRetainedAgeMillis = 0;
+		private long idleTimeoutNanos = 0;
+		private long commandTimeoutNanos = 0;
+		private long dataTimeoutNanos = 0;
+		private long shutdownTimeoutMillis = 2000;
+		private boolean jmx;
+		private Path journalFile;
+		private long journalSyncIntervalNanos = 0;
+
+		private Builder() {
+		}
+
+		/**
+		 * @param port port number the server should listen to, {@link #AUTO_SMTP_PORT} to pick any free port. Not used
+		 *             if addresses are {@link #bind(InetSocketAddress) bound} explicitly.
+		 * @return this builder
+		 */
+		public Builder port(int port) {
+			this.port = port;
+			return this;
+		}
+
+		/**
+		 * Adds an address to listen on. Called several times, the server listens on all the addresses at once and
+		 * keeps the messages received on any of them together. Listening on several addresses needs the
+		 * {@link #nonBlocking(int) non-blocking} engine.
+		 *
+		 * @param address address and port to listen on, port 0 to pick any free port
+		 * @return this builder
+		 */
+		public Builder bind(InetSocketAddress address) {
+			if (address == null) {
+				throw new IllegalArgumentException("address must not be null");
 			}
-		} catch (Exception e) {
-			// SocketException expected when stopping the server
-			if (!stopped) {
-				log.error("hit exception when running server", e);
-				try {
-					serverSocket.close();
-				} catch (IOException ex) {
-					log.error("and one when closing the port", ex);
-				}
+			this.addresses.add(address);
+			return this;
+		}
+
+		/**
+		 * Sets the kind of threads running the sessions, to compare them or to scale the blocking I/O model to many
+		 * concurrent sessions with virtual threads.
+		 *
+		 * @param executionMode how to run the sessions, {@link ExecutionMode#POOLED} by default
+		 * @return this builder
+		 */
+		public Builder executionMode(ExecutionMode executionMode) {
+			if (executionMode == null) {
+				throw new IllegalArgumentException("execution mode must not be null");
 			}
+			this.executionMode = executionMode;
+			return this;
 		}
-	}
 
-	/**
-	 * Handle an SMTP transaction, i.e. all activity between initial connect and QUIT command.
-	 *
-	 * @param out   output stream
-	 * @param input input stream
-	 * @return List of SmtpMessage
-	 * @throws IOException
-	 */
-	private static List<SmtpMessage> handleTransaction(PrintWriter out, Iterator<String> input) throws IOException {
-		// Initialize the state machine
-		SmtpState smtpState = SmtpState.CONNECT;
-		SmtpRequest smtpRequest = new SmtpRequest(SmtpActionType.CONNECT, "", smtpState);
+		/**
+		 * Sets the number of SMTP sessions served in parallel in {@link ExecutionMode#POOLED} mode. Further
+		 * connections are accepted, but wait for a free worker, unless {@link #maxSessions(int)} turns them away. The
+		 * default of 1 serves one client after the other.
+		 *
+		 * @param workerThreads number of worker threads, at least 1
+		 * @return this builder
+		 */
+		public Builder workerThreads(int workerThreads) {
+			if (workerThreads < 1) {
+				throw new IllegalArgumentException("need at least one worker thread, got " + workerThreads);
+			}
+			this.workerThreads = workerThreads;
+			return this;
+		}
 
-		// Execute the connection request
-		SmtpResponse smtpResponse = smtpRequest.execute();
+		/**
+		 * Serves the connections with non-blocking I/O on the given number of selector threads instead of with a
+		 * thread per session. This keeps many idle or slow connections cheap. The {@link #executionMode(ExecutionMode)
+		 * execution mode} and number of {@link #workerThreads(int) worker threads} do not matter then.
+		 *
+		 * @param ioThreads number of selector threads, at least 1
+		 * @return this builder
+		 */
+		public Builder nonBlocking(int ioThreads) {
+			if (ioThreads < 1) {
+				throw new IllegalArgumentException("need at least one I/O thread, got " + ioThreads);
+			}
+			this.ioThreads = ioThreads;
+			return this;
+		}
 
-		// Send initial response
-		sendResponse(out, smtpResponse);
-		smtpState = smtpResponse.getNextState();
+		/**
+		 * Serves the connections with non-blocking I/O on the threads of a group shared with other servers, instead
+		 * of on threads of its own. Each server keeps its own ports and messages. Stopping the server does not close
+		 * the group.
+		 *
+		 * @param group the selector threads to use
+		 * @return this builder
+		 */
+		public Builder eventLoopGroup(SmtpEventLoopGroup group) {
+			if (group == null) {
+				throw new IllegalArgumentException("event loop group must not be null");
+			}
+			this.eventLoopGroup = group;
+			return this;
+		}
 
-		List<SmtpMessage> msgList = new ArrayList<>();
-		SmtpMessage msg = new SmtpMessage();
+		/**
+		 * Limits the number of sessions open at once. Further connections get a 421 reply and are closed right away,
+		 * as a busy relay would do, instead of waiting for a {@link #workerThreads(int) worker thread}. This keeps
+		 * bursts of connections from piling up in the server, and lets clients test how they retry. By default there
+		 * is no limit.
+		 *
+		 * @param maxSessions maximum number of open sessions, including those waiting for a worker thread, at least 1
+		 * @return this builder
+		 */
+		public Builder maxSessions(int maxSessions) {
+			if (maxSessions < 1) {
+				throw new IllegalArgumentException("need to allow at least one session, got " + maxSessions);
+			}
+			this.maxSessions = maxSessions;
+			return this;
+		}
 
-		while (smtpState != SmtpState.CONNECT) {
-			String line = input.next();
+		/**
+		 * Sets how many connections the operating system queues for the server before they are accepted. Connections
+		 * beyond that are refused or time out, depending on the operating system, without the server knowing.
+		 *
+		 * @param backlog maximum length of the queue of pending connections, 50 by default
+		 * @return this builder
+		 */
+		public Builder backlog(int backlog) {
+			if (backlog < 1) {
+				throw new IllegalArgumentException("backlog must be positive, got " + backlog);
+			}
+			this.backlog = backlog;
+			return this;
+		}
 
-			if (line == null) {
-				break;
+		/**
+		 * Delays the responses to a command, to emulate a slow relay, e.g. one that takes a while to accept a message.
+		 * The delay is added after the command has been processed: a message is stored before the delayed response
+		 * to its data is sent. The non-blocking engine schedules delayed responses on its selector threads, so a
+		 * delayed connection does not occupy a thread.
+		 *
+		 * @param command the command as counted in {@link SmtpMetrics#getCommandCounts()}, e.g. "MAIL", "DATA_END"
+		 *                for the dot ending the data, or "CONNECT" for the greeting
+		 * @param delay   the delay of the responses to the command
+		 * @return this builder
+		 */
+		public Builder responseDelay(String command, ResponseDelay delay) {
+			if (command == null || delay == null) {
+				throw new IllegalArgumentException("command and delay must not be null");
+			}
+			SmtpActionType action;
+			try {
+				action = SmtpActionType.valueOf(command.toUpperCase(Locale.ROOT));
+			} catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException("unknown command " + command, e);
 			}
+			this.responseDelays.put(action, delay);
+			return this;
+		}
 
-			// Create request from client input and current state
-			SmtpRequest request = SmtpRequest.createRequest(line, smtpState);
-			// Execute request and create response object
-			SmtpResponse response = request.execute();
-			// Move to next internal state
-			smtpState = response.getNextState();
-			// Send response to client
-			sendResponse(out, response);
+		/**
+		 * Delays the responses to all commands, except those given a delay of their own with
+		 * {@link #responseDelay(String, ResponseDelay)}.
+		 *
+		 * @param delay the delay of the responses
+		 * @return this builder
+		 */
+		public Builder responseDelay(ResponseDelay delay) {
+			if (delay == null) {
+				throw new IllegalArgumentException("delay must not be null");
+			}
+			this.defaultResponseDelay = delay;
+			return this;
+		}
 
-			// Store input in message
-			String params = request.params;
-			msg.store(response, params);
+		/**
+		 * Limits how fast the server reads from each connection, to emulate a relay on a slow network. The client
+		 * sees its writes stall once the socket buffers are full.
+		 *
+		 * @param bytesPerSecond bytes read per second and connection
+		 * @return this builder
+		 */
+		public Builder readThrottle(long bytesPerSecond) {
+			if (bytesPerSecond < 1) {
+				throw new IllegalArgumentException("read rate must be positive, got " + bytesPerSecond);
+			}
+			this.readBytesPerSecond = bytesPerSecond;
+			return this;
+		}
+
+		/**
+		 * Limits how long a client may stay silent while no mail transaction is in progress: after the greeting, and
+		 * after a message. The session is then ended with a 421 reply. By default clients may wait forever.
+		 *
+		 * @param timeout how long to wait for a client to start a mail transaction or quit
+		 * @param unit    unit of the timeout
+		 * @return this builder
+		 */
+		public Builder idleTimeout(long timeout, TimeUnit unit) {
+			this.idleTimeoutNanos = timeoutNanos(timeout, unit);
+			return this;
+		}
+
+		/**
+		 * Limits how long a client may take to send the next command of a mail transaction, from MAIL FROM to DATA.
+		 * The time counts until the command is complete, so a client sending a byte at a time does not get more.
+		 *
+		 * @param timeout how long to wait for a command
+		 * @param unit    unit of the timeout
+		 * @return this builder
+		 */
+		public Builder commandTimeout(long timeout, TimeUnit unit) {
+			this.commandTimeoutNanos = timeoutNanos(timeout, unit);
+			return this;
+		}
+
+		/**
+		 * Limits how long a client may take to send the next line of message data after DATA, or the next piece of
+		 * data or BDAT command when sending the message in chunks.
+		 *
+		 * @param timeout how long to wait for message data
+		 * @param unit    unit of the timeout
+		 * @return this builder
+		 */
+		public Builder dataTimeout(long timeout, TimeUnit unit) {
+			this.dataTimeoutNanos = timeoutNanos(timeout, unit);
+			return this;
+		}
 
-			// If message reception is complete save it
-			if (smtpState == SmtpState.QUIT) {
-				msgList.add(msg);
-				msg = new SmtpMessage();
+		/**
+		 * Sets how long {@link SimpleSmtpServer#stop()} waits for sessions in the middle of a message before it
+		 * aborts them. Idle sessions are ended right away anyway.
+		 *
+		 * @param timeout how long to wait, 2 seconds by default
+		 * @param unit    unit of the timeout
+		 * @return this builder
+		 */
+		public Builder shutdownTimeout(long timeout, TimeUnit unit) {
+			if (timeout < 0) {
+				throw new IllegalArgumentException("shutdown timeout must not be negative, got " + timeout);
 			}
+			this.shutdownTimeoutMillis = unit.toMillis(timeout);
+			return this;
 		}
 
-		return msgList;
-	}
+		private static long timeoutNanos(long timeout, TimeUnit unit) {
+			if (timeout < 1) {
+				throw new IllegalArgumentException("timeout must be positive, got " + timeout);
+			}
+			return unit.toNanos(timeout);
+		}
 
-	/**
-	 * Send response to client.
-	 *
-	 * @param out          socket output stream
-	 * @param smtpResponse response object
-	 */
-	private static void sendResponse(PrintWriter out, SmtpResponse smtpResponse) {
-		if (smtpResponse.getCode() > 0) {
-			int code = smtpResponse.getCode();
-			String message = smtpResponse.getMessage();
-			out.print(code + " " + message + "\r\n");
-			out.flush();
+		/**
+		 * Sets how many received messages may wait for the {@link MessageListener}s to be notified. Once that many
+		 * are waiting, further notifications are dropped instead of delaying the clients.
+		 *
+		 * @param capacity maximum number of pending notifications, 10000 by default
+		 * @return this builder
+		 */
+		public Builder listenerQueueCapacity(int capacity) {
+			if (capacity < 1) {
+				throw new IllegalArgumentException("listener queue capacity must be positive, got " + capacity);
+			}
+			this.listenerQueueCapacity = capacity;
+			return this;
+		}
+
+		/**
+		 * Limits the number of received messages kept. Once there are more, the oldest ones are evicted. By default
+		 * all messages are kept until {@link SimpleSmtpServer#reset()}.
+		 *
+		 * @param count maximum number of messages kept, at least 1
+		 * @return this builder
+		 */
+		public Builder maxRetainedEmails(int count) {
+			if (count < 1) {
+				throw new IllegalArgumentException("need to retain at least one message, got " + count);
+			}
+			this.maxRetainedEmails = count;
+			return this;
+		}
+
+		/**
+		 * Limits the total size of the received messages kept, counting the header and body bytes as received. Once
+		 * they are larger, the oldest messages are evicted.
+		 *
+		 * @param bytes maximum total size of the messages kept
+		 * @return this builder
+		 */
+		public Builder maxRetainedBytes(long bytes) {
+			if (bytes < 1) {
+				throw new IllegalArgumentException("retained bytes must be positive, got " + bytes);
+			}
+			this.maxRetainedBytes = bytes;
+			return this;
+		}
+
+		/**
+		 * Limits how long received messages are kept. Older messages are evicted when new messages arrive or the
+		 * messages are read.
+		 *
+		 * @param age  maximum age of the messages kept
+		 * @param unit unit of the age
+		 * @return this builder
+		 */
+		public Builder maxRetainedAge(long age, TimeUnit unit) {
+			if (age < 1) {
+				throw new IllegalArgumentException("retained age must be positive, got " + age);
+			}
+			this.maxRetainedAgeMillis = Math.max(unit.toMillis(age), 1);
+			return this;
+		}
+
+		/**
+		 * Keeps the bodies of the received messages in memory-mapped files instead of on the heap, so a server can
+		 * hold gigabytes of mail without growing the heap. The bodies are read back when asked for. The files are
+		 * deleted right away and only take up disk space as long as their messages are referenced.
+		 *
+		 * @param directory where to create the spool files, e.g. the temp directory
+		 * @return this builder
+		 */
+		public Builder spoolDirectory(Path directory) {
+			if (directory == null || !Files.isDirectory(directory)) {
+				throw new IllegalArgumentException("spool directory does not exist: " + directory);
+			}
+			this.spoolDirectory = directory;
+			return this;
+		}
+
+		/**
+		 * Appends every received message to a journal file, and reads back the messages already in it when the server
+		 * starts, so the messages survive restarts. The retention limits apply to the messages read back as well.
+		 * {@link SimpleSmtpServer#reset()} empties the journal, otherwise it keeps growing. Only one server at a time
+		 * can use a journal file.
+		 *
+		 * @param file the journal file, created if it does not exist
+		 * @return this builder
+		 */
+		public Builder journal(Path file) {
+			if (file == null) {
+				throw new IllegalArgumentException("journal file must not be null");
+			}
+			this.journalFile = file;
+			return this;
+		}
+
+		/**
+		 * Sets how often the {@link #journal(Path) journal} is forced to disk. By default, every message is on disk
+		 * before the client is told it has been accepted; concurrent sessions share the syncs, but each one waits for
+		 * one. The {@link #nonBlocking(int) non-blocking} engine holds back the response instead of waiting, so its
+		 * selector threads go on serving the other connections. With an interval, the sessions do not wait, and a
+		 * crash of the machine may lose the messages of the last interval. Once the journal cannot be written, messages
+		 * are rejected with 451.
+		 *
+		 * @param interval how often to sync, 0 to sync every message before acknowledging it
+		 * @param unit     unit of the interval
+		 * @return this builder
+		 */
+		public Builder journalSyncInterval(long interval, TimeUnit unit) {
+			if (interval < 0) {
+				throw new IllegalArgumentException("sync interval must not be negative, got " + interval);
+			}
+			this.journalSyncIntervalNanos = unit.toNanos(interval);
+			return this;
+		}
+
+		/**
+		 * Publishes the {@link SimpleSmtpServer#getMetrics() metrics} of the server as an {@link SmtpServerMXBean}
+		 * in the platform MBean server while it runs.
+		 *
+		 * @param enabled whether to publish the metrics, false by default
+		 * @return this builder
+		 */
+		public Builder jmx(boolean enabled) {
+			this.jmx = enabled;
+			return this;
+		}
+
+		/**
+		 * Creates and starts the server.
+		 *
+		 * @return a reference to the running SMTP server
+		 * @throws IOException when listening on the socket causes one
+		 * @throws UnsupportedOperationException when the execution mode is not supported by the running JVM
+		 * @throws IllegalStateException when listening on several addresses with the blocking engine
+		 */
+		public SimpleSmtpServer start() throws IOException {
+			if (addresses.size() > 1 && ioThreads == 0 && eventLoopGroup == null) {
+				throw new IllegalStateException("listening on several addresses needs the non-blocking engine");
+			}
+			return new SimpleSmtpServer(this);
 		}
 	}
 }
@@ -0,0 +1,41 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2016 Joachim Nicolay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+import java.util.List;
+
+/**
+ * Accepts client connections and runs an {@link SmtpSession} for each of them.
+ */
+interface SmtpEngine {
+	/**
+	 * @return the port the engine is listening on
+	 */
+	int getPort();
+
+	/**
+	 * @return the ports the engine is listening on, the first one is {@link #getPort()}
+	 */
+	List<Integer> getPorts();
+
+	/**
+	 * Stops accepting connections and waits up to the given time for running sessions to finish.
+	 *
+	 * @param timeoutMillis how long to wait for running sessions
+	 */
+	void stop(long timeoutMillis);
+}
@@ -0,0 +1,715 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2016 Joachim Nicolay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed number of selector threads serving the connections of non-blocking servers with non-blocking I/O. Idle or
+ * slow clients only cost a selection key and a small buffer, so a few threads can keep thousands of connections
+ * open.
+ * <p>
+ * A group can be shared by several servers, e.g. to simulate several mail relays without paying for threads for each
+ * of them. The servers stay independent otherwise: each one has its own ports and messages and can be stopped on its
+ * own. The group has to be closed once all its servers have been stopped.
+ *
+ * @see SimpleSmtpServer.Builder#eventLoopGroup(SmtpEventLoopGroup)
+ */
+@Slf4j
+public final class SmtpEventLoopGroup implements AutoCloseable {
+
+	/** Initial size of the per-connection buffers, they grow when a line does not fit. */
+	private static final int INITIAL_BUFFER_SIZE = 1024;
+
+	/** How long to wait for the selector threads to finish when closing. */
+	private static final int CLOSE_TIMEOUT = 1000;
+
+	/** Numbers the groups, to tell their threads apart. */
+	private static final AtomicInteger GROUP_NUMBER = new AtomicInteger();
+
+	/** The selector threads, the first one also accepts new connections. */
+	private final EventLoop[] loops;
+
+	/** Round robin counter to spread the connections over the loops, only used by the first loop. */
+	private int nextLoop;
+
+	/** Indicates the selector threads that they should stop */
+	private volatile boolean stopped = false;
+
+	/**
+	 * Starts a group to be shared by several servers.
+	 *
+	 * @param ioThreads number of selector threads, at least 1
+	 * @return the running group
+	 * @throws IOException when opening the selectors fails
+	 */
+	public static SmtpEventLoopGroup start(int ioThreads) throws IOException {
+		if (ioThreads < 1) {
+			throw new IllegalArgumentException("need at least one I/O thread, got " + ioThreads);
+		}
+		return new SmtpEventLoopGroup(ioThreads, "dumbster-group-" + GROUP_NUMBER.incrementAndGet() + "-io-");
+	}
+
+	/**
+	 * Starts the selector threads right away.
+	 *
+	 * @param ioThreads    number of selector threads
+	 * @param threadPrefix prefix of the selector thread names
+	 * @throws IOException when opening the selectors fails
+	 */
+	SmtpEventLoopGroup(int ioThreads, String threadPrefix) throws IOException {
+		this.loops = new EventLoop[ioThreads];
+		try {
+			for (int i = 0; i < ioThreads; i++) {
+				loops[i] = new EventLoop(Selector.open(), threadPrefix + (i + 1));
+			}
+		} catch (IOException e) {
+			for (EventLoop loop : loops) {
+				if (loop != null) {
+					loop.selector.close();
+				}
+			}
+			throw e;
+		}
+		for (EventLoop loop : loops) {
+			loop.thread.start();
+		}
+	}
+
+	/**
+	 * Starts accepting connections for a server.
+	 *
+	 * @param serverChannel bound channel, in non-blocking mode
+	 * @param engine        the server the connections belong to
+	 */
+	void register(final ServerSocketChannel serverChannel, final NioSmtpEngine engine) {
+		final EventLoop acceptor = loops[0];
+		acceptor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					serverChannel.register(acceptor.selector, SelectionKey.OP_ACCEPT, engine);
+				} catch (IOException e) {
+					log.warn("could not accept connections on {}", serverChannel, e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Closes the remaining connections of a server, and waits until they are closed.
+	 *
+	 * @param engine the server
+	 */
+	void closeConnections(final NioSmtpEngine engine) {
+		final CountDownLatch closed = new CountDownLatch(loops.length);
+		for (final EventLoop loop : loops) {
+			loop.execute(new Runnable() {
+				@Override
+				public void run() {
+					for (SelectionKey key : loop.selector.keys()) {
+						if (key.attachment() instanceof Connection && ((Connection) key.attachment()).engine == engine) {
+							((Connection) key.attachment()).close();
+						}
+					}
+					closed.countDown();
+				}
+			});
+		}
+		try {
+			if (!closed.await(CLOSE_TIMEOUT, TimeUnit.MILLISECONDS)) {
+				log.warn("selector threads did not close the connections in time");
+			}
+		} catch (InterruptedException e) {
+			log.warn("interrupted when waiting for connections to be closed", e);
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Stops the selector threads, closing all connections still open. Stop the servers using this group first, to
+	 * let their clients finish.
+	 */
+	@Override
+	public void close() {
+		stopped = true;
+		for (EventLoop loop : loops) {
+			loop.selector.wakeup();
+		}
+		for (EventLoop loop : loops) {
+			try {
+				loop.thread.join(CLOSE_TIMEOUT);
+			} catch (InterruptedException e) {
+				log.warn("interrupted when waiting for selector thread to finish", e);
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Accepts all pending connections of a server and hands them over to the loops.
+	 */
+	private void accept(ServerSocketChannel serverChannel, final NioSmtpEngine engine) throws IOException {
+		SocketChannel accepted;
+		while ((accepted = serverChannel.accept()) != null) {
+			final SocketChannel channel = accepted;
+			if (!engine.connectionOpened()) {
+				reject(channel);
+				continue;
+			}
+			channel.configureBlocking(false);
+			final EventLoop loop = loops[nextLoop];
+			nextLoop = (nextLoop + 1) % loops.length;
+			loop.execute(new Runnable() {
+				@Override
+				public void run() {
+					Connection connection = new Connection(channel, engine, loop);
+					try {
+						connection.start(channel.register(loop.selector, SelectionKey.OP_READ, connection));
+					} catch (IOException e) {
+						log.debug("could not register client connection", e);
+						connection.close();
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Tells a client that the server is busy and closes the connection. The reply usually fits into the socket buffer
+	 * of a new connection; it is written without blocking, so if it does not, the client gets what fits rather than
+	 * holding up the loop.
+	 */
+	private static void reject(SocketChannel channel) {
+		try (SocketChannel c = channel) {
+			c.configureBlocking(false);
+			c.write(ByteBuffer.wrap(SmtpSession.TOO_MANY_SESSIONS.toBytes()));
+		} catch (IOException e) {
+			log.debug("could not reject client connection", e);
+		}
+	}
+
+	/**
+	 * One selector and the thread running it.
+	 */
+	private final class EventLoop implements Runnable {
+		private final Selector selector;
+		private final Thread thread;
+		/** Work handed over by other threads, run on this loop's thread. */
+		private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+		/** Work to be done later, soonest first, only used by this loop's thread. */
+		private final PriorityQueue<Timer> timers = new PriorityQueue<>();
+		/** Orders the timers that are due at the same time. */
+		private long timerSequence;
+
+		private EventLoop(Selector selector, String name) {
+			this.selector = selector;
+			this.thread = new Thread(this, name);
+		}
+
+		private void execute(Runnable task) {
+			tasks.add(task);
+			selector.wakeup();
+		}
+
+		/**
+		 * Runs a task on this loop's thread after a delay. Must be called on this loop's thread.
+		 *
+		 * @param task  the task
+		 * @param nanos the delay
+		 */
+		private void schedule(Runnable task, long nanos) {
+			timers.add(new Timer(System.nanoTime() + nanos, timerSequence++, task));
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (!stopped) {
+					select();
+					runTasks();
+					runTimers();
+					Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+					while (keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+						if (!key.isValid()) {
+							continue;
+						}
+						if (key.isAcceptable()) {
+							try {
+								accept((ServerSocketChannel) key.channel(), (NioSmtpEngine) key.attachment());
+							} catch (IOException e) {
+								// the server was stopped, or is out of file descriptors
+								log.debug("could not accept connection", e);
+							}
+						} else {
+							((Connection) key.attachment()).handle(key);
+						}
+					}
+				}
+			} catch (Exception e) {
+				if (!stopped) {
+					log.error("hit exception when running selector", e);
+				}
+			} finally {
+				closeAll();
+			}
+		}
+
+		/**
+		 * Waits for I/O, a task, or the next timer to be due.
+		 */
+		private void select() throws IOException {
+			Timer next = timers.peek();
+			if (next == null) {
+				selector.select();
+				return;
+			}
+			long millis = (next.due - System.nanoTime() + 999999) / 1000000;
+			if (millis > 0) {
+				selector.select(millis);
+			} else {
+				selector.selectNow();
+			}
+		}
+
+		private void runTimers() {
+			long now = System.nanoTime();
+			Timer next;
+			while ((next = timers.peek()) != null && next.due - now <= 0) {
+				timers.poll().task.run();
+			}
+		}
+
+		private void runTasks() {
+			Runnable task;
+			while ((task = tasks.poll()) != null) {
+				task.run();
+			}
+		}
+
+		private void closeAll() {
+			// tasks may hold connections not registered yet, and waiting threads
+			runTasks();
+			for (SelectionKey key : selector.keys()) {
+				if (key.attachment() instanceof Connection) {
+					((Connection) key.attachment()).close();
+				}
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {
+				log.warn("trouble closing selector", e);
+			}
+		}
+	}
+
+	/**
+	 * A task to be run by a loop once it is due.
+	 */
+	private static final class Timer implements Comparable<Timer> {
+		/** When to run the task, in nanoseconds. */
+		private final long due;
+		private final long sequence;
+		private final Runnable task;
+
+		private Timer(long due, long sequence, Runnable task) {
+			this.due = due;
+			this.sequence = sequence;
+			this.task = task;
+		}
+
+		@Override
+		public int compareTo(Timer other) {
+			long diff = due - other.due;
+			if (diff != 0) {
+				return diff < 0 ? -1 : 1;
+			}
+			return sequence < other.sequence ? -1 : sequence == other.sequence ? 0 : 1;
+		}
+	}
+
+	/**
+	 * State of a single client connection: the SMTP session and the bytes not yet processed or sent.
+	 */
+	private static final class Connection {
+		private final SocketChannel channel;
+		private final NioSmtpEngine engine;
+		private final EventLoop loop;
+		private final SmtpSession session;
+		/** Slows down reading, null if it is not slowed down. */
+		private final TrafficShaping.ReadThrottle throttle;
+		private SelectionKey key;
+		private boolean closed;
+		/** Message completed by the session, to be delivered before it is acknowledged. */
+		private SmtpMessage undelivered;
+		/**
+		 * Response waiting for its delay to pass or its message to be delivered; no further input is processed
+		 * meanwhile.
+		 */
+		private SmtpResponse delayed;
+		/** Set while reading pauses because of the {@link #throttle}. */
+		private boolean throttled;
+		/** Times out the client. */
+		private final SessionWatchdog watchdog;
+		/** Set once the session has to end; the connection is closed once the responses are sent. */
+		private boolean closing;
+		/** Received bytes, in write mode. Everything before {@link #scanned} is known not to contain a line end. */
+		private ByteBuffer in = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+		private int scanned;
+		/** Responses not yet sent, in write mode. */
+		private ByteBuffer out = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+
+		private Connection(SocketChannel channel, NioSmtpEngine engine, EventLoop loop) {
+			this.channel = channel;
+			this.engine = engine;
+			this.loop = loop;
+			this.session = new SmtpSession(new MessageSink() {
+				@Override
+				public void deliver(SmtpMessage msg) {
+					// delivered once the session has answered, see respond
+					undelivered = msg;
+				}
+			}, engine.metrics);
+			this.throttle = engine.shaping.newReadThrottle();
+			this.watchdog = new SessionWatchdog(engine.timeouts) {
+				@Override
+				void expired() {
+					Connection.this.loop.execute(new Task() {
+						@Override
+						void runTask() {
+							Connection.this.expire();
+						}
+					});
+				}
+
+				@Override
+				void abort() {
+					Connection.this.loop.execute(new Task() {
+						@Override
+						void runTask() {
+							Connection.this.close();
+						}
+					});
+				}
+			};
+		}
+
+		private void start(SelectionKey key) {
+			this.key = key;
+			try {
+				watchdog.start();
+				respond(session.connect());
+				flush();
+			} catch (RuntimeException e) {
+				failed(e);
+			}
+		}
+
+		private void handle(SelectionKey key) {
+			try {
+				if (key.isWritable()) {
+					flush();
+				}
+				if (key.isValid() && key.isReadable()) {
+					read();
+				}
+			} catch (IOException e) {
+				log.debug("client connection failed", e);
+				close();
+			} catch (RuntimeException e) {
+				failed(e);
+			}
+		}
+
+		/**
+		 * Closes the connection after an unexpected exception, e.g. thrown by a message listener, instead of letting
+		 * it end the loop and with it all other connections.
+		 */
+		private void failed(RuntimeException e) {
+			log.error("closing client connection after unexpected exception", e);
+			close();
+		}
+
+		private void read() throws IOException {
+			int limit = in.limit();
+			if (throttle != null) {
+				in.limit(Math.min(limit, in.position() + throttle.maxRead()));
+			}
+			int read = channel.read(in);
+			in.limit(limit);
+			if (read < 0) {
+				close();
+				return;
+			}
+			if (throttle != null && read > 0) {
+				pauseReading(throttle.pause(read));
+			}
+			processLines();
+			if (!in.hasRemaining()) {
+				ByteBuffer bigger = ByteBuffer.allocate(in.capacity() * 2);
+				in.flip();
+				bigger.put(in);
+				in = bigger;
+			}
+			flush();
+		}
+
+		/**
+		 * Feeds all complete lines and BDAT data to the session and queues the responses.
+		 */
+		private void processLines() {
+			byte[] bytes = in.array();
+			int end = in.position();
+			int pos = 0;
+			int scanFrom = scanned;
+			// whether the loop ended for lack of a line end, rather than before looking for one
+			boolean incomplete = false;
+			while (!session.isFinished() && delayed == null && !closing) {
+				int chunkRemaining = session.getChunkRemaining();
+				if (chunkRemaining > 0) {
+					int length = Math.min(end - pos, chunkRemaining);
+					if (length == 0) {
+						break;
+					}
+					respond(session.receiveChunk(bytes, pos, length));
+					pos += length;
+					scanFrom = pos;
+					continue;
+				}
+				int lineEnd = -1;
+				for (int i = Math.max(scanFrom - 1, pos); i < end - 1; i++) {
+					if (bytes[i] == '\r' && bytes[i + 1] == '\n') {
+						lineEnd = i;
+						break;
+					}
+				}
+				if (lineEnd < 0) {
+					incomplete = true;
+					break;
+				}
+				respond(session.handle(bytes, pos, lineEnd - pos));
+				pos = lineEnd + 2;
+				scanFrom = pos;
+			}
+			in.flip();
+			in.position(pos);
+			in.compact();
+			// lines left behind by a delayed response or a finished session have not been looked for yet
+			scanned = incomplete ? in.position() : 0;
+		}
+
+		/**
+		 * Queues a response, or holds it back until its delay has passed.
+		 */
+		private void respond(SmtpResponse response) {
+			watchdog.working();
+			if (undelivered != null) {
+				deliver(response);
+				return;
+			}
+			long delay = response != null && response.getCode() > 0
+					? engine.shaping.responseDelay(session.getLastAction()) : 0;
+			if (delay <= 0) {
+				queue(response);
+				return;
+			}
+			delayed = response;
+			loop.schedule(new Task() {
+				@Override
+				void runTask() {
+					if (!closed && !closing) {
+						SmtpResponse response = delayed;
+						delayed = null;
+						queue(response);
+						// and go on with the input that came meanwhile
+						processLines();
+						flush();
+					}
+				}
+			}, delay);
+		}
+
+		/**
+		 * Holds back the response accepting a message until the message has been delivered, which may take a journal
+		 * sync.
+		 */
+		private void deliver(final SmtpResponse accepted) {
+			SmtpMessage msg = undelivered;
+			undelivered = null;
+			delayed = accepted;
+			engine.sink.deliver(msg, new AsyncMessageSink.Callback() {
+				@Override
+				public void delivered(final Exception failure) {
+					if (Thread.currentThread() == loop.thread) {
+						// delivered right away, before respond returns
+						finishDelivery(accepted, failure);
+						return;
+					}
+					loop.execute(new Task() {
+						@Override
+						void runTask() {
+							if (!closed && !closing) {
+								finishDelivery(accepted, failure);
+								// and go on with the input that came meanwhile
+								processLines();
+								flush();
+							}
+						}
+					});
+				}
+			});
+		}
+
+		private void finishDelivery(SmtpResponse accepted, Exception failure) {
+			delayed = null;
+			if (failure == null) {
+				respond(accepted);
+			} else {
+				log.warn("could not deliver message", failure);
+				respond(SmtpSession.deliveryFailed(accepted));
+			}
+		}
+
+		private void pauseReading(long nanos) {
+			if (nanos <= 0) {
+				return;
+			}
+			throttled = true;
+			loop.schedule(new Task() {
+				@Override
+				void runTask() {
+					if (!closed) {
+						throttled = false;
+						flush();
+					}
+				}
+			}, nanos);
+		}
+
+		/**
+		 * Sends the client the reason why the session ends, and closes the connection.
+		 */
+		private void expire() {
+			if (closed || closing) {
+				return;
+			}
+			SmtpResponse response = watchdog.getExpiredWith();
+			if (response == SmtpSession.TIMEOUT) {
+				engine.metrics.sessionTimedOut();
+			}
+			closing = true;
+			delayed = null;
+			queue(response);
+			flush();
+		}
+
+		private void queue(SmtpResponse response) {
+			if (response != null && response.getCode() > 0) {
+				byte[] bytes = response.toBytes();
+				if (out.remaining() < bytes.length) {
+					ByteBuffer bigger = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + bytes.length));
+					out.flip();
+					bigger.put(out);
+					out = bigger;
+				}
+				out.put(bytes);
+			}
+		}
+
+		/**
+		 * Sends as much of the queued responses as possible. While responses are pending, no further input is read,
+		 * so a client that does not read its responses cannot make the server buffer without limits. Neither is input
+		 * read while a response is delayed or reading is throttled.
+		 */
+		private void flush() {
+			try {
+				out.flip();
+				channel.write(out);
+				out.compact();
+			} catch (IOException e) {
+				log.debug("client connection failed", e);
+				close();
+				return;
+			}
+			if (out.position() > 0) {
+				key.interestOps(SelectionKey.OP_WRITE);
+			} else if (closing) {
+				close();
+			} else if (delayed != null) {
+				key.interestOps(0);
+			} else if (session.isFinished()) {
+				close();
+			} else if (throttled) {
+				key.interestOps(0);
+			} else {
+				watchdog.waiting(session);
+				key.interestOps(SelectionKey.OP_READ);
+			}
+		}
+
+		private void close() {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			if (key != null) {
+				key.cancel();
+			}
+			try {
+				channel.close();
+			} catch (IOException e) {
+				log.debug("trouble closing client connection", e);
+			}
+			session.close();
+			watchdog.close();
+			engine.connectionClosed();
+		}
+
+		/**
+		 * Work on this connection handed to the loop, which only closes the connection if it fails.
+		 */
+		private abstract class Task implements Runnable {
+			@Override
+			public final void run() {
+				try {
+					runTask();
+				} catch (RuntimeException e) {
+					failed(e);
+				}
+			}
+
+			abstract void runTask();
+		}
+	}
+}
@@ -0,0 +1,147 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2016 Joachim Nicolay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Splits a byte stream into CRLF terminated lines without decoding them. The current line is a slice of an internal
+ * buffer, valid until the next call to {@link #next()}. A bare CR or LF is part of the line, just as SMTP wants it.
+ * <p>
+ * Before reading from the stream, which may block, the reader flushes the responses written so far. So the responses
+ * to a burst of pipelined commands are sent together once the whole burst is processed.
+ */
+class SmtpLineReader {
+	private static final int INITIAL_BUFFER_SIZE = 8192;
+
+	private final InputStream in;
+	private final Flushable out;
+	private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+	/** Start of the current line. */
+	private int lineStart;
+	/** Length of the current line, without the line terminator. */
+	private int lineLength;
+	/** Start of the bytes not yet returned as a line. */
+	private int pending;
+	/** End of the bytes read. */
+	private int end;
+
+	/**
+	 * @param in  stream to read the lines from
+	 * @param out responses to the lines, flushed before waiting for input
+	 */
+	SmtpLineReader(InputStream in, Flushable out) {
+		this.in = in;
+		this.out = out;
+	}
+
+	/**
+	 * Moves on to the next line, reading from the stream if necessary.
+	 *
+	 * @return false at end of stream, the last line may lack the terminator
+	 * @throws IOException when reading fails
+	 */
+	boolean next() throws IOException {
+		// number of pending bytes known not to contain a line terminator
+		int scanned = 0;
+		while (true) {
+			for (int i = pending + Math.max(scanned - 1, 0); i < end - 1; i++) {
+				if (buffer[i] == '\r' && buffer[i + 1] == '\n') {
+					lineStart = pending;
+					lineLength = i - pending;
+					pending = i + 2;
+					return true;
+				}
+			}
+			scanned = end - pending;
+			if (!fill()) {
+				if (pending < end) {
+					lineStart = pending;
+					lineLength = end - pending;
+					pending = end;
+					return true;
+				}
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Moves on to the raw bytes following the current line, e.g. BDAT data, without looking for line ends. Reads
+	 * from the stream only if no bytes are buffered.
+	 *
+	 * @param max maximum number of bytes to return
+	 * @return number of bytes now available as current line, 0 at end of stream
+	 * @throws IOException when reading fails
+	 */
+	int nextChunk(int max) throws IOException {
+		if (pending == end && !fill()) {
+			return 0;
+		}
+		lineStart = pending;
+		lineLength = Math.min(end - pending, max);
+		pending += lineLength;
+		return lineLength;
+	}
+
+	/**
+	 * @return buffer holding the current line
+	 */
+	byte[] buffer() {
+		return buffer;
+	}
+
+	/**
+	 * @return offset of the current line in the {@link #buffer()}
+	 */
+	int lineStart() {
+		return lineStart;
+	}
+
+	/**
+	 * @return length of the current line
+	 */
+	int lineLength() {
+		return lineLength;
+	}
+
+	/**
+	 * Reads more bytes behind the pending ones, making room first.
+	 *
+	 * @return false at end of stream
+	 */
+	private boolean fill() throws IOException {
+		if (pending > 0) {
+			System.arraycopy(buffer, pending, buffer, 0, end - pending);
+			end -= pending;
+			pending = 0;
+		}
+		if (end == buffer.length) {
+			buffer = Arrays.copyOf(buffer, buffer.length * 2);
+		}
+		out.flush();
+		int read = in.read(buffer, end, buffer.length - end);
+		if (read < 0) {
+			return false;
+		}
+		end += read;
+		return true;
+	}
+}
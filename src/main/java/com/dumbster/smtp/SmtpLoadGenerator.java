@@ -0,0 +1,692 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2016 Joachim Nicolay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Sends mail to an SMTP server as fast as it takes it, to measure the server rather than the client. Each connection
+ * is driven by a thread of its own over a plain socket: the commands and the message are prepared once as bytes, and
+ * the replies are only checked for their code. The connections are reused for many messages.
+ * <p>
+ * Run it from a test against a {@link SimpleSmtpServer}:
+ * <pre>
+ * SmtpLoadGenerator.Report report = SmtpLoadGenerator.builder()
+ *         .port(server.getPort())
+ *         .connections(8)
+ *         .messages(100000)
+ *         .run();
+ * </pre>
+ * or from the command line against any server, see {@link #main(String[])}.
+ */
+public final class SmtpLoadGenerator {
+	private static final byte[] CRLF = {'\r', '\n'};
+	private static final byte[] EHLO = bytes("EHLO localhost\r\n");
+	private static final byte[] RSET = bytes("RSET\r\n");
+	private static final byte[] DATA_END = bytes(".\r\n");
+	private static final byte[] QUIT = bytes("QUIT\r\n");
+	/** Length of the body lines, without the line end. */
+	private static final int LINE_LENGTH = 76;
+	/** How long to wait for a reply before giving up on the connection. */
+	private static final int READ_TIMEOUT = 30000;
+
+	private final String host;
+	private final int port;
+	private final int connections;
+	private final long messages;
+	private final long durationNanos;
+	private final int messagesPerConnection;
+	private final int recipients;
+	private final boolean pipelining;
+
+	/** Everything from the MAIL command up to the DATA command. */
+	private final byte[][] envelope;
+	/** The message including the terminating dot line. */
+	private final byte[] content;
+
+	private SmtpLoadGenerator(Builder builder) {
+		this.host = builder.host;
+		this.port = builder.port;
+		this.connections = builder.connections;
+		this.messages = builder.messages;
+		this.durationNanos = builder.durationNanos;
+		this.messagesPerConnection = builder.messagesPerConnection;
+		this.recipients = builder.recipients;
+		this.pipelining = builder.pipelining;
+		this.envelope = createEnvelope();
+		this.content = createContent(builder.messageSize);
+	}
+
+	/**
+	 * @return a builder for a load run, sending 1000 messages of 1 KiB over one connection by default
+	 */
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	/**
+	 * Runs the load generator from the command line, and prints the report. Options, all optional:
+	 * <pre>
+	 * --host host            server to send to, localhost by default
+	 * --port port            port to send to, 25 by default
+	 * --connections n        number of concurrent connections, 1 by default
+	 * --messages n           number of messages to send in total, 1000 by default
+	 * --duration seconds     send for this long instead of a fixed number of messages
+	 * --size bytes           size of each message, 1024 by default
+	 * --recipients n         number of recipients of each message, 1 by default
+	 * --per-connection n     messages sent before reconnecting, 0 to keep the connection, the default
+	 * --pipelining true      send the envelope commands without waiting for each reply, false by default
+	 * </pre>
+	 *
+	 * @param args the options
+	 * @throws Exception when the run fails
+	 */
+	public static void main(String[] args) throws Exception {
+		Builder builder = builder();
+		for (int i = 0; i < args.length; i++) {
+			String option = args[i];
+			if (i + 1 == args.length) {
+				throw new IllegalArgumentException("missing value of option " + option);
+			}
+			String value = args[++i];
+			switch (option) {
+				case "--host":
+					builder.host(value);
+					break;
+				case "--port":
+					builder.port(Integer.parseInt(value));
+					break;
+				case "--connections":
+					builder.connections(Integer.parseInt(value));
+					break;
+				case "--messages":
+					builder.messages(Long.parseLong(value));
+					break;
+				case "--duration":
+					builder.duration(Long.parseLong(value), TimeUnit.SECONDS);
+					break;
+				case "--size":
+					builder.messageSize(Integer.parseInt(value));
+					break;
+				case "--recipients":
+					builder.recipients(Integer.parseInt(value));
+					break;
+				case "--per-connection":
+					builder.messagesPerConnection(Integer.parseInt(value));
+					break;
+				case "--pipelining":
+					builder.pipelining(Boolean.parseBoolean(value));
+					break;
+				default:
+					throw new IllegalArgumentException("unknown option " + option);
+			}
+		}
+		System.out.println(builder.run());
+	}
+
+	/**
+	 * Sends the messages and waits until all connections are done.
+	 *
+	 * @return what has been measured
+	 * @throws IOException when a connection cannot be opened at all
+	 * @throws InterruptedException when interrupted while waiting for the connections
+	 */
+	private Report run() throws IOException, InterruptedException {
+		AtomicLong remaining = new AtomicLong(messages);
+		CountDownLatch connected = new CountDownLatch(connections);
+		CountDownLatch started = new CountDownLatch(1);
+		AtomicReference<IOException> connectFailure = new AtomicReference<>();
+		ExecutorService executor = Executors.newFixedThreadPool(connections, new NamedThreadFactory("dumbster-load-"));
+		try {
+			List<Future<Worker>> workers = new ArrayList<>();
+			for (int i = 0; i < connections; i++) {
+				workers.add(executor.submit(new Worker(remaining, connected, started, connectFailure)));
+			}
+			// connecting is not part of the measurement
+			connected.await();
+			if (connectFailure.get() != null) {
+				remaining.set(0);
+				started.countDown();
+				throw connectFailure.get();
+			}
+			long start = System.nanoTime();
+			started.countDown();
+			Report report = new Report();
+			for (Future<Worker> worker : workers) {
+				try {
+					report.add(worker.get());
+				} catch (ExecutionException e) {
+					throw new IllegalStateException("load generator failed", e.getCause());
+				}
+			}
+			report.elapsedNanos = System.nanoTime() - start;
+			return report;
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private byte[][] createEnvelope() {
+		byte[][] commands = new byte[recipients + 2][];
+		commands[0] = bytes("MAIL FROM:<load@localhost>\r\n");
+		for (int i = 0; i < recipients; i++) {
+			commands[i + 1] = bytes("RCPT TO:<rcpt" + (i + 1) + "@localhost>\r\n");
+		}
+		commands[recipients + 1] = bytes("DATA\r\n");
+		return commands;
+	}
+
+	/**
+	 * @return headers and a body of lines of x to make up the given size, roughly, and the terminating dot line
+	 */
+	private static byte[] createContent(int size) {
+		StringBuilder message = new StringBuilder(size + 100);
+		message.append("From: load@localhost\r\nTo: rcpt1@localhost\r\nSubject: load\r\n\r\n");
+		StringBuilder line = new StringBuilder(LINE_LENGTH + 2);
+		for (int i = 0; i < LINE_LENGTH; i++) {
+			line.append('x');
+		}
+		line.append("\r\n");
+		while (message.length() + line.length() <= size) {
+			message.append(line);
+		}
+		int rest = size - message.length() - CRLF.length;
+		if (rest > 0) {
+			message.append(line, 0, rest).append("\r\n");
+		}
+		message.append(".\r\n");
+		return bytes(message.toString());
+	}
+
+	private static byte[] bytes(String s) {
+		return s.getBytes(StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * Drives one connection, sending messages until there are no more to send or the time is up.
+	 */
+	private final class Worker implements Callable<Worker> {
+		private final AtomicLong remaining;
+		private final CountDownLatch connected;
+		private final CountDownLatch started;
+		private final AtomicReference<IOException> connectFailure;
+		private final LatencyHistogram latencies = new LatencyHistogram();
+		private final byte[] replyBuffer = new byte[4096];
+		private int replyStart;
+		private int replyEnd;
+		private long bytes;
+		private long failed;
+		private long reconnects;
+		private Socket socket;
+		private InputStream in;
+		private OutputStream out;
+
+		private Worker(AtomicLong remaining, CountDownLatch connected, CountDownLatch started,
+				AtomicReference<IOException> connectFailure) {
+			this.remaining = remaining;
+			this.connected = connected;
+			this.started = started;
+			this.connectFailure = connectFailure;
+		}
+
+		@Override
+		public Worker call() throws InterruptedException {
+			try {
+				connect();
+			} catch (IOException e) {
+				connectFailure.compareAndSet(null, e);
+			} finally {
+				connected.countDown();
+			}
+			started.await();
+			long deadline = durationNanos > 0 ? System.nanoTime() + durationNanos : Long.MAX_VALUE;
+			int onConnection = 0;
+			try {
+				while (remaining.getAndDecrement() > 0 && System.nanoTime() - deadline < 0) {
+					if (socket == null || messagesPerConnection > 0 && onConnection == messagesPerConnection) {
+						reconnect();
+						onConnection = 0;
+					}
+					send();
+					onConnection++;
+				}
+				quit();
+			} catch (IOException e) {
+				// the server went away and cannot be connected to again
+				failed++;
+			} finally {
+				close();
+			}
+			return this;
+		}
+
+		private void send() {
+			long start = System.nanoTime();
+			try {
+				if (!sendEnvelope() || !command(content, 250)) {
+					reset();
+					return;
+				}
+				latencies.record(System.nanoTime() - start);
+				bytes += content.length;
+			} catch (IOException e) {
+				failed++;
+				close();
+			}
+		}
+
+		/**
+		 * @return true if the server is ready for the content
+		 */
+		private boolean sendEnvelope() throws IOException {
+			if (pipelining) {
+				for (byte[] command : envelope) {
+					out.write(command);
+				}
+				out.flush();
+				boolean accepted = true;
+				for (int i = 0; i < envelope.length - 1; i++) {
+					accepted &= readReply() == 250;
+				}
+				if (readReply() != 354) {
+					return false;
+				}
+				if (!accepted) {
+					// some recipients were refused, but not all: the server waits for the data, so RSET would be
+					// taken as part of it
+					command(DATA_END, 250);
+				}
+				return accepted;
+			}
+			for (int i = 0; i < envelope.length - 1; i++) {
+				if (!command(envelope[i], 250)) {
+					return false;
+				}
+			}
+			return command(envelope[envelope.length - 1], 354);
+		}
+
+		/**
+		 * Counts a message refused by the server, and makes the server forget it.
+		 */
+		private void reset() throws IOException {
+			failed++;
+			if (!command(RSET, 250)) {
+				close();
+			}
+		}
+
+		private void connect() throws IOException {
+			socket = new Socket();
+			socket.setTcpNoDelay(true);
+			socket.setSoTimeout(READ_TIMEOUT);
+			socket.connect(new InetSocketAddress(host, port));
+			in = socket.getInputStream();
+			out = socket.getOutputStream();
+			replyStart = 0;
+			replyEnd = 0;
+			if (readReply() != 220 || !command(EHLO, 250)) {
+				close();
+				throw new IOException("server at " + host + ":" + port + " does not greet as expected");
+			}
+		}
+
+		private void reconnect() throws IOException {
+			quit();
+			close();
+			connect();
+			reconnects++;
+		}
+
+		private void quit() {
+			if (socket != null) {
+				try {
+					command(QUIT, 221);
+				} catch (IOException e) {
+					// closed anyway
+				}
+			}
+		}
+
+		private void close() {
+			if (socket != null) {
+				try {
+					socket.close();
+				} catch (IOException e) {
+					// nothing to be done about it
+				}
+				socket = null;
+			}
+		}
+
+		/**
+		 * @return true if the reply has the expected code
+		 */
+		private boolean command(byte[] command, int expected) throws IOException {
+			out.write(command);
+			out.flush();
+			return readReply() == expected;
+		}
+
+		/**
+		 * Reads a reply, skipping continuation lines.
+		 *
+		 * @return the reply code
+		 */
+		private int readReply() throws IOException {
+			while (true) {
+				int lineEnd = findLineEnd();
+				int lineStart = replyStart;
+				replyStart = lineEnd + 2;
+				if (lineEnd - lineStart < 3) {
+					throw new IOException("malformed reply");
+				}
+				if (lineEnd - lineStart == 3 || replyBuffer[lineStart + 3] != '-') {
+					return (replyBuffer[lineStart] - '0') * 100 + (replyBuffer[lineStart + 1] - '0') * 10
+							+ (replyBuffer[lineStart + 2] - '0');
+				}
+			}
+		}
+
+		/**
+		 * @return position of the CR ending the next reply line, reading more from the server as needed
+		 */
+		private int findLineEnd() throws IOException {
+			int scanned = replyStart;
+			while (true) {
+				for (int i = scanned; i < replyEnd - 1; i++) {
+					if (replyBuffer[i] == '\r' && replyBuffer[i + 1] == '\n') {
+						return i;
+					}
+				}
+				scanned = Math.max(replyEnd - 1, replyStart);
+				if (replyStart > 0) {
+					System.arraycopy(replyBuffer, replyStart, replyBuffer, 0, replyEnd - replyStart);
+					scanned -= replyStart;
+					replyEnd -= replyStart;
+					replyStart = 0;
+				}
+				if (replyEnd == replyBuffer.length) {
+					throw new IOException("reply line too long");
+				}
+				int read = in.read(replyBuffer, replyEnd, replyBuffer.length - replyEnd);
+				if (read < 0) {
+					throw new IOException("connection closed by server");
+				}
+				replyEnd += read;
+			}
+		}
+	}
+
+	/**
+	 * What a load run has measured. Latencies are measured per message, from sending the MAIL command to the reply
+	 * to the end of the data.
+	 */
+	public static final class Report {
+		private final LatencyHistogram latencies = new LatencyHistogram();
+		private long failed;
+		private long reconnects;
+		private long bytes;
+		private long elapsedNanos;
+
+		private Report() {
+		}
+
+		private void add(Worker worker) {
+			latencies.add(worker.latencies);
+			failed += worker.failed;
+			reconnects += worker.reconnects;
+			bytes += worker.bytes;
+		}
+
+		/**
+		 * @return number of messages accepted by the server
+		 */
+		public long getMessages() {
+			return latencies.getCount();
+		}
+
+		/**
+		 * @return number of messages refused by the server or lost with their connection
+		 */
+		public long getFailedMessages() {
+			return failed;
+		}
+
+		/**
+		 * @return number of times a connection was closed and opened again
+		 */
+		public long getReconnects() {
+			return reconnects;
+		}
+
+		/**
+		 * @return size of the messages accepted, in bytes
+		 */
+		public long getBytes() {
+			return bytes;
+		}
+
+		/**
+		 * @param unit the unit to return the time in
+		 * @return how long the run took
+		 */
+		public long getElapsed(TimeUnit unit) {
+			return unit.convert(elapsedNanos, TimeUnit.NANOSECONDS);
+		}
+
+		/**
+		 * @return messages accepted per second
+		 */
+		public double getMessagesPerSecond() {
+			return elapsedNanos == 0 ? 0 : getMessages() * 1e9 / elapsedNanos;
+		}
+
+		/**
+		 * @param percentile between 0 and 100, e.g. 99.9
+		 * @param unit       the unit to return the latency in
+		 * @return latency at least as long as the latencies of the given percentage of the messages, precise to about
+		 * 3%
+		 */
+		public long getLatencyPercentile(double percentile, TimeUnit unit) {
+			return unit.convert(latencies.getPercentile(percentile), TimeUnit.NANOSECONDS);
+		}
+
+		/**
+		 * @param unit the unit to return the latency in
+		 * @return the longest latency of a message
+		 */
+		public long getMaxLatency(TimeUnit unit) {
+			return unit.convert(latencies.getMax(), TimeUnit.NANOSECONDS);
+		}
+
+		@Override
+		public String toString() {
+			double seconds = elapsedNanos / 1e9;
+			return String.format(Locale.ROOT, "%d messages in %.2f s, %d failed, %d reconnects%n"
+							+ "throughput: %.0f messages/s, %.2f MiB/s%n"
+							+ "latency (us): mean %.0f, p50 %d, p90 %d, p99 %d, p99.9 %d, max %d",
+					getMessages(), seconds, failed, reconnects,
+					getMessagesPerSecond(), seconds == 0 ? 0 : bytes / seconds / (1 << 20),
+					latencies.getMean() / 1000, micros(50), micros(90), micros(99), micros(99.9),
+					getMaxLatency(TimeUnit.MICROSECONDS));
+		}
+
+		private long micros(double percentile) {
+			return getLatencyPercentile(percentile, TimeUnit.MICROSECONDS);
+		}
+	}
+
+	/**
+	 * Collects the settings of a load run.
+	 */
+	public static final class Builder {
+		private String host = "localhost";
+		private int port = SimpleSmtpServer.DEFAULT_SMTP_PORT;
+		private int connections = 1;
+		private long messages = 1000;
+		private long durationNanos = 0;
+		private int messagesPerConnection = 0;
+		private int messageSize = 1024;
+		private int recipients = 1;
+		private boolean pipelining;
+
+		private Builder() {
+		}
+
+		/**
+		 * @param host name or address of the server, localhost by default
+		 * @return this builder
+		 */
+		public Builder host(String host) {
+			if (host == null) {
+				throw new IllegalArgumentException("host must not be null");
+			}
+			this.host = host;
+			return this;
+		}
+
+		/**
+		 * @param port port of the server, e.g. {@link SimpleSmtpServer#getPort()}
+		 * @return this builder
+		 */
+		public Builder port(int port) {
+			if (port < 1 || port > 65535) {
+				throw new IllegalArgumentException("not a port: " + port);
+			}
+			this.port = port;
+			return this;
+		}
+
+		/**
+		 * @param connections number of connections sending concurrently, each with a thread of its own
+		 * @return this builder
+		 */
+		public Builder connections(int connections) {
+			if (connections < 1) {
+				throw new IllegalArgumentException("need at least one connection, got " + connections);
+			}
+			this.connections = connections;
+			return this;
+		}
+
+		/**
+		 * @param messages number of messages to send over all connections, 1000 by default
+		 * @return this builder
+		 */
+		public Builder messages(long messages) {
+			if (messages < 1) {
+				throw new IllegalArgumentException("need to send at least one message, got " + messages);
+			}
+			this.messages = messages;
+			return this;
+		}
+
+		/**
+		 * Sends for the given time instead of a fixed number of {@link #messages(long) messages}.
+		 *
+		 * @param duration how long to send
+		 * @param unit     unit of the duration
+		 * @return this builder
+		 */
+		public Builder duration(long duration, TimeUnit unit) {
+			if (duration < 1) {
+				throw new IllegalArgumentException("duration must be positive, got " + duration);
+			}
+			this.durationNanos = unit.toNanos(duration);
+			this.messages = Long.MAX_VALUE;
+			return this;
+		}
+
+		/**
+		 * @param count number of messages sent over a connection before it is closed and opened again, 0 to keep the
+		 *              connections for the whole run, the default
+		 * @return this builder
+		 */
+		public Builder messagesPerConnection(int count) {
+			if (count < 0) {
+				throw new IllegalArgumentException("messages per connection must not be negative, got " + count);
+			}
+			this.messagesPerConnection = count;
+			return this;
+		}
+
+		/**
+		 * @param bytes approximate size of each message including its headers, 1024 by default
+		 * @return this builder
+		 */
+		public Builder messageSize(int bytes) {
+			if (bytes < 0) {
+				throw new IllegalArgumentException("message size must not be negative, got " + bytes);
+			}
+			this.messageSize = bytes;
+			return this;
+		}
+
+		/**
+		 * @param recipients number of recipients of each message, 1 by default
+		 * @return this builder
+		 */
+		public Builder recipients(int recipients) {
+			if (recipients < 1) {
+				throw new IllegalArgumentException("need at least one recipient, got " + recipients);
+			}
+			this.recipients = recipients;
+			return this;
+		}
+
+		/**
+		 * Sends the MAIL, RCPT and DATA commands of a message at once, then reads their replies, instead of waiting
+		 * for each reply in turn. Needs a server supporting PIPELINING, like this one.
+		 *
+		 * @param pipelining whether to pipeline the commands, false by default
+		 * @return this builder
+		 */
+		public Builder pipelining(boolean pipelining) {
+			this.pipelining = pipelining;
+			return this;
+		}
+
+		/**
+		 * Sends the messages and waits until all connections are done.
+		 *
+		 * @return what has been measured
+		 * @throws IOException when a connection cannot be opened at all
+		 * @throws InterruptedException when interrupted while waiting
+		 */
+		public Report run() throws IOException, InterruptedException {
+			return new SmtpLoadGenerator(this).run();
+		}
+	}
+}
@@ -17,7 +17,11 @@
  */
 package com.dumbster.smtp;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
@@ -29,15 +33,31 @@ import java.util.Set;
  * Container for a complete SMTP message - headers and message body.
  */
 public class SmtpMessage {
-	/** Headers: Map of List of String hashed on header name. */
-	private Map<String, List<String>> headers;
-	/** Message body. */
-	private StringBuilder body;
+	private static final byte[] CRLF = {'\r', '\n'};
 
-	/** Constructor. Initializes headers Map and body buffer. */
+	/** Header lines as received, each one followed by CRLF. Only parsed when a header is asked for. */
+	private byte[] headerBlock;
+	/** Number of bytes used in {@link #headerBlock}. */
+	private int headerLength;
+	/** Headers: Map of List of String hashed on header name, null until parsed from the {@link #headerBlock}. */
+	private volatile Map<String, List<String>> headers;
+	/** Message body: the lines as received, each one followed by CRLF. Only decoded when asked for. */
+	private byte[] body;
+	/** Number of bytes used in {@link #body}. */
+	private int bodyLength;
+	/** The body once it has been moved to a {@link MessageSpool}, {@link #body} is null then. */
+	private ByteBuffer spooledBody;
+	/** Sender given with MAIL FROM. */
+	private String envelopeSender;
+	/** Recipients given with RCPT TO. */
+	private List<String> envelopeRecipients = Collections.emptyList();
+	/** When the message was received, for the retention policy of the {@link MailStore}; 0 until it is stored. */
+	long receivedAt;
+
+	/** Constructor. Initializes header and body buffers. */
 	public SmtpMessage() {
-		headers = new LinkedHashMap<>(10);
-		body = new StringBuilder();
+		headerBlock = new byte[0];
+		body = new byte[0];
 	}
 
 	/**
@@ -48,17 +68,271 @@ public class SmtpMessage {
 	 */
 	public void store(SmtpResponse response, String params) {
 		if (params != null) {
-			if (SmtpState.DATA_HDR.equals(response.getNextState())) {
-				int headerNameEnd = params.indexOf(':');
-				if (headerNameEnd >= 0) {
-					String name = params.substring(0, headerNameEnd).trim();
-					String value = params.substring(headerNameEnd + 1).trim();
-					addHeader(name, value);
+			byte[] line = params.getBytes(StandardCharsets.ISO_8859_1);
+			store(response, line, 0, line.length);
+		}
+	}
+
+	/**
+	 * Update the headers or body depending on the SmtpResponse object and line of input, without decoding body lines.
+	 *
+	 * @param response SmtpResponse object
+	 * @param line     buffer holding the remainder of input line after SMTP command has been removed
+	 * @param offset   start of the remainder in the buffer
+	 * @param length   length of the remainder
+	 */
+	void store(SmtpResponse response, byte[] line, int offset, int length) {
+		if (SmtpState.DATA_HDR.equals(response.getNextState())) {
+			storeHeader(line, offset, length);
+		} else if (SmtpState.DATA_BODY == response.getNextState()) {
+			appendBody(line, offset, length);
+			appendBody(CRLF, 0, CRLF.length);
+		}
+	}
+
+	void setEnvelopeSender(String sender) {
+		this.envelopeSender = sender;
+	}
+
+	void addEnvelopeRecipient(String recipient) {
+		if (envelopeRecipients.isEmpty()) {
+			envelopeRecipients = new ArrayList<>(1);
+		}
+		envelopeRecipients.add(recipient);
+	}
+
+	/**
+	 * Appends message data received with BDAT. The data is not looked at until {@link #completeChunks()}.
+	 *
+	 * @param data   buffer holding the data
+	 * @param offset start of the data in the buffer
+	 * @param length length of the data
+	 */
+	void appendChunk(byte[] data, int offset, int length) {
+		appendBody(data, offset, length);
+	}
+
+	/**
+	 * Splits the data received with BDAT into headers and body, once the last chunk has been received. Only the
+	 * header lines are looked at, the body already has the form it is stored in.
+	 */
+	void completeChunks() {
+		int pos = 0;
+		while (pos < bodyLength) {
+			int lineEnd = indexOfCrlf(body, pos, bodyLength);
+			if (lineEnd == pos) {
+				// blank line: the body follows
+				pos += CRLF.length;
+				break;
+			}
+			storeHeader(body, pos, lineEnd - pos);
+			pos = Math.min(lineEnd + CRLF.length, bodyLength);
+		}
+		System.arraycopy(body, pos, body, 0, bodyLength - pos);
+		bodyLength -= pos;
+		if (bodyLength > 0 && indexOfCrlf(body, bodyLength - CRLF.length, bodyLength) != bodyLength - CRLF.length) {
+			appendBody(CRLF, 0, CRLF.length);
+		}
+	}
+
+	/**
+	 * Appends a header line to the header block, it is only parsed when the headers are asked for.
+	 */
+	private void storeHeader(byte[] line, int offset, int length) {
+		if (headerBlock.length < headerLength + length + CRLF.length) {
+			headerBlock = Arrays.copyOf(headerBlock, Math.max(2 * headerBlock.length, headerLength + length + CRLF.length));
+		}
+		System.arraycopy(line, offset, headerBlock, headerLength, length);
+		System.arraycopy(CRLF, 0, headerBlock, headerLength + length, CRLF.length);
+		headerLength += length + CRLF.length;
+		if (headers != null) {
+			headers = null;
+		}
+	}
+
+	/**
+	 * Gets the headers, parsing the header block on first use. Lines of the form "name: value" become headers, other
+	 * lines are ignored.
+	 *
+	 * @return the headers
+	 */
+	private Map<String, List<String>> headers() {
+		Map<String, List<String>> parsed = headers;
+		if (parsed == null) {
+			// threads racing here parse the same block and get equal maps
+			parsed = new LinkedHashMap<>(10);
+			int pos = 0;
+			while (pos < headerLength) {
+				int lineEnd = indexOfCrlf(headerBlock, pos, headerLength);
+				for (int i = pos; i < lineEnd; i++) {
+					if (headerBlock[i] == ':') {
+						String name = new String(headerBlock, pos, i - pos, StandardCharsets.ISO_8859_1).trim();
+						String value = new String(headerBlock, i + 1, lineEnd - i - 1, StandardCharsets.ISO_8859_1).trim();
+						addHeader(parsed, name, value);
+						break;
+					}
+				}
+				pos = lineEnd + CRLF.length;
+			}
+			headers = parsed;
+		}
+		return parsed;
+	}
+
+	/**
+	 * @return number of bytes of the message as received, not counting the lines not stored
+	 */
+	long size() {
+		return headerLength + bodyLength;
+	}
+
+	/**
+	 * @return the header lines as received, each one followed by CRLF, not to be modified
+	 */
+	ByteBuffer rawHeaders() {
+		return ByteBuffer.wrap(headerBlock, 0, headerLength).asReadOnlyBuffer();
+	}
+
+	/**
+	 * @return the body lines as received, each one followed by CRLF, not to be modified
+	 */
+	ByteBuffer rawBody() {
+		return body != null ? ByteBuffer.wrap(body, 0, bodyLength).asReadOnlyBuffer() : spooledBody.asReadOnlyBuffer();
+	}
+
+	/**
+	 * Recreates a message from its raw parts, e.g. read back from a {@link MessageJournal}.
+	 *
+	 * @param sender     sender given with MAIL FROM, may be null
+	 * @param recipients recipients given with RCPT TO
+	 * @param headers    header lines, each one followed by CRLF
+	 * @param body       body lines, each one followed by CRLF
+	 * @param receivedAt when the message was originally received
+	 * @return the message
+	 */
+	static SmtpMessage restore(String sender, List<String> recipients, byte[] headers, byte[] body, long receivedAt) {
+		SmtpMessage msg = new SmtpMessage();
+		msg.envelopeSender = sender;
+		if (!recipients.isEmpty()) {
+			msg.envelopeRecipients = new ArrayList<>(recipients);
+		}
+		msg.headerBlock = headers;
+		msg.headerLength = headers.length;
+		msg.body = body;
+		msg.bodyLength = body.length;
+		msg.receivedAt = receivedAt;
+		return msg;
+	}
+
+	/**
+	 * Moves the body into a spool, the message only keeps a reference to where it is stored.
+	 *
+	 * @param spool the spool
+	 * @throws IOException when writing to the spool fails
+	 */
+	void moveBodyTo(MessageSpool spool) throws IOException {
+		if (body != null) {
+			spooledBody = spool.write(body, 0, bodyLength);
+			body = null;
+		}
+	}
+
+	/**
+	 * @return the body bytes, read back from the spool if the body has been moved there
+	 */
+	private byte[] bodyBytes() {
+		if (body != null) {
+			return body;
+		}
+		byte[] bytes = new byte[bodyLength];
+		spooledBody.duplicate().get(bytes);
+		return bytes;
+	}
+
+	private void appendBody(byte[] data, int offset, int length) {
+		if (body == null) {
+			body = bodyBytes();
+			spooledBody = null;
+		}
+		if (body.length < bodyLength + length) {
+			body = Arrays.copyOf(body, Math.max(2 * body.length, bodyLength + length));
+		}
+		System.arraycopy(data, offset, body, bodyLength, length);
+		bodyLength += length;
+	}
+
+	/**
+	 * @return position of the first CRLF in the given range, the end of the range if there is none
+	 */
+	private static int indexOfCrlf(byte[] data, int from, int to) {
+		for (int i = Math.max(from, 0); i < to - 1; i++) {
+			if (data[i] == '\r' && data[i + 1] == '\n') {
+				return i;
+			}
+		}
+		return to;
+	}
+
+	/**
+	 * Get the sender given with the MAIL FROM command, which may differ from the From header.
+	 *
+	 * @return the sender's address without angle brackets, empty for bounces, null if unknown
+	 */
+	public String getEnvelopeSender() {
+		return envelopeSender;
+	}
+
+	/**
+	 * Get the recipients given with the RCPT TO commands, including those not named in any header.
+	 *
+	 * @return the recipients' addresses without angle brackets
+	 */
+	public List<String> getEnvelopeRecipients() {
+		return Collections.unmodifiableList(envelopeRecipients);
+	}
+
+	/**
+	 * Finds a header in the header block without parsing all of it. Header names are compared ignoring case.
+	 *
+	 * @param name header name
+	 * @return value of the first header with this name, null if there is none
+	 */
+	String findHeaderValue(String name) {
+		int pos = 0;
+		while (pos < headerLength) {
+			int lineEnd = indexOfCrlf(headerBlock, pos, headerLength);
+			for (int i = pos; i < lineEnd; i++) {
+				if (headerBlock[i] == ':') {
+					if (matchesName(pos, i, name)) {
+						return new String(headerBlock, i + 1, lineEnd - i - 1, StandardCharsets.ISO_8859_1).trim();
+					}
+					break;
 				}
-			} else if (SmtpState.DATA_BODY == response.getNextState()) {
-				body.append(params);
+			}
+			pos = lineEnd + CRLF.length;
+		}
+		return null;
+	}
+
+	/**
+	 * @return true if the header block holds the name, possibly surrounded by whitespace, between from and to
+	 */
+	private boolean matchesName(int from, int to, String name) {
+		while (from < to && headerBlock[from] <= ' ') {
+			from++;
+		}
+		while (to > from && headerBlock[to - 1] <= ' ') {
+			to--;
+		}
+		if (to - from != name.length()) {
+			return false;
+		}
+		for (int i = 0; i < name.length(); i++) {
+			if (Character.toLowerCase((char) (headerBlock[from + i] & 0xff)) != Character.toLowerCase(name.charAt(i))) {
+				return false;
 			}
 		}
+		return true;
 	}
 
 	/**
@@ -67,7 +341,7 @@ public class SmtpMessage {
 	 * @return an Iterator over the set of header names (String)
 	 */
 	public Set<String> getHeaderNames() {
-		return Collections.unmodifiableSet(new LinkedHashSet<>(headers.keySet()));
+		return Collections.unmodifiableSet(new LinkedHashSet<>(headers().keySet()));
 	}
 
 	/**
@@ -77,7 +351,7 @@ public class SmtpMessage {
 	 * @return value(s) associated with the header name
 	 */
 	public List<String> getHeaderValues(String name) {
-		List<String> values = headers.get(name);
+		List<String> values = headers().get(name);
 		if (values == null || values.isEmpty()) {
 			return Collections.emptyList();
 		} else {
@@ -92,7 +366,7 @@ public class SmtpMessage {
 	 * @return first value associated with the header name
 	 */
 	public String getHeaderValue(String name) {
-		List<String> values = headers.get(name);
+		List<String> values = headers().get(name);
 		if (values == null) {
 			return null;
 		} else {
@@ -101,21 +375,48 @@ public class SmtpMessage {
 	}
 
 	/**
-	 * Get the message body.
+	 * Get the message body. The body lines are joined without line terminators, except for empty lines which become
+	 * a single line break.
 	 *
 	 * @return message body
 	 */
 	public String getBody() {
-		return body.toString();
+		byte[] body = bodyBytes();
+		char[] chars = new char[bodyLength];
+		int length = 0;
+		int lineStart = 0;
+		for (int i = 0; i < bodyLength; i++) {
+			if (body[i] == '\r' && i + 1 < bodyLength && body[i + 1] == '\n') {
+				if (i == lineStart) {
+					chars[length++] = '\n';
+				}
+				i++;
+				lineStart = i + 1;
+			} else {
+				chars[length++] = (char) (body[i] & 0xff);
+			}
+		}
+		return new String(chars, 0, length);
+	}
+
+	/**
+	 * Get the message as a MIME entity, to look at its parts and attachments. Parts are found and decoded lazily,
+	 * straight from the bytes as received.
+	 *
+	 * @return the message as MIME entity
+	 */
+	public MimePart getMimePart() {
+		return new MimePart(rawHeaders().slice(), rawBody().slice());
 	}
 
 	/**
 	 * Adds a header to the Map.
 	 *
-	 * @param name  header name
-	 * @param value header value
+	 * @param headers the Map
+	 * @param name    header name
+	 * @param value   header value
 	 */
-	private void addHeader(String name, String value) {
+	private static void addHeader(Map<String, List<String>> headers, String name, String value) {
 		List<String> valueList = headers.get(name);
 		if (valueList == null) {
 			valueList = new ArrayList<>(1);
@@ -132,7 +433,7 @@ public class SmtpMessage {
 	@Override
 	public String toString() {
 		StringBuilder msg = new StringBuilder();
-		for (Map.Entry<String, List<String>> stringListEntry : headers.entrySet()) {
+		for (Map.Entry<String, List<String>> stringListEntry : headers().entrySet()) {
 			for (String value : stringListEntry.getValue()) {
 				msg.append(stringListEntry.getKey());
 				msg.append(": ");
@@ -141,7 +442,7 @@ public class SmtpMessage {
 			}
 		}
 		msg.append('\n');
-		msg.append(body);
+		msg.append(getBody());
 		msg.append('\n');
 		return msg.toString();
 	}
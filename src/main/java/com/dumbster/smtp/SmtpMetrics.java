@@ -0,0 +1,219 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2016 Joachim Nicolay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What a server has done since it was started, as of the moment {@link SimpleSmtpServer#getMetrics()} was called.
+ * Compare two snapshots taken during a load test to tell how much the server did in between, and whether it kept up.
+ */
+public final class SmtpMetrics {
+	private final long sessionsOpened;
+	private final long sessionsClosed;
+	private final long connectionsRejected;
+	private final long sessionsTimedOut;
+	private final long[] commands;
+	private final long errorResponses;
+	private final long bytesReceived;
+	private final long messagesReceived;
+	private final int storedMessages;
+	private final long evictedMessages;
+	private final Durations sessionDurations;
+	private final Durations dataDurations;
+
+	SmtpMetrics(long sessionsOpened, long sessionsClosed, long connectionsRejected, long sessionsTimedOut,
+			long[] commands, long errorResponses, long bytesReceived, long messagesReceived, int storedMessages,
+			long evictedMessages, LatencyHistogram sessionDurations, LatencyHistogram dataDurations) {
+		this.sessionsOpened = sessionsOpened;
+		this.sessionsClosed = sessionsClosed;
+		this.connectionsRejected = connectionsRejected;
+		this.sessionsTimedOut = sessionsTimedOut;
+		this.commands = commands;
+		this.errorResponses = errorResponses;
+		this.bytesReceived = bytesReceived;
+		this.messagesReceived = messagesReceived;
+		this.storedMessages = storedMessages;
+		this.evictedMessages = evictedMessages;
+		this.sessionDurations = new Durations(sessionDurations);
+		this.dataDurations = new Durations(dataDurations);
+	}
+
+	/**
+	 * @return number of client connections accepted
+	 */
+	public long getSessionsOpened() {
+		return sessionsOpened;
+	}
+
+	/**
+	 * @return number of client connections closed, by the client or the server
+	 */
+	public long getSessionsClosed() {
+		return sessionsClosed;
+	}
+
+	/**
+	 * @return number of client connections currently open
+	 */
+	public long getActiveSessions() {
+		return sessionsOpened - sessionsClosed;
+	}
+
+	/**
+	 * @return number of client connections turned away with a 421 reply because as many sessions as allowed were
+	 * open, see {@link SimpleSmtpServer.Builder#maxSessions(int)}, or because the server was stopping; they are not
+	 * counted as sessions
+	 */
+	public long getRejectedConnections() {
+		return connectionsRejected;
+	}
+
+	/**
+	 * @return number of sessions ended with a 421 reply because the client did not send anything for too long, see
+	 * {@link SimpleSmtpServer.Builder#idleTimeout(long, TimeUnit)}
+	 */
+	public long getTimedOutSessions() {
+		return sessionsTimedOut;
+	}
+
+	/**
+	 * @return number of commands received per command, e.g. "MAIL" or "DATA_END" for the dot ending the data; the
+	 * connect counts as "CONNECT", lines not understood as "UNRECOG"
+	 */
+	public Map<String, Long> getCommandCounts() {
+		Map<String, Long> counts = new LinkedHashMap<>();
+		for (SmtpActionType action : SmtpActionType.values()) {
+			counts.put(action.name(), commands[action.ordinal()]);
+		}
+		return Collections.unmodifiableMap(counts);
+	}
+
+	/**
+	 * @return number of responses with a 5xx code, i.e. commands rejected
+	 */
+	public long getErrorResponses() {
+		return errorResponses;
+	}
+
+	/**
+	 * @return number of bytes received from clients, counted when a message is complete or a session ends
+	 */
+	public long getBytesReceived() {
+		return bytesReceived;
+	}
+
+	/**
+	 * @return number of messages received, including the ones evicted since
+	 */
+	public long getMessagesReceived() {
+		return messagesReceived;
+	}
+
+	/**
+	 * @return number of messages currently held by the server
+	 */
+	public int getStoredMessages() {
+		return storedMessages;
+	}
+
+	/**
+	 * @return number of messages evicted by the retention policy
+	 */
+	public long getEvictedMessages() {
+		return evictedMessages;
+	}
+
+	/**
+	 * @return how long the closed sessions lasted, from connect to close
+	 */
+	public Durations getSessionDurations() {
+		return sessionDurations;
+	}
+
+	/**
+	 * @return how long receiving the messages took, from the DATA or first BDAT command to the message being stored
+	 */
+	public Durations getDataDurations() {
+		return dataDurations;
+	}
+
+	@Override
+	public String toString() {
+		return "sessions opened: " + sessionsOpened + ", closed: " + sessionsClosed + ", rejected: " + connectionsRejected
+				+ ", timed out: " + sessionsTimedOut
+				+ "\nmessages received: " + messagesReceived + ", stored: " + storedMessages + ", evicted: "
+				+ evictedMessages + "\nbytes received: " + bytesReceived + ", error responses: " + errorResponses
+				+ "\ncommands: " + getCommandCounts()
+				+ "\nsession durations: " + sessionDurations
+				+ "\ndata durations: " + dataDurations;
+	}
+
+	/**
+	 * Distribution of durations, with percentiles precise to about 3%.
+	 */
+	public static final class Durations {
+		private final LatencyHistogram histogram;
+
+		private Durations(LatencyHistogram histogram) {
+			this.histogram = histogram;
+		}
+
+		/**
+		 * @return number of durations measured
+		 */
+		public long getCount() {
+			return histogram.getCount();
+		}
+
+		/**
+		 * @param unit the unit to return the duration in
+		 * @return the average duration, 0 if none was measured
+		 */
+		public double getMean(TimeUnit unit) {
+			return histogram.getMean() / unit.toNanos(1);
+		}
+
+		/**
+		 * @param unit the unit to return the duration in
+		 * @return the longest duration, 0 if none was measured
+		 */
+		public long getMax(TimeUnit unit) {
+			return unit.convert(histogram.getMax(), TimeUnit.NANOSECONDS);
+		}
+
+		/**
+		 * @param percentile between 0 and 100, e.g. 99.9
+		 * @param unit       the unit to return the duration in
+		 * @return duration at least as long as the given percentage of the durations measured
+		 */
+		public long getPercentile(double percentile, TimeUnit unit) {
+			return unit.convert(histogram.getPercentile(percentile), TimeUnit.NANOSECONDS);
+		}
+
+		@Override
+		public String toString() {
+			return String.format(Locale.ROOT, "count %d, mean %.0f us, p50 %d us, p99 %d us, max %d us",
+					getCount(), getMean(TimeUnit.MICROSECONDS), getPercentile(50, TimeUnit.MICROSECONDS),
+					getPercentile(99, TimeUnit.MICROSECONDS), getMax(TimeUnit.MICROSECONDS));
+		}
+	}
+}
@@ -18,37 +18,79 @@
 
 package com.dumbster.smtp;
 
+import java.nio.charset.StandardCharsets;
+
 /**
  * Contains an SMTP client request. Handles state transitions using the following state transition table.
  * <PRE>
- * -----------+-------------------------------------------------------------------------------------------------
+ * -----------+-------------------------------------------------------------------------------------------------------------
  *            |                                 State
- *  Action    +-------------+-----------+-----------+--------------+---------------+---------------+------------
- *            | CONNECT     | GREET     | MAIL      | RCPT         | DATA_HDR      | DATA_BODY     | QUIT
- * -----------+-------------+-----------+-----------+--------------+---------------+---------------+------------
- * connect    | 220/GREET   | 503/GREET | 503/MAIL  | 503/RCPT     | 503/DATA_HDR  | 503/DATA_BODY | 503/QUIT
- * ehlo       | 503/CONNECT | 250/MAIL  | 503/MAIL  | 503/RCPT     | 503/DATA_HDR  | 503/DATA_BODY | 503/QUIT
- * mail       | 503/CONNECT | 503/GREET | 250/RCPT  | 503/RCPT     | 503/DATA_HDR  | 503/DATA_BODY | 250/RCPT
- * rcpt       | 503/CONNECT | 503/GREET | 503/MAIL  | 250/RCPT     | 503/DATA_HDR  | 503/DATA_BODY | 503/QUIT
- * data       | 503/CONNECT | 503/GREET | 503/MAIL  | 354/DATA_HDR | 503/DATA_HDR  | 503/DATA_BODY | 503/QUIT
- * data_end   | 503/CONNECT | 503/GREET | 503/MAIL  | 503/RCPT     | 250/QUIT      | 250/QUIT      | 503/QUIT
- * unrecog    | 500/CONNECT | 500/GREET | 500/MAIL  | 500/RCPT     | ---/DATA_HDR  | ---/DATA_BODY | 500/QUIT
- * quit       | 503/CONNECT | 503/GREET | 503/MAIL  | 503/RCPT     | 503/DATA_HDR  | 503/DATA_BODY | 250/CONNECT
- * blank_line | 503/CONNECT | 503/GREET | 503/MAIL  | 503/RCPT     | ---/DATA_BODY | ---/DATA_BODY | 503/QUIT
- * rset       | 250/GREET   | 250/GREET | 250/GREET | 250/GREET    | 250/GREET     | 250/GREET     | 250/GREET
- * vrfy       | 252/CONNECT | 252/GREET | 252/MAIL  | 252/RCPT     | 252/DATA_HDR  | 252/DATA_BODY | 252/QUIT
- * expn       | 252/CONNECT | 252/GREET | 252/MAIL  | 252/RCPT     | 252/DATA_HDR  | 252/DATA_BODY | 252/QUIT
- * help       | 211/CONNECT | 211/GREET | 211/MAIL  | 211/RCPT     | 211/DATA_HDR  | 211/DATA_BODY | 211/QUIT
- * noop       | 250/CONNECT | 250/GREET | 250/MAIL  | 250/RCPT     | 250|DATA_HDR  | 250/DATA_BODY | 250/QUIT
+ *  Action    +-------------+-----------+-----------+--------------+---------------+---------------+-----------+------------
+ *            | CONNECT     | GREET     | MAIL      | RCPT         | DATA_HDR      | DATA_BODY     | CHUNK     | QUIT
+ * -----------+-------------+-----------+-----------+--------------+---------------+---------------+-----------+------------
+ * connect    | 220/GREET   | 503/GREET | 503/MAIL  | 503/RCPT     | 503/DATA_HDR  | 503/DATA_BODY | 503/CHUNK | 503/QUIT
+ * ehlo       | 503/CONNECT | 250/MAIL  | 503/MAIL  | 503/RCPT     | 503/DATA_HDR  | 503/DATA_BODY | 503/CHUNK | 503/QUIT
+ * helo       | 503/CONNECT | 250/MAIL  | 503/MAIL  | 503/RCPT     | 503/DATA_HDR  | 503/DATA_BODY | 503/CHUNK | 503/QUIT
+ * mail       | 503/CONNECT | 503/GREET | 250/RCPT  | 503/RCPT     | 503/DATA_HDR  | 503/DATA_BODY | 503/CHUNK | 250/RCPT
+ * rcpt       | 503/CONNECT | 503/GREET | 503/MAIL  | 250/RCPT     | 503/DATA_HDR  | 503/DATA_BODY | 503/CHUNK | 503/QUIT
+ * data       | 503/CONNECT | 503/GREET | 503/MAIL  | 354/DATA_HDR | 503/DATA_HDR  | 503/DATA_BODY | 503/CHUNK | 503/QUIT
+ * data_end   | 503/CONNECT | 503/GREET | 503/MAIL  | 503/RCPT     | 250/QUIT      | 250/QUIT      | 503/CHUNK | 503/QUIT
+ * bdat       | 503/CONNECT | 503/GREET | 503/MAIL  | 250/CHUNK    | 503/DATA_HDR  | 503/DATA_BODY | 250/CHUNK | 503/QUIT
+ * bdat_last  | 503/CONNECT | 503/GREET | 503/MAIL  | 250/QUIT     | 503/DATA_HDR  | 503/DATA_BODY | 250/QUIT  | 503/QUIT
+ * unrecog    | 500/CONNECT | 500/GREET | 500/MAIL  | 500/RCPT     | ---/DATA_HDR  | ---/DATA_BODY | 500/CHUNK | 500/QUIT
+ * quit       | 503/CONNECT | 503/GREET | 503/MAIL  | 503/RCPT     | 503/DATA_HDR  | 503/DATA_BODY | 503/CHUNK | 250/CONNECT
+ * blank_line | 503/CONNECT | 503/GREET | 503/MAIL  | 503/RCPT     | ---/DATA_BODY | ---/DATA_BODY | 503/CHUNK | 503/QUIT
+ * rset       | 250/GREET   | 250/GREET | 250/GREET | 250/GREET    | 250/GREET     | 250/GREET     | 250/GREET | 250/GREET
+ * vrfy       | 252/CONNECT | 252/GREET | 252/MAIL  | 252/RCPT     | 252/DATA_HDR  | 252/DATA_BODY | 252/CHUNK | 252/QUIT
+ * expn       | 252/CONNECT | 252/GREET | 252/MAIL  | 252/RCPT     | 252/DATA_HDR  | 252/DATA_BODY | 252/CHUNK | 252/QUIT
+ * help       | 211/CONNECT | 211/GREET | 211/MAIL  | 211/RCPT     | 211/DATA_HDR  | 211/DATA_BODY | 211/CHUNK | 211/QUIT
+ * noop       | 250/CONNECT | 250/GREET | 250/MAIL  | 250/RCPT     | 250|DATA_HDR  | 250/DATA_BODY | 250/CHUNK | 250/QUIT
  * </PRE>
+ * The reply to EHLO lists the supported service extensions, the one to HELO does not.
+ * <p>
+ * BDAT (RFC 3030 CHUNKING) is followed by the given number of bytes of message data, which are not split into lines.
+ * The response is only sent once they have been read, even if the command is rejected.
+ * <p>
+ * The table is computed once, so executing a request only looks up a response shared by all sessions.
+ * <p>
+ * Requests are parsed straight from the bytes received. Commands are recognized without decoding the line, and the
+ * parameters are only decoded into a String when someone asks for them.
  */
 class SmtpRequest {
+	/** Reply to EHLO: greeting followed by the supported service extensions, one per line. */
+	private static final String EHLO_REPLY = "OK\nPIPELINING\nCHUNKING";
+
+	private static final byte[] EHLO_VERB = verb("EHLO ");
+	private static final byte[] HELO_VERB = verb("HELO");
+	private static final byte[] MAIL_VERB = verb("MAIL FROM:");
+	private static final byte[] RCPT_VERB = verb("RCPT TO:");
+	private static final byte[] DATA_VERB = verb("DATA");
+	private static final byte[] BDAT_VERB = verb("BDAT ");
+	private static final byte[] LAST_KEYWORD = verb(" LAST");
+	private static final byte[] QUIT_VERB = verb("QUIT");
+	private static final byte[] RSET_VERB = verb("RSET");
+	private static final byte[] NOOP_VERB = verb("NOOP");
+	private static final byte[] EXPN_VERB = verb("EXPN");
+	private static final byte[] VRFY_VERB = verb("VRFY");
+	private static final byte[] HELP_VERB = verb("HELP");
+
+	/** Response for every combination of action and state, indexed by their ordinals. */
+	private static final SmtpResponse[][] TRANSITIONS = createTransitions();
+
 	/** SMTP action received from client. */
 	private SmtpActionType action;
 	/** Current state of the SMTP state table. */
 	private SmtpState state;
-	/** Additional information passed from the client with the SMTP action. */
-	String params;
+	/** Line of input the request was parsed from, null if the parameters were given as String. */
+	final byte[] line;
+	/** Start of the parameters in the {@link #line}. */
+	final int paramsOffset;
+	/** Length of the parameters in the {@link #line}, -1 if there are none. */
+	final int paramsLength;
+	/** Additional information passed from the client with the SMTP action, decoded on first use. */
+	private String params;
+	/** Number of bytes following a BDAT command, -1 for all other commands. */
+	final int chunkSize;
 
 	/**
 	 * Create a new SMTP client request.
@@ -60,87 +102,188 @@ class SmtpRequest {
 		this.action = actionType;
 		this.state = state;
 		this.params = params;
+		this.line = null;
+		this.paramsOffset = 0;
+		this.paramsLength = -1;
+		this.chunkSize = -1;
+	}
+
+	/**
+	 * Create a new SMTP client request with parameters not yet decoded.
+	 * @param actionType type of action/command
+	 * @param state current SMTP server state
+	 * @param line line of input, may be reused for the next line once the request has been handled
+	 * @param paramsOffset start of the remainder of the command line once command is removed
+	 * @param paramsLength length of the remainder, -1 if there is none
+	 * @param chunkSize number of bytes following a BDAT command, -1 for other commands
+	 */
+	private SmtpRequest(SmtpActionType actionType, SmtpState state, byte[] line, int paramsOffset, int paramsLength,
+	                    int chunkSize) {
+		this.action = actionType;
+		this.state = state;
+		this.line = line;
+		this.paramsOffset = paramsOffset;
+		this.paramsLength = paramsLength;
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * @return the action requested by the client
+	 */
+	SmtpActionType getAction() {
+		return action;
+	}
+
+	/**
+	 * @return remainder of command line once command is removed, null if there is none
+	 */
+	String getParams() {
+		if (params == null && line != null && paramsLength >= 0) {
+			params = new String(line, paramsOffset, paramsLength, StandardCharsets.ISO_8859_1);
+		}
+		return params;
 	}
 
 	/**
-	 * Execute the SMTP request returning a response. This method models the state transition table for the SMTP server.
+	 * @return the mailbox given with MAIL FROM or RCPT TO, without angle brackets and ESMTP parameters; empty for the
+	 * null reverse-path, null if there are no parameters
+	 */
+	String getAddress() {
+		String params = getParams();
+		if (params == null) {
+			return null;
+		}
+		String trimmed = params.trim();
+		if (trimmed.startsWith("<")) {
+			int end = trimmed.indexOf('>');
+			return end < 0 ? trimmed.substring(1) : trimmed.substring(1, end);
+		}
+		int space = trimmed.indexOf(' ');
+		return space < 0 ? trimmed : trimmed.substring(0, space);
+	}
+
+	/**
+	 * Execute the SMTP request returning a response. The response is looked up in the transition table, it is shared
+	 * and must not be modified.
 	 * @return reponse to the request
 	 */
 	SmtpResponse execute() {
+		return transition(action, state);
+	}
+
+	/**
+	 * Looks up the response to an action in the transition table.
+	 * @param action action requested by the client
+	 * @param state current state
+	 * @return shared response, holding the next state
+	 */
+	static SmtpResponse transition(SmtpActionType action, SmtpState state) {
+		return TRANSITIONS[action.ordinal()][state.ordinal()];
+	}
+
+	/**
+	 * Builds the transition table, once for all sessions.
+	 * @return responses indexed by action and state
+	 */
+	private static SmtpResponse[][] createTransitions() {
+		SmtpActionType[] actions = SmtpActionType.values();
+		SmtpState[] states = SmtpState.values();
+		SmtpResponse[][] table = new SmtpResponse[actions.length][states.length];
+		for (SmtpActionType action : actions) {
+			for (SmtpState state : states) {
+				table[action.ordinal()][state.ordinal()] = createResponse(action, state);
+			}
+		}
+		return table;
+	}
+
+	/**
+	 * This method models the state transition table for the SMTP server.
+	 * @param action action requested by the client
+	 * @param state current state
+	 * @return response to the action
+	 */
+	private static SmtpResponse createResponse(SmtpActionType action, SmtpState state) {
 		SmtpResponse response;
 		if (action.isStateless()) {
 			if (SmtpActionType.EXPN == action || SmtpActionType.VRFY == action) {
-				response = new SmtpResponse(252, "Not supported", this.state);
+				response = new SmtpResponse(252, "Not supported", state);
 			} else if (SmtpActionType.HELP == action) {
-				response = new SmtpResponse(211, "No help available", this.state);
+				response = new SmtpResponse(211, "No help available", state);
 			} else if (SmtpActionType.NOOP == action) {
-				response = new SmtpResponse(250, "OK", this.state);
+				response = new SmtpResponse(250, "OK", state);
 			} else if (SmtpActionType.VRFY == action) {
-				response = new SmtpResponse(252, "Not supported", this.state);
+				response = new SmtpResponse(252, "Not supported", state);
 			} else if (SmtpActionType.RSET == action) {
 				response = new SmtpResponse(250, "OK", SmtpState.GREET);
 			} else {
-				response = new SmtpResponse(500, "Command not recognized", this.state);
+				response = new SmtpResponse(500, "Command not recognized", state);
 			}
 		} else { // Stateful commands
 			if (SmtpActionType.CONNECT == action) {
 				if (SmtpState.CONNECT == state) {
 					response = new SmtpResponse(220, "localhost Dumbster SMTP service ready", SmtpState.GREET);
 				} else {
-					response = new SmtpResponse(503, "Bad sequence of commands: "+action, this.state);
+					response = new SmtpResponse(503, "Bad sequence of commands: "+action, state);
 				}
-			} else if (SmtpActionType.EHLO == action) {
+			} else if (SmtpActionType.EHLO == action || SmtpActionType.HELO == action) {
 				if (SmtpState.GREET == state) {
-					response = new SmtpResponse(250, "OK", SmtpState.MAIL);
+					response = new SmtpResponse(250, SmtpActionType.EHLO == action ? EHLO_REPLY : "OK", SmtpState.MAIL);
 				} else {
-					response = new SmtpResponse(503, "Bad sequence of commands: "+action, this.state);
+					response = new SmtpResponse(503, "Bad sequence of commands: "+action, state);
 				}
 			} else if (SmtpActionType.MAIL == action) {
 				if (SmtpState.MAIL == state || SmtpState.QUIT == state) {
 					response = new SmtpResponse(250, "OK", SmtpState.RCPT);
 				} else {
-					response = new SmtpResponse(503, "Bad sequence of commands: "+action, this.state);
+					response = new SmtpResponse(503, "Bad sequence of commands: "+action, state);
 				}
 			} else if (SmtpActionType.RCPT == action) {
 				if (SmtpState.RCPT == state) {
-					response = new SmtpResponse(250, "OK", this.state);
+					response = new SmtpResponse(250, "OK", state);
 				} else {
-					response = new SmtpResponse(503, "Bad sequence of commands: "+action, this.state);
+					response = new SmtpResponse(503, "Bad sequence of commands: "+action, state);
 				}
 			} else if (SmtpActionType.DATA == action) {
 				if (SmtpState.RCPT == state) {
 					response = new SmtpResponse(354, "Start mail input; end with <CRLF>.<CRLF>", SmtpState.DATA_HDR);
 				} else {
-					response = new SmtpResponse(503, "Bad sequence of commands: "+action, this.state);
+					response = new SmtpResponse(503, "Bad sequence of commands: "+action, state);
+				}
+			} else if (SmtpActionType.BDAT == action || SmtpActionType.BDAT_LAST == action) {
+				if (SmtpState.RCPT == state || SmtpState.CHUNK == state) {
+					response = new SmtpResponse(250, "OK", SmtpActionType.BDAT_LAST == action ? SmtpState.QUIT : SmtpState.CHUNK);
+				} else {
+					response = new SmtpResponse(503, "Bad sequence of commands: "+action, state);
 				}
 			} else if (SmtpActionType.UNRECOG == action) {
 				if (SmtpState.DATA_HDR == state || SmtpState.DATA_BODY == state) {
-					response = new SmtpResponse(-1, "", this.state);
+					response = new SmtpResponse(-1, "", state);
 				} else {
-					response = new SmtpResponse(500, "Command not recognized", this.state);
+					response = new SmtpResponse(500, "Command not recognized", state);
 				}
 			} else if (SmtpActionType.DATA_END == action) {
 				if (SmtpState.DATA_HDR == state || SmtpState.DATA_BODY == state) {
 					response = new SmtpResponse(250, "OK", SmtpState.QUIT);
 				} else {
-					response = new SmtpResponse(503, "Bad sequence of commands: "+action, this.state);
+					response = new SmtpResponse(503, "Bad sequence of commands: "+action, state);
 				}
 			} else if (SmtpActionType.BLANK_LINE == action) {
 				if (SmtpState.DATA_HDR == state) {
 					response = new SmtpResponse(-1, "", SmtpState.DATA_BODY);
 				} else if (SmtpState.DATA_BODY == state) {
-					response = new SmtpResponse(-1, "", this.state);
+					response = new SmtpResponse(-1, "", state);
 				} else {
-					response = new SmtpResponse(503, "Bad sequence of commands: "+action, this.state);
+					response = new SmtpResponse(503, "Bad sequence of commands: "+action, state);
 				}
 			} else if (SmtpActionType.QUIT == action) {
 				if (SmtpState.QUIT == state) {
 					response = new SmtpResponse(221, "localhost Dumbster service closing transmission channel", SmtpState.CONNECT);
 				} else {
-					response = new SmtpResponse(503, "Bad sequence of commands: "+action, this.state);
+					response = new SmtpResponse(503, "Bad sequence of commands: "+action, state);
 				}
-		} else {
-				response = new SmtpResponse(500, "Command not recognized", this.state);
+			} else {
+				response = new SmtpResponse(500, "Command not recognized", state);
 			}
 		}
 		return response;
@@ -148,64 +291,142 @@ class SmtpRequest {
 
 	/**
 	 * Create an SMTP request object given a line of the input stream from the client and the current internal state.
-	 * @param s line of input
+	 * @param line buffer holding the line of input
+	 * @param offset start of the line in the buffer
+	 * @param length length of the line, without line terminator
 	 * @param state current state
 	 * @return a populated SmtpRequest object
 	 */
-	static SmtpRequest createRequest(String s, SmtpState state) {
+	static SmtpRequest createRequest(byte[] line, int offset, int length, SmtpState state) {
 		SmtpActionType action;
-		String params = null;
+		int paramsOffset = offset;
+		int paramsLength = -1;
+		int chunkSize = -1;
 
-		if (state == SmtpState.DATA_HDR) {
-			if (s.equals(".")) {
-				action = SmtpActionType.DATA_END;
-			} else if (s.length() < 1) {
-				action = SmtpActionType.BLANK_LINE;
-			} else {
-				action = SmtpActionType.UNRECOG;
-				params = s;
-			}
-		} else if (state == SmtpState.DATA_BODY) {
-			if (s.equals(".")) {
-				action = SmtpActionType.DATA_END;
-			} else {
-				action = SmtpActionType.UNRECOG;
-				if (s.length() < 1) {
-					params = "\n";
-				} else {
-					params = s;
-				}
+		if (state == SmtpState.DATA_HDR || state == SmtpState.DATA_BODY) {
+			action = dataAction(line, offset, length, state);
+			if (action == SmtpActionType.UNRECOG) {
+				paramsLength = length;
 			}
 		} else {
-			String su = s.toUpperCase();
-			if (su.startsWith("EHLO ") || su.startsWith("HELO")) {
-				action = SmtpActionType.EHLO;
-				params = s.substring(5);
-			} else if (su.startsWith("MAIL FROM:")) {
+			if (startsWith(line, offset, length, EHLO_VERB) || startsWith(line, offset, length, HELO_VERB)) {
+				action = startsWith(line, offset, length, EHLO_VERB) ? SmtpActionType.EHLO : SmtpActionType.HELO;
+				paramsOffset = offset + Math.min(5, length);
+				paramsLength = Math.max(length - 5, 0);
+			} else if (startsWith(line, offset, length, MAIL_VERB)) {
 				action = SmtpActionType.MAIL;
-				params = s.substring(10);
-			} else if (su.startsWith("RCPT TO:")) {
+				paramsOffset = offset + MAIL_VERB.length;
+				paramsLength = length - MAIL_VERB.length;
+			} else if (startsWith(line, offset, length, RCPT_VERB)) {
 				action = SmtpActionType.RCPT;
-				params = s.substring(8);
-			} else if (su.startsWith("DATA")) {
+				paramsOffset = offset + RCPT_VERB.length;
+				paramsLength = length - RCPT_VERB.length;
+			} else if (startsWith(line, offset, length, DATA_VERB)) {
 				action = SmtpActionType.DATA;
-			} else if (su.startsWith("QUIT")) {
+			} else if (startsWith(line, offset, length, BDAT_VERB)
+					&& (chunkSize = parseChunkSize(line, offset + BDAT_VERB.length, offset + length)) >= 0) {
+				paramsOffset = offset + BDAT_VERB.length;
+				paramsLength = length - BDAT_VERB.length;
+				action = endsWith(line, offset, length, LAST_KEYWORD) ? SmtpActionType.BDAT_LAST : SmtpActionType.BDAT;
+			} else if (startsWith(line, offset, length, QUIT_VERB)) {
 				action = SmtpActionType.QUIT;
-			} else if (su.startsWith("RSET")) {
+			} else if (startsWith(line, offset, length, RSET_VERB)) {
 				action = SmtpActionType.RSET;
-			} else if (su.startsWith("NOOP")) {
+			} else if (startsWith(line, offset, length, NOOP_VERB)) {
 				action = SmtpActionType.NOOP;
-			} else if (su.startsWith("EXPN")) {
+			} else if (startsWith(line, offset, length, EXPN_VERB)) {
 				action = SmtpActionType.EXPN;
-			} else if (su.startsWith("VRFY")) {
+			} else if (startsWith(line, offset, length, VRFY_VERB)) {
 				action = SmtpActionType.VRFY;
-			} else if (su.startsWith("HELP")) {
+			} else if (startsWith(line, offset, length, HELP_VERB)) {
 				action = SmtpActionType.HELP;
 			} else {
 				action = SmtpActionType.UNRECOG;
 			}
 		}
 
-		return new SmtpRequest(action, params, state);
+		return new SmtpRequest(action, state, line, paramsOffset, paramsLength, chunkSize);
+	}
+
+	/**
+	 * Classifies a line of message data, without creating any objects.
+	 * @param line buffer holding the line of input
+	 * @param offset start of the line in the buffer
+	 * @param length length of the line, without line terminator
+	 * @param state current state, {@link SmtpState#DATA_HDR} or {@link SmtpState#DATA_BODY}
+	 * @return {@link SmtpActionType#DATA_END}, {@link SmtpActionType#BLANK_LINE} or {@link SmtpActionType#UNRECOG}
+	 * for a line to be stored
+	 */
+	static SmtpActionType dataAction(byte[] line, int offset, int length, SmtpState state) {
+		if (length == 1 && line[offset] == '.') {
+			return SmtpActionType.DATA_END;
+		} else if (length < 1 && state == SmtpState.DATA_HDR) {
+			return SmtpActionType.BLANK_LINE;
+		} else {
+			// in the body an empty line is kept as well, it stands for a line break
+			return SmtpActionType.UNRECOG;
+		}
+	}
+
+	/**
+	 * Parses the parameters of BDAT: the chunk size, optionally followed by LAST.
+	 * @param line buffer holding the line
+	 * @param start start of the parameters
+	 * @param end end of the line
+	 * @return the chunk size, -1 if the parameters are malformed
+	 */
+	private static int parseChunkSize(byte[] line, int start, int end) {
+		long size = 0;
+		int i = start;
+		for (; i < end && line[i] >= '0' && line[i] <= '9'; i++) {
+			size = size * 10 + line[i] - '0';
+			if (size > Integer.MAX_VALUE) {
+				return -1;
+			}
+		}
+		if (i == start || (i < end && !(end - i == LAST_KEYWORD.length && endsWith(line, start, end - start, LAST_KEYWORD)))) {
+			return -1;
+		}
+		return (int) size;
+	}
+
+	/**
+	 * Checks case-insensitively whether a line starts with a verb.
+	 * @param line buffer holding the line
+	 * @param offset start of the line
+	 * @param length length of the line
+	 * @param verb upper case ASCII verb
+	 * @return true if the line starts with the verb
+	 */
+	private static boolean startsWith(byte[] line, int offset, int length, byte[] verb) {
+		if (length < verb.length) {
+			return false;
+		}
+		for (int i = 0; i < verb.length; i++) {
+			int b = line[offset + i];
+			if (b >= 'a' && b <= 'z') {
+				b -= 'a' - 'A';
+			}
+			if (b != verb[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Checks case-insensitively whether a line ends with a keyword.
+	 * @param line buffer holding the line
+	 * @param offset start of the line
+	 * @param length length of the line
+	 * @param keyword upper case ASCII keyword
+	 * @return true if the line ends with the keyword
+	 */
+	private static boolean endsWith(byte[] line, int offset, int length, byte[] keyword) {
+		return length >= keyword.length && startsWith(line, offset + length - keyword.length, keyword.length, keyword);
+	}
+
+	private static byte[] verb(String verb) {
+		return verb.getBytes(StandardCharsets.US_ASCII);
 	}
 }
@@ -17,16 +17,20 @@
  */
 package com.dumbster.smtp;
 
+import java.nio.charset.StandardCharsets;
+
 /**
- * SMTP response container.
+ * SMTP response container. Responses are immutable and shared, see {@link SmtpRequest#transition}.
  */
 class SmtpResponse {
 	/** Response code - see RFC-2821. */
-	private int code;
-	/** Response message. */
-	private String message;
+	private final int code;
+	/** Response message, lines of a multiline reply are separated by '\n'. */
+	private final String message;
 	/** New state of the SMTP server once the request has been executed. */
-	private SmtpState nextState;
+	private final SmtpState nextState;
+	/** The reply as sent to the client, empty for responses not sent. */
+	private final byte[] bytes;
 
 	/**
 	 * Constructor.
@@ -38,6 +42,7 @@ class SmtpResponse {
 		this.code = code;
 		this.message = message;
 		this.nextState = next;
+		this.bytes = code > 0 ? format(code, message) : new byte[0];
 	}
 
 	/**
@@ -56,6 +61,30 @@ class SmtpResponse {
 		return message;
 	}
 
+	/**
+	 * Get the response as sent to the client. The array is shared and must not be modified.
+	 * @return the reply, each line terminated by CRLF
+	 */
+	byte[] toBytes() {
+		return bytes;
+	}
+
+	/**
+	 * Formats a response. A message with several lines becomes a multiline reply, with a hyphen after the code on
+	 * all but the last line.
+	 */
+	private static byte[] format(int code, String message) {
+		StringBuilder reply = new StringBuilder(message.length() + 8);
+		int lineStart = 0;
+		int lineEnd;
+		while ((lineEnd = message.indexOf('\n', lineStart)) >= 0) {
+			reply.append(code).append('-').append(message, lineStart, lineEnd).append("\r\n");
+			lineStart = lineEnd + 1;
+		}
+		reply.append(code).append(' ').append(message, lineStart, message.length()).append("\r\n");
+		return reply.toString().getBytes(StandardCharsets.ISO_8859_1);
+	}
+
 	/**
 	 * Get the next SMTP server state.
 	 * @return state
@@ -0,0 +1,165 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2016 Joachim Nicolay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+import lombok.extern.slf4j.Slf4j;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publishes the metrics of a server in the platform MBean server. Every attribute read takes a fresh
+ * {@link SmtpMetrics} snapshot.
+ */
+@Slf4j
+class SmtpServerJmx implements SmtpServerMXBean {
+	private final SimpleSmtpServer server;
+
+	private SmtpServerJmx(SimpleSmtpServer server) {
+		this.server = server;
+	}
+
+	/**
+	 * Registers the server under its first port. A failure is logged, but does not keep the server from running.
+	 *
+	 * @param server the running server
+	 * @return the name it was registered under, null if registering failed
+	 */
+	static ObjectName register(SimpleSmtpServer server) {
+		try {
+			ObjectName name = new ObjectName("com.dumbster.smtp:type=SimpleSmtpServer,port=" + server.getPort());
+			ManagementFactory.getPlatformMBeanServer().registerMBean(new SmtpServerJmx(server), name);
+			return name;
+		} catch (JMException e) {
+			log.warn("could not publish metrics over JMX", e);
+			return null;
+		}
+	}
+
+	/**
+	 * @param name the name returned by {@link #register(SimpleSmtpServer)}, may be null
+	 */
+	static void unregister(ObjectName name) {
+		if (name == null) {
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+		} catch (JMException e) {
+			log.warn("could not unpublish metrics {}", name, e);
+		}
+	}
+
+	@Override
+	public int[] getPorts() {
+		List<Integer> ports = server.getPorts();
+		int[] result = new int[ports.size()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = ports.get(i);
+		}
+		return result;
+	}
+
+	@Override
+	public long getSessionsOpened() {
+		return server.getMetrics().getSessionsOpened();
+	}
+
+	@Override
+	public long getSessionsClosed() {
+		return server.getMetrics().getSessionsClosed();
+	}
+
+	@Override
+	public long getActiveSessions() {
+		return server.getMetrics().getActiveSessions();
+	}
+
+	@Override
+	public long getRejectedConnections() {
+		return server.getMetrics().getRejectedConnections();
+	}
+
+	@Override
+	public long getTimedOutSessions() {
+		return server.getMetrics().getTimedOutSessions();
+	}
+
+	@Override
+	public Map<String, Long> getCommandCounts() {
+		return server.getMetrics().getCommandCounts();
+	}
+
+	@Override
+	public long getErrorResponses() {
+		return server.getMetrics().getErrorResponses();
+	}
+
+	@Override
+	public long getBytesReceived() {
+		return server.getMetrics().getBytesReceived();
+	}
+
+	@Override
+	public long getMessagesReceived() {
+		return server.getMetrics().getMessagesReceived();
+	}
+
+	@Override
+	public int getStoredMessages() {
+		return server.getMetrics().getStoredMessages();
+	}
+
+	@Override
+	public long getEvictedMessages() {
+		return server.getMetrics().getEvictedMessages();
+	}
+
+	@Override
+	public double getSessionDurationMeanMicros() {
+		return server.getMetrics().getSessionDurations().getMean(TimeUnit.MICROSECONDS);
+	}
+
+	@Override
+	public long getSessionDuration99thPercentileMicros() {
+		return server.getMetrics().getSessionDurations().getPercentile(99, TimeUnit.MICROSECONDS);
+	}
+
+	@Override
+	public long getSessionDurationMaxMicros() {
+		return server.getMetrics().getSessionDurations().getMax(TimeUnit.MICROSECONDS);
+	}
+
+	@Override
+	public double getDataDurationMeanMicros() {
+		return server.getMetrics().getDataDurations().getMean(TimeUnit.MICROSECONDS);
+	}
+
+	@Override
+	public long getDataDuration99thPercentileMicros() {
+		return server.getMetrics().getDataDurations().getPercentile(99, TimeUnit.MICROSECONDS);
+	}
+
+	@Override
+	public long getDataDurationMaxMicros() {
+		return server.getMetrics().getDataDurations().getMax(TimeUnit.MICROSECONDS);
+	}
+}
@@ -0,0 +1,81 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2016 Joachim Nicolay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+import java.util.Map;
+
+/**
+ * The {@link SmtpMetrics} of a server, published over JMX when the server is started with
+ * {@link SimpleSmtpServer.Builder#jmx(boolean)}, so a load test can be watched with e.g. JConsole. The server is
+ * registered as {@code com.dumbster.smtp:type=SimpleSmtpServer,port=<port>}.
+ */
+public interface SmtpServerMXBean {
+
+	/** @return ports the server is listening on */
+	int[] getPorts();
+
+	/** @return number of client connections accepted, see {@link SmtpMetrics#getSessionsOpened()} */
+	long getSessionsOpened();
+
+	/** @return number of client connections closed, see {@link SmtpMetrics#getSessionsClosed()} */
+	long getSessionsClosed();
+
+	/** @return number of client connections currently open, see {@link SmtpMetrics#getActiveSessions()} */
+	long getActiveSessions();
+
+	/** @return number of client connections turned away, see {@link SmtpMetrics#getRejectedConnections()} */
+	long getRejectedConnections();
+
+	/** @return number of sessions ended by a timeout, see {@link SmtpMetrics#getTimedOutSessions()} */
+	long getTimedOutSessions();
+
+	/** @return number of commands received per command, see {@link SmtpMetrics#getCommandCounts()} */
+	Map<String, Long> getCommandCounts();
+
+	/** @return number of responses with a 5xx code, see {@link SmtpMetrics#getErrorResponses()} */
+	long getErrorResponses();
+
+	/** @return number of bytes received from clients, see {@link SmtpMetrics#getBytesReceived()} */
+	long getBytesReceived();
+
+	/** @return number of messages received, see {@link SmtpMetrics#getMessagesReceived()} */
+	long getMessagesReceived();
+
+	/** @return number of messages currently held, see {@link SmtpMetrics#getStoredMessages()} */
+	int getStoredMessages();
+
+	/** @return number of messages evicted by the retention policy, see {@link SmtpMetrics#getEvictedMessages()} */
+	long getEvictedMessages();
+
+	/** @return average duration of the closed sessions in microseconds */
+	double getSessionDurationMeanMicros();
+
+	/** @return 99th percentile of the durations of the closed sessions in microseconds */
+	long getSessionDuration99thPercentileMicros();
+
+	/** @return longest duration of a closed session in microseconds */
+	long getSessionDurationMaxMicros();
+
+	/** @return average time to receive the data of a message in microseconds */
+	double getDataDurationMeanMicros();
+
+	/** @return 99th percentile of the times to receive the data of a message in microseconds */
+	long getDataDuration99thPercentileMicros();
+
+	/** @return longest time to receive the data of a message in microseconds */
+	long getDataDurationMaxMicros();
+}
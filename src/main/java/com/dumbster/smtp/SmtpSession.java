@@ -0,0 +1,272 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2016 Joachim Nicolay
+ * Copyright 2004 Jason Paul Kitchen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * An SMTP transaction, i.e. all activity between initial connect and QUIT command. Keeps the state of one client
+ * connection, but does not do any I/O itself: the engine serving the connection feeds in lines and sends back the
+ * responses.
+ */
+@Slf4j
+class SmtpSession {
+	/** Sent instead of the greeting to connections beyond the session limit, which are closed right away. */
+	static final SmtpResponse TOO_MANY_SESSIONS = new SmtpResponse(421,
+			"localhost Dumbster service not available, too many connections", SmtpState.CONNECT);
+	/** Sent before closing a connection whose client did not send anything for too long. */
+	static final SmtpResponse TIMEOUT = new SmtpResponse(421,
+			"localhost Dumbster timeout, closing transmission channel", SmtpState.CONNECT);
+	/** Sent before closing a connection because the server stops. */
+	static final SmtpResponse SHUTTING_DOWN = new SmtpResponse(421,
+			"localhost Dumbster service shutting down, closing transmission channel", SmtpState.CONNECT);
+	/** Sent instead of accepting a message that could not be delivered, e.g. because the journal failed. */
+	private static final String DELIVERY_FAILED = "localhost Dumbster could not store the message, try again later";
+
+	/** Where completely received messages go. */
+	private final MessageSink sink;
+	/** Counts what the session does. */
+	private final ServerMetrics metrics;
+	/** When the session was started, in nanoseconds. */
+	private final long startedAt = System.nanoTime();
+	/** When the data of the current message started, in nanoseconds. */
+	private long dataStartedAt;
+	/** Bytes received and not yet counted in the {@link #metrics}. */
+	private long bytesReceived;
+	/** Set once the session has been {@link #close() closed}. */
+	private boolean closed;
+	/** Current state of the SMTP state table. */
+	private SmtpState smtpState = SmtpState.CONNECT;
+	/** The message currently being received. */
+	private SmtpMessage msg = new SmtpMessage();
+	/** Bytes of BDAT data still to be read before the next command. */
+	private int chunkRemaining;
+	/** Response to the BDAT command, sent once its data has been read. */
+	private SmtpResponse chunkResponse;
+	/** The BDAT command whose data is being read. */
+	private SmtpActionType chunkAction;
+	/** The command answered by the last response. */
+	private SmtpActionType lastAction;
+
+	/**
+	 * @param sink    receives the messages once they are completely transmitted
+	 * @param metrics counts the session, its commands and messages
+	 */
+	SmtpSession(MessageSink sink, ServerMetrics metrics) {
+		this.sink = sink;
+		this.metrics = metrics;
+		metrics.sessionOpened();
+	}
+
+	/**
+	 * Execute the connection request.
+	 *
+	 * @return the initial response to send to the client
+	 */
+	SmtpResponse connect() {
+		SmtpRequest smtpRequest = new SmtpRequest(SmtpActionType.CONNECT, "", smtpState);
+		SmtpResponse smtpResponse = smtpRequest.execute();
+		smtpState = smtpResponse.getNextState();
+		lastAction = SmtpActionType.CONNECT;
+		metrics.command(SmtpActionType.CONNECT, smtpResponse.getCode());
+		return smtpResponse;
+	}
+
+	/**
+	 * Processes one line of client input. If this completes a message, it is handed to the sink before this method
+	 * returns, so the client can rely on the message being available once the transmission is acknowledged; unless the
+	 * sink only takes the message to deliver it later, then the engine holds back the response meanwhile.
+	 *
+	 * @param line   buffer holding the line of input, may be reused once this method returns
+	 * @param offset start of the line in the buffer
+	 * @param length length of the line, without line terminator
+	 * @return response to send to the client, null if the line is a BDAT command and its data has to be read with
+	 * {@link #receiveChunk(byte[], int, int)} first
+	 */
+	SmtpResponse handle(byte[] line, int offset, int length) {
+		bytesReceived += length + 2;
+		if (smtpState == SmtpState.DATA_HDR || smtpState == SmtpState.DATA_BODY) {
+			return handleData(line, offset, length);
+		}
+		// Create request from client input and current state
+		SmtpRequest request = SmtpRequest.createRequest(line, offset, length, smtpState);
+		// Execute request and create response object
+		SmtpResponse response = request.execute();
+		// Move to next internal state
+		SmtpState previousState = smtpState;
+		smtpState = response.getNextState();
+		lastAction = request.getAction();
+		metrics.command(request.getAction(), response.getCode());
+		if (previousState == SmtpState.RCPT && smtpState != SmtpState.RCPT) {
+			// DATA or the first BDAT has been accepted
+			dataStartedAt = System.nanoTime();
+		}
+
+		if (request.chunkSize >= 0) {
+			chunkResponse = response;
+			chunkAction = request.getAction();
+			chunkRemaining = request.chunkSize;
+			return chunkRemaining > 0 ? null : completeChunk();
+		}
+		if (request.getAction() == SmtpActionType.RSET) {
+			// forget what has been received of the current message
+			msg = new SmtpMessage();
+		}
+		if (response.getCode() == 250) {
+			// keep the envelope
+			if (request.getAction() == SmtpActionType.MAIL) {
+				msg.setEnvelopeSender(request.getAddress());
+			} else if (request.getAction() == SmtpActionType.RCPT) {
+				msg.addEnvelopeRecipient(request.getAddress());
+			}
+		}
+
+		// Store input in message
+		if (request.paramsLength >= 0) {
+			msg.store(response, request.line, request.paramsOffset, request.paramsLength);
+		}
+
+		// If message reception is complete save it
+		if (smtpState == SmtpState.QUIT && previousState != SmtpState.QUIT) {
+			return deliver(response);
+		}
+		return response;
+	}
+
+	/**
+	 * Processes a line of message data sent with DATA. This is the bulk of the input, so it is done without creating
+	 * a request: the response comes from the transition table and the line is copied into the message.
+	 */
+	private SmtpResponse handleData(byte[] line, int offset, int length) {
+		SmtpActionType action = SmtpRequest.dataAction(line, offset, length, smtpState);
+		SmtpResponse response = SmtpRequest.transition(action, smtpState);
+		smtpState = response.getNextState();
+		lastAction = action;
+		if (action == SmtpActionType.UNRECOG) {
+			msg.store(response, line, offset, length);
+		} else if (smtpState == SmtpState.QUIT) {
+			metrics.command(action, response.getCode());
+			return deliver(response);
+		}
+		return response;
+	}
+
+	/**
+	 * @return number of bytes of BDAT data to feed to {@link #receiveChunk(byte[], int, int)} before the next line
+	 */
+	int getChunkRemaining() {
+		return chunkRemaining;
+	}
+
+	/**
+	 * Processes BDAT data. The data is stored as it is, without looking for lines, unless the BDAT command was
+	 * rejected; then it is discarded.
+	 *
+	 * @param data   buffer holding the data, may be reused once this method returns
+	 * @param offset start of the data in the buffer
+	 * @param length length of the data, at most {@link #getChunkRemaining()}
+	 * @return response to the BDAT command once all of its data has been received, null before
+	 */
+	SmtpResponse receiveChunk(byte[] data, int offset, int length) {
+		if (chunkResponse.getCode() == 250) {
+			msg.appendChunk(data, offset, length);
+		}
+		bytesReceived += length;
+		chunkRemaining -= length;
+		return chunkRemaining > 0 ? null : completeChunk();
+	}
+
+	/**
+	 * Finishes a BDAT command, and with the last chunk the message.
+	 *
+	 * @return response to the BDAT command
+	 */
+	private SmtpResponse completeChunk() {
+		SmtpResponse response = chunkResponse;
+		chunkResponse = null;
+		lastAction = chunkAction;
+		if (smtpState == SmtpState.QUIT && response.getCode() == 250) {
+			msg.completeChunks();
+			return deliver(response);
+		}
+		return response;
+	}
+
+	/**
+	 * Hands the completely received message over, and starts a new one.
+	 *
+	 * @param accepted response accepting the message
+	 * @return the response to send, telling the client to try again if the message could not be delivered
+	 */
+	private SmtpResponse deliver(SmtpResponse accepted) {
+		SmtpResponse response = accepted;
+		try {
+			sink.deliver(msg);
+		} catch (RuntimeException e) {
+			log.warn("could not deliver message", e);
+			response = deliveryFailed(accepted);
+		}
+		msg = new SmtpMessage();
+		metrics.messageReceived(System.nanoTime() - dataStartedAt, bytesReceived);
+		bytesReceived = 0;
+		return response;
+	}
+
+	/**
+	 * @param accepted response accepting a message
+	 * @return response telling the client that the message has not been accepted after all, leaving the session in the
+	 * same state
+	 */
+	static SmtpResponse deliveryFailed(SmtpResponse accepted) {
+		return new SmtpResponse(451, DELIVERY_FAILED, accepted.getNextState());
+	}
+
+	/**
+	 * Ends the session once the connection has been closed, whether the client quit or not. Calling it again has no
+	 * effect.
+	 */
+	void close() {
+		if (!closed) {
+			closed = true;
+			metrics.sessionClosed(System.nanoTime() - startedAt, bytesReceived);
+			bytesReceived = 0;
+		}
+	}
+
+	/**
+	 * @return the command answered by the response returned last, e.g. {@link SmtpActionType#DATA_END} for the
+	 * response to a message
+	 */
+	SmtpActionType getLastAction() {
+		return lastAction;
+	}
+
+	/**
+	 * @return the state of the session, i.e. what it expects the client to send next
+	 */
+	SmtpState getState() {
+		return smtpState;
+	}
+
+	/**
+	 * @return true once the client has quit and the connection should be closed
+	 */
+	boolean isFinished() {
+		return smtpState == SmtpState.CONNECT;
+	}
+}
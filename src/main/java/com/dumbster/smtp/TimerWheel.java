@@ -0,0 +1,164 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2016 Joachim Nicolay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A hashed timer wheel: runs tasks after a delay on a single thread, shared by all sessions of a server. Scheduling
+ * only appends to a queue, and every tick only looks at the timers in one bucket of the wheel, so thousands of
+ * connections can each keep a timer without a thread or a sorted queue per connection. Tasks run up to a tick late.
+ * <p>
+ * Timers cannot be cancelled. A task that is no longer needed has to find out itself when it runs.
+ */
+@Slf4j
+final class TimerWheel implements AutoCloseable {
+	/** Number of buckets, a power of two. */
+	private static final int WHEEL_SIZE = 512;
+
+	/** Length of a tick in nanoseconds. */
+	private final long tickNanos;
+	/** Timers not yet put into the wheel. */
+	private final Queue<Timer> pending = new ConcurrentLinkedQueue<>();
+	/** Head of the list of timers per bucket, only used by the wheel thread. */
+	private final Timer[] buckets = new Timer[WHEEL_SIZE];
+	/** When the wheel started, in nanoseconds. */
+	private final long startTime = System.nanoTime();
+	private final Thread thread;
+	/** Number of ticks done, only used by the wheel thread. */
+	private long tick;
+	private volatile boolean stopped;
+
+	/**
+	 * Starts the wheel thread right away.
+	 *
+	 * @param tick       length of a tick, the precision of the timers
+	 * @param unit       unit of the tick
+	 * @param threadName name of the wheel thread
+	 */
+	TimerWheel(long tick, TimeUnit unit, String threadName) {
+		this.tickNanos = Math.max(unit.toNanos(tick), 1);
+		this.thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				turn();
+			}
+		}, threadName);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Runs a task on the wheel thread once the delay has passed. The task should be short, it holds up the other
+	 * timers.
+	 *
+	 * @param task  the task
+	 * @param nanos the delay in nanoseconds
+	 */
+	void schedule(Runnable task, long nanos) {
+		pending.add(new Timer(task, System.nanoTime() + Math.max(nanos, 0)));
+	}
+
+	/**
+	 * Stops the wheel thread, dropping the timers not yet run.
+	 */
+	@Override
+	public void close() {
+		stopped = true;
+		thread.interrupt();
+	}
+
+	private void turn() {
+		try {
+			while (!stopped) {
+				long sleep = startTime + (tick + 1) * tickNanos - System.nanoTime();
+				if (sleep > 0) {
+					TimeUnit.NANOSECONDS.sleep(sleep);
+				}
+				addPending();
+				expire((int) (tick & (WHEEL_SIZE - 1)));
+				tick++;
+			}
+		} catch (InterruptedException e) {
+			// closed
+		}
+	}
+
+	/**
+	 * Puts the new timers into the bucket of the tick they are due at.
+	 */
+	private void addPending() {
+		Timer timer;
+		while ((timer = pending.poll()) != null) {
+			// the first tick ending at or after the deadline, but not one already gone
+			long dueTick = Math.max((timer.deadline - startTime + tickNanos - 1) / tickNanos - 1, tick);
+			timer.rounds = (dueTick - tick) / WHEEL_SIZE;
+			int bucket = (int) (dueTick & (WHEEL_SIZE - 1));
+			timer.next = buckets[bucket];
+			buckets[bucket] = timer;
+		}
+	}
+
+	/**
+	 * Runs the timers of a bucket that are due in this round of the wheel.
+	 */
+	private void expire(int bucket) {
+		Timer previous = null;
+		Timer timer = buckets[bucket];
+		while (timer != null) {
+			Timer next = timer.next;
+			if (timer.rounds > 0) {
+				timer.rounds--;
+				previous = timer;
+			} else {
+				if (previous == null) {
+					buckets[bucket] = next;
+				} else {
+					previous.next = next;
+				}
+				try {
+					timer.task.run();
+				} catch (RuntimeException e) {
+					log.warn("timer task failed", e);
+				}
+			}
+			timer = next;
+		}
+	}
+
+	/**
+	 * A task waiting in a bucket.
+	 */
+	private static final class Timer {
+		private final Runnable task;
+		/** When the task is due, in nanoseconds. */
+		private final long deadline;
+		/** Number of turns of the wheel to wait before running the task. */
+		private long rounds;
+		/** Next timer in the same bucket. */
+		private Timer next;
+
+		private Timer(Runnable task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+	}
+}
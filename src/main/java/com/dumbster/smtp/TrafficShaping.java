@@ -0,0 +1,111 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2016 Joachim Nicolay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * The delays and read rate a server applies to its sessions, to emulate a slow relay. The engines apply them in
+ * their own way: the blocking engine waits on the thread serving the session, the non-blocking engine schedules the
+ * rest of the work on its selector thread, so no thread waits for a delayed connection.
+ */
+final class TrafficShaping {
+	/** Answers right away and reads as fast as the clients send. */
+	static final TrafficShaping NONE = new TrafficShaping(new ResponseDelay[SmtpActionType.values().length], 0);
+
+	/** Delay per action, null for none. */
+	private final ResponseDelay[] delays;
+	/** Bytes read per second and connection, 0 for no limit. */
+	private final long readBytesPerSecond;
+
+	/**
+	 * @param delays             response delay per action, null for none
+	 * @param readBytesPerSecond how fast to read from each connection, 0 for no limit
+	 */
+	private TrafficShaping(ResponseDelay[] delays, long readBytesPerSecond) {
+		this.delays = delays;
+		this.readBytesPerSecond = readBytesPerSecond;
+	}
+
+	/**
+	 * @param delays             response delay per action
+	 * @param defaultDelay       response delay of the other actions, null for none
+	 * @param readBytesPerSecond how fast to read from each connection, 0 for no limit
+	 * @return the shaping, {@link #NONE} if nothing is shaped
+	 */
+	static TrafficShaping of(Map<SmtpActionType, ResponseDelay> delays, ResponseDelay defaultDelay,
+			long readBytesPerSecond) {
+		if (delays.isEmpty() && defaultDelay == null && readBytesPerSecond == 0) {
+			return NONE;
+		}
+		ResponseDelay[] byAction = new ResponseDelay[SmtpActionType.values().length];
+		Arrays.fill(byAction, defaultDelay);
+		for (Map.Entry<SmtpActionType, ResponseDelay> delay : delays.entrySet()) {
+			byAction[delay.getKey().ordinal()] = delay.getValue();
+		}
+		return new TrafficShaping(byAction, readBytesPerSecond);
+	}
+
+	/**
+	 * @param action the command the response answers
+	 * @return how long to wait before sending the response in nanoseconds, 0 for not at all
+	 */
+	long responseDelay(SmtpActionType action) {
+		ResponseDelay delay = delays[action.ordinal()];
+		return delay == null ? 0 : delay.nextNanos();
+	}
+
+	/**
+	 * @return a throttle for a new connection, null if reading is not limited
+	 */
+	ReadThrottle newReadThrottle() {
+		return readBytesPerSecond > 0 ? new ReadThrottle(readBytesPerSecond) : null;
+	}
+
+	/**
+	 * Paces the reads of one connection: after every read of at most a twentieth of a second's worth of bytes, the
+	 * connection pauses as long as reading the bytes should have taken. Not thread-safe.
+	 */
+	static final class ReadThrottle {
+		private final long bytesPerSecond;
+		/** When the next read may happen, in nanoseconds. */
+		private long nextReadAt = System.nanoTime();
+
+		private ReadThrottle(long bytesPerSecond) {
+			this.bytesPerSecond = bytesPerSecond;
+		}
+
+		/**
+		 * @return how many bytes to read at most at once, so the bytes trickle in instead of arriving in bursts
+		 */
+		int maxRead() {
+			return (int) Math.max(Math.min(bytesPerSecond / 20, Integer.MAX_VALUE), 1);
+		}
+
+		/**
+		 * @param bytes number of bytes just read
+		 * @return how long to wait before reading again in nanoseconds, 0 for not at all
+		 */
+		long pause(int bytes) {
+			long now = System.nanoTime();
+			// a connection that was idle does not save up for a burst
+			nextReadAt = Math.max(nextReadAt, now) + bytes * 1000000000L / bytesPerSecond;
+			return Math.max(nextReadAt - now, 0);
+		}
+	}
+}
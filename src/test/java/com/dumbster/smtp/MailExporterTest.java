@@ -0,0 +1,94 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2016 Joachim Nicolay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.Matchers.arrayWithSize;
+import static org.hamcrest.Matchers.emptyArray;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class MailExporterTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testMbox() throws Exception {
+		List<SmtpMessage> messages = Arrays.asList(
+				message("sender@here.com", "Subject: first", "From here\r\n>From there\r\nbody"),
+				message(null, "Subject: second", "second body"));
+		Path file = folder.getRoot().toPath().resolve("mbox");
+
+		assertThat(MailExporter.exportMbox(messages, file), is(2));
+
+		assertThat(new String(Files.readAllBytes(file), StandardCharsets.UTF_8), is(""
+				+ "From sender@here.com Thu Jan 01 00:00:01 1970\n"
+				+ "Subject: first\n"
+				+ "\n"
+				+ ">From here\n"
+				+ ">>From there\n"
+				+ "body\n"
+				+ "\n"
+				+ "From MAILER-DAEMON Thu Jan 01 00:00:01 1970\n"
+				+ "Subject: second\n"
+				+ "\n"
+				+ "second body\n"
+				+ "\n"));
+	}
+
+	@Test
+	public void testMaildir() throws Exception {
+		List<SmtpMessage> messages = new ArrayList<>();
+		for (int i = 0; i < 100; i++) {
+			messages.add(message("sender@here.com", "Subject: message " + i, "From body " + i));
+		}
+		File maildir = new File(folder.getRoot(), "Maildir");
+
+		assertThat(MailExporter.exportMaildir(messages, maildir.toPath(), 4), is(100));
+
+		assertThat(new File(maildir, "tmp").list(), is(emptyArray()));
+		assertThat(new File(maildir, "cur").list(), is(emptyArray()));
+		File[] files = new File(maildir, "new").listFiles();
+		assertThat(files, is(arrayWithSize(100)));
+		Arrays.sort(files);
+		String content = new String(Files.readAllBytes(files[0].toPath()), StandardCharsets.UTF_8);
+		// no quoting outside of mbox
+		assertThat(content.matches("Return-Path: <sender@here.com>\nSubject: message (\\d+)\n\nFrom body \\1\n"), is(true));
+	}
+
+	private static SmtpMessage message(String sender, String header, String body) {
+		SmtpMessage msg = new SmtpMessage();
+		msg.setEnvelopeSender(sender);
+		byte[] bytes = (header + "\r\n\r\n" + body + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+		msg.appendChunk(bytes, 0, bytes.length);
+		msg.completeChunks();
+		msg.receivedAt = 1000;
+		return msg;
+	}
+}
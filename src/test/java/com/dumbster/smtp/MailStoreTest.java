@@ -0,0 +1,184 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2016 Joachim Nicolay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+import org.junit.Test;
+
+import java.lang.ref.WeakReference;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+public class MailStoreTest {
+
+	private final MailStore store = new MailStore();
+
+	@Test
+	public void testSnapshotDoesNotChange() {
+		SmtpMessage first = new SmtpMessage();
+		store.deliver(first);
+		List<SmtpMessage> snapshot = store.snapshot();
+
+		store.deliver(new SmtpMessage());
+		store.reset();
+		store.deliver(new SmtpMessage());
+
+		assertThat(snapshot, hasSize(1));
+		assertThat(snapshot.get(0), is(sameInstance(first)));
+		assertThat(store.snapshot(), hasSize(1));
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void testSnapshotIsUnmodifiable() {
+		store.snapshot().add(new SmtpMessage());
+	}
+
+	@Test
+	public void testConcurrentAppends() throws InterruptedException {
+		final int perThread = 5000;
+		Thread[] writers = new Thread[8];
+		for (int i = 0; i < writers.length; i++) {
+			writers[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int j = 0; j < perThread; j++) {
+						store.deliver(new SmtpMessage());
+					}
+				}
+			});
+			writers[i].start();
+		}
+		// readers always see a consistent prefix while the writers are busy
+		for (int i = 0; i < 100; i++) {
+			for (SmtpMessage msg : store.snapshot()) {
+				assertThat(msg, is(notNullValue()));
+			}
+		}
+		for (Thread writer : writers) {
+			writer.join();
+		}
+
+		List<SmtpMessage> all = store.snapshot();
+		assertThat(all, hasSize(writers.length * perThread));
+		Set<SmtpMessage> distinct = new HashSet<>(all);
+		assertThat(distinct, hasSize(writers.length * perThread));
+	}
+
+	@Test
+	public void testAwaitConditionIsCheckedPerAppend() throws InterruptedException {
+		for (int i = 0; i < 1000; i++) {
+			store.deliver(new SmtpMessage());
+		}
+		final AtomicInteger checks = new AtomicInteger();
+		final AtomicBoolean ready = new AtomicBoolean();
+		Thread writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				ready.set(true);
+				store.deliver(new SmtpMessage());
+			}
+		});
+		writer.start();
+		boolean held = store.await(new MailStore.WaitCondition() {
+			@Override
+			public boolean holds() {
+				checks.incrementAndGet();
+				return ready.get();
+			}
+		}, 5, TimeUnit.SECONDS);
+		writer.join();
+
+		assertThat(held, is(true));
+		// not once per message kept
+		assertThat(checks.get(), is(lessThanOrEqualTo(2)));
+		assertThat(store.await(new MailStore.WaitCondition() {
+			@Override
+			public boolean holds() {
+				return false;
+			}
+		}, 10, TimeUnit.MILLISECONDS), is(false));
+	}
+
+	@Test
+	public void testCountRetention() {
+		MailStore limited = new MailStore(1500, Long.MAX_VALUE, 0, null);
+		List<SmtpMessage> early = null;
+		for (int i = 0; i < 5000; i++) {
+			limited.deliver(new SmtpMessage());
+			if (i == 9) {
+				early = limited.snapshot();
+			}
+		}
+		assertThat(limited.snapshot(), hasSize(1500));
+		assertThat(limited.getEvicted(), is(3500L));
+		// snapshots keep evicted messages
+		assertThat(early, hasSize(10));
+		assertThat(early.get(0), is(notNullValue()));
+	}
+
+	@Test
+	public void testEvictedMessagesAreReleased() throws InterruptedException {
+		MailStore limited = new MailStore(1, Long.MAX_VALUE, 0, null);
+		SmtpMessage first = new SmtpMessage();
+		limited.deliver(first);
+		WeakReference<SmtpMessage> evicted = new WeakReference<>(first);
+		first = null;
+		limited.deliver(new SmtpMessage());
+		assertThat(limited.getEvicted(), is(1L));
+		for (int i = 0; i < 50 && evicted.get() != null; i++) {
+			System.gc();
+			Thread.sleep(10);
+		}
+		// long before its chunk of slots is dropped
+		assertThat(evicted.get(), is(nullValue()));
+		assertThat(limited.snapshot(), hasSize(1));
+	}
+
+	@Test
+	public void testBytesRetention() {
+		MailStore limited = new MailStore(Integer.MAX_VALUE, 100, 0, null);
+		for (int i = 0; i < 10; i++) {
+			SmtpMessage msg = new SmtpMessage();
+			msg.store(new SmtpResponse(-1, "", SmtpState.DATA_BODY), "0123456789012345678901234567890123456789");
+			limited.deliver(msg);
+		}
+		// 42 bytes each
+		assertThat(limited.snapshot(), hasSize(2));
+		assertThat(limited.getEvicted(), is(8L));
+	}
+
+	@Test
+	public void testAgeRetention() throws InterruptedException {
+		MailStore limited = new MailStore(Integer.MAX_VALUE, Long.MAX_VALUE, 50, null);
+		limited.deliver(new SmtpMessage());
+		assertThat(limited.size(), is(1));
+		Thread.sleep(100);
+		assertThat(limited.size(), is(0));
+		assertThat(limited.getEvicted(), is(1L));
+	}
+}
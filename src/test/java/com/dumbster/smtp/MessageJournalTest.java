@@ -0,0 +1,172 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2016 Joachim Nicolay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class MessageJournalTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testMessagesAreReadBack() throws Exception {
+		Path file = folder.getRoot().toPath().resolve("journal");
+		MessageJournal journal = new MessageJournal(file, 0, "journal");
+		assertThat(replay(journal), hasSize(0));
+		SmtpMessage first = message("sender@here.com", "Subject: first", "body of the first");
+		first.addEnvelopeRecipient("one@there.com");
+		first.addEnvelopeRecipient("zwei@dört.de");
+		journal.deliver(first);
+		SmtpMessage second = message(null, "Subject: second", "");
+		journal.deliver(second);
+		journal.close();
+
+		List<SmtpMessage> messages = replay(new MessageJournal(file, 0, "journal"));
+		assertThat(messages, hasSize(2));
+		SmtpMessage msg = messages.get(0);
+		assertThat(msg.getEnvelopeSender(), is("sender@here.com"));
+		assertThat(msg.getEnvelopeRecipients(), contains("one@there.com", "zwei@dört.de"));
+		assertThat(msg.getHeaderValue("Subject"), is("first"));
+		assertThat(msg.getBody(), is("body of the first"));
+		assertThat(msg.receivedAt, is(first.receivedAt));
+		assertThat(messages.get(1).getEnvelopeSender(), is(nullValue()));
+		assertThat(messages.get(1).getBody(), is(second.getBody()));
+	}
+
+	@Test
+	public void testDamagedEndIsDropped() throws Exception {
+		Path file = folder.getRoot().toPath().resolve("journal");
+		MessageJournal journal = new MessageJournal(file, 10, "journal");
+		replay(journal);
+		journal.deliver(message("sender@here.com", "Subject: kept", "body"));
+		journal.deliver(message("sender@here.com", "Subject: lost", "body"));
+		journal.close();
+		long size = Files.size(file);
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+			channel.truncate(size - 3);
+		}
+
+		MessageJournal reopened = new MessageJournal(file, TimeUnit.MILLISECONDS.toNanos(10), "journal");
+		List<SmtpMessage> messages = replay(reopened);
+		assertThat(messages, hasSize(1));
+		assertThat(messages.get(0).getHeaderValue("Subject"), is("kept"));
+		reopened.deliver(message("sender@here.com", "Subject: appended", "body"));
+		reopened.close();
+
+		messages = replay(new MessageJournal(file, 0, "journal"));
+		assertThat(messages, hasSize(2));
+		assertThat(messages.get(1).getHeaderValue("Subject"), is("appended"));
+	}
+
+	@Test
+	public void testCallbackOnceSynced() throws Exception {
+		Path file = folder.getRoot().toPath().resolve("journal");
+		MessageJournal journal = new MessageJournal(file, 0, "journal");
+		replay(journal);
+		final CountDownLatch synced = new CountDownLatch(1);
+		final AtomicReference<Exception> failure = new AtomicReference<>();
+		journal.deliver(message("sender@here.com", "Subject: async", "body"), new AsyncMessageSink.Callback() {
+			@Override
+			public void delivered(Exception e) {
+				failure.set(e);
+				synced.countDown();
+			}
+		});
+		assertThat(synced.await(5, TimeUnit.SECONDS), is(true));
+		assertThat(failure.get(), is(nullValue()));
+		journal.close();
+
+		List<SmtpMessage> messages = replay(new MessageJournal(file, 0, "journal"));
+		assertThat(messages, hasSize(1));
+		assertThat(messages.get(0).getHeaderValue("Subject"), is("async"));
+	}
+
+	@Test
+	public void testClosedJournalRejectsMessages() throws Exception {
+		MessageJournal journal = new MessageJournal(folder.getRoot().toPath().resolve("journal"), 0, "journal");
+		replay(journal);
+		journal.close();
+		final AtomicReference<Exception> failure = new AtomicReference<>();
+		journal.deliver(message("sender@here.com", "Subject: late", "body"), new AsyncMessageSink.Callback() {
+			@Override
+			public void delivered(Exception e) {
+				failure.set(e);
+			}
+		});
+		assertThat(failure.get(), is(instanceOf(IOException.class)));
+		try {
+			journal.deliver(message("sender@here.com", "Subject: late", "body"));
+			fail("closed journal took a message");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void testOtherFilesAreRejected() throws Exception {
+		Path file = folder.newFile().toPath();
+		Files.write(file, "not a journal".getBytes(StandardCharsets.US_ASCII));
+		new MessageJournal(file, 0, "journal").replay(new MessageSink() {
+			@Override
+			public void deliver(SmtpMessage msg) {
+			}
+		});
+	}
+
+	private static List<SmtpMessage> replay(MessageJournal journal) throws IOException {
+		final List<SmtpMessage> messages = new ArrayList<>();
+		journal.replay(new MessageSink() {
+			@Override
+			public void deliver(SmtpMessage msg) {
+				messages.add(msg);
+			}
+		});
+		return messages;
+	}
+
+	private static SmtpMessage message(String sender, String header, String body) {
+		SmtpMessage msg = new SmtpMessage();
+		msg.setEnvelopeSender(sender);
+		byte[] bytes = (header + "\r\n\r\n" + body + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+		msg.appendChunk(bytes, 0, bytes.length);
+		msg.completeChunks();
+		return msg;
+	}
+}
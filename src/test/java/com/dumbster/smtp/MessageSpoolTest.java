@@ -0,0 +1,67 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2016 Joachim Nicolay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.hamcrest.Matchers.emptyArray;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class MessageSpoolTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testBodyIsReadBackFromSpool() throws Exception {
+		MessageSpool spool = new MessageSpool(folder.getRoot().toPath(), 64);
+		SmtpMessage small = message("Subject: small", "short body");
+		SmtpMessage large = message("Subject: large", "a body longer than the segment size of sixty-four bytes, so it needs a file of its own");
+		SmtpMessage next = message("Subject: next", "does not fit behind the first one");
+
+		spool.spool(small);
+		spool.spool(large);
+		spool.spool(next);
+
+		assertThat(small.getBody(), is("short body"));
+		assertThat(large.getBody(), is("a body longer than the segment size of sixty-four bytes, so it needs a file of its own"));
+		assertThat(next.getBody(), is("does not fit behind the first one"));
+		assertThat(next.getHeaderValue("Subject"), is("next"));
+		assertThat(folder.getRoot().list(), is(emptyArray()));
+	}
+
+	@Test
+	public void testSpooledMessageCanBeExtended() throws Exception {
+		SmtpMessage msg = message("Subject: extended", "first");
+		new MessageSpool(folder.getRoot().toPath(), 64).spool(msg);
+		msg.store(new SmtpResponse(-1, "", SmtpState.DATA_BODY), "second");
+		assertThat(msg.getBody(), is("firstsecond"));
+	}
+
+	private static SmtpMessage message(String header, String body) {
+		SmtpMessage msg = new SmtpMessage();
+		byte[] bytes = (header + "\r\n\r\n" + body + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+		msg.appendChunk(bytes, 0, bytes.length);
+		msg.completeChunks();
+		return msg;
+	}
+}
@@ -0,0 +1,136 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2016 Joachim Nicolay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class MimePartTest {
+
+	@Test
+	public void testMultipart() throws Exception {
+		MimePart message = message(""
+				+ "Subject: parts\r\n"
+				+ "Content-Type: multipart/mixed;\r\n"
+				+ "\tboundary=\"outer\"\r\n"
+				+ "\r\n"
+				+ "preamble\r\n"
+				+ "--outer\r\n"
+				+ "Content-Type: multipart/alternative; boundary=inner\r\n"
+				+ "\r\n"
+				+ "--inner\r\n"
+				+ "Content-Type: text/plain; charset=UTF-8\r\n"
+				+ "Content-Transfer-Encoding: quoted-printable\r\n"
+				+ "\r\n"
+				+ "Gr=C3=BC=C3=9Fe, a long line=\r\n"
+				+ " continued\r\n"
+				+ "--inner\r\n"
+				+ "Content-Type: text/html\r\n"
+				+ "\r\n"
+				+ "<p>hello</p>\r\n"
+				+ "--inner--\r\n"
+				+ "--outer\r\n"
+				+ "Content-Type: application/octet-stream; name=data.bin\r\n"
+				+ "Content-Disposition: attachment; filename=\"report 1.bin\"\r\n"
+				+ "Content-Transfer-Encoding: BASE64\r\n"
+				+ "\r\n"
+				+ "AAEC/f7/\r\n"
+				+ "aGVsbG8=\r\n"
+				+ "--outer--\r\n"
+				+ "epilogue\r\n");
+
+		assertThat(message.getContentType(), is("multipart/mixed"));
+		assertThat(message.getContentTypeParameter("boundary"), is("outer"));
+		List<MimePart> parts = message.getParts();
+		assertThat(parts, hasSize(2));
+
+		MimePart alternative = parts.get(0);
+		assertThat(alternative.isMultipart(), is(true));
+		assertThat(alternative.getParts(), hasSize(2));
+		MimePart text = alternative.getParts().get(0);
+		assertThat(text.getTransferEncoding(), is("quoted-printable"));
+		assertThat(text.getContentAsString(), is("Grüße, a long line continued"));
+		MimePart html = alternative.getParts().get(1);
+		assertThat(html.getContentType(), is("text/html"));
+		assertThat(html.getContentAsString(), is("<p>hello</p>"));
+
+		MimePart attachment = parts.get(1);
+		assertThat(attachment.isMultipart(), is(false));
+		assertThat(attachment.getParts(), hasSize(0));
+		assertThat(attachment.getFileName(), is("report 1.bin"));
+		assertThat(attachment.getContentTypeParameter("name"), is("data.bin"));
+		assertThat(attachment.getEncodedSize(), is(18));
+		assertThat(read(attachment.getInputStream()), is(new byte[]{0, 1, 2, -3, -2, -1, 'h', 'e', 'l', 'l', 'o'}));
+	}
+
+	@Test
+	public void testSinglePart() throws Exception {
+		MimePart message = message("Subject: plain\r\n\r\nline one\r\nline two\r\n");
+
+		assertThat(message.getContentType(), is("text/plain"));
+		assertThat(message.getTransferEncoding(), is("7bit"));
+		assertThat(message.getFileName(), is(nullValue()));
+		assertThat(message.isMultipart(), is(false));
+		assertThat(message.getContentAsString(), is("line one\r\nline two\r\n"));
+	}
+
+	@Test
+	public void testMissingCloseDelimiter() throws Exception {
+		MimePart message = message(""
+				+ "Content-Type: multipart/mixed; boundary=b\r\n"
+				+ "\r\n"
+				+ "--b\r\n"
+				+ "\r\n"
+				+ "no headers\r\n"
+				+ "--b\r\n"
+				+ "Content-Type: text/plain\r\n"
+				+ "\r\n"
+				+ "cut off\r\n");
+
+		List<MimePart> parts = message.getParts();
+		assertThat(parts, hasSize(2));
+		assertThat(parts.get(0).getHeaderValue("Content-Type"), is(nullValue()));
+		assertThat(parts.get(0).getContentAsString(), is("no headers"));
+		assertThat(parts.get(1).getContentAsString(), is("cut off\r\n"));
+	}
+
+	private static MimePart message(String data) {
+		SmtpMessage msg = new SmtpMessage();
+		byte[] bytes = data.getBytes(StandardCharsets.UTF_8);
+		msg.appendChunk(bytes, 0, bytes.length);
+		msg.completeChunks();
+		return msg.getMimePart();
+	}
+
+	private static byte[] read(InputStream in) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		int b;
+		while ((b = in.read()) >= 0) {
+			out.write(b);
+		}
+		return out.toByteArray();
+	}
+}
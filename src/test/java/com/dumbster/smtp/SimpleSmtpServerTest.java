@@ -27,14 +27,42 @@ import javax.mail.Session;
 import javax.mail.Transport;
 import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeMessage;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
 import static org.hamcrest.Matchers.hasItem;
 import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.hamcrest.Matchers.startsWith;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
 import static org.junit.Assert.assertTrue;
 
 public class SimpleSmtpServerTest {
@@ -165,11 +193,752 @@ public class SimpleSmtpServerTest {
 		assertTrue(email.getBody().equals("Test Body"));
 	}
 
+	@Test
+	public void testListenOnSeveralAddresses() throws Exception {
+		try (SimpleSmtpServer multi = SimpleSmtpServer.builder().nonBlocking(1)
+				.bind(new InetSocketAddress("localhost", 0)).bind(new InetSocketAddress("localhost", 0)).start()) {
+			List<Integer> ports = multi.getPorts();
+			assertThat(ports, hasSize(2));
+			sendMessage(ports.get(0), "sender@here.com", "First", "Body", "receiver@there.com");
+			sendMessage(ports.get(1), "sender@here.com", "Second", "Body", "receiver@there.com");
+			assertThat(multi.getReceivedEmails(), hasSize(2));
+		}
+	}
+
+	@Test
+	public void testServersSharingEventLoopGroup() throws Exception {
+		try (SmtpEventLoopGroup group = SmtpEventLoopGroup.start(1)) {
+			SimpleSmtpServer first = SimpleSmtpServer.builder().eventLoopGroup(group).start();
+			try (SimpleSmtpServer second = SimpleSmtpServer.builder().eventLoopGroup(group).start()) {
+				sendMessage(first.getPort(), "sender@here.com", "First", "Body", "receiver@there.com");
+				first.stop();
+				sendMessage(second.getPort(), "sender@here.com", "Second", "Body", "receiver@there.com");
+				assertThat(first.getReceivedEmails(), hasSize(1));
+				assertThat(second.getReceivedEmails(), hasSize(1));
+				assertThat(second.getReceivedEmails().get(0).getHeaderValue("Subject"), is("Second"));
+			}
+		}
+	}
+
+	@Test
+	public void testFailingConnectionDoesNotStopSharedEventLoop() throws Exception {
+		try (SmtpEventLoopGroup group = SmtpEventLoopGroup.start(1)) {
+			ServerSocketChannel channel = ServerSocketChannel.open();
+			channel.bind(new InetSocketAddress(0));
+			SessionTimeouts timeouts = new SessionTimeouts(0, 0, 0, "timer");
+			NioSmtpEngine broken = new NioSmtpEngine(group, false, Collections.singletonList(channel),
+					new AsyncMessageSink() {
+						@Override
+						public void deliver(SmtpMessage msg, Callback callback) {
+							throw new IllegalStateException("broken sink");
+						}
+					}, new ServerMetrics(), TrafficShaping.NONE, timeouts, Integer.MAX_VALUE);
+			try (SimpleSmtpServer server = SimpleSmtpServer.builder().eventLoopGroup(group).start()) {
+				try {
+					sendMessage(broken.getPort(), "sender@here.com", "Lost", "Body", "receiver@there.com");
+					fail("broken server accepted the message");
+				} catch (MessagingException e) {
+					// the connection has been closed
+				}
+				sendMessage(server.getPort(), "sender@here.com", "Kept", "Body", "receiver@there.com");
+				assertThat(server.getReceivedEmails(), hasSize(1));
+			} finally {
+				broken.stop(1000);
+				timeouts.close();
+			}
+		}
+	}
+
+	@Test
+	public void testPipelining() throws Exception {
+		assertPipelining(server);
+		try (SimpleSmtpServer nio = SimpleSmtpServer.builder().nonBlocking(1).start()) {
+			assertPipelining(nio);
+		}
+	}
+
+	@Test
+	public void testChunking() throws Exception {
+		assertChunking(server);
+		try (SimpleSmtpServer nio = SimpleSmtpServer.builder().nonBlocking(1).start()) {
+			assertChunking(nio);
+		}
+	}
+
+	@Test
+	public void testHeloHasNoExtensions() throws Exception {
+		try (Socket socket = new Socket("localhost", server.getPort())) {
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.ISO_8859_1));
+			assertThat(in.readLine(), startsWith("220 "));
+			socket.getOutputStream().write("HELO localhost\r\n".getBytes(StandardCharsets.ISO_8859_1));
+			assertThat(in.readLine(), is("250 OK"));
+		}
+	}
+
+	@Test
+	public void testSpool() throws Exception {
+		Path directory = Files.createTempDirectory("dumbster-test");
+		try (SimpleSmtpServer spooling = SimpleSmtpServer.builder().spoolDirectory(directory).start()) {
+			sendMessage(spooling.getPort(), "sender@here.com", "Spooled", "Spooled Body", "receiver@there.com");
+			SmtpMessage email = spooling.getReceivedEmails().get(0);
+			assertThat(email.getHeaderValue("Subject"), is("Spooled"));
+			assertThat(email.getBody(), is("Spooled Body"));
+		} finally {
+			Files.delete(directory);
+		}
+	}
+
+	@Test
+	public void testJournalKeepsMessagesAcrossRestarts() throws Exception {
+		Path directory = Files.createTempDirectory("dumbster-test");
+		Path journal = directory.resolve("journal");
+		try {
+			try (SimpleSmtpServer first = SimpleSmtpServer.builder().journal(journal).start()) {
+				sendMessage(first.getPort(), "sender@here.com", "Journaled", "Journaled Body", "receiver@there.com");
+			}
+			try (SimpleSmtpServer second = SimpleSmtpServer.builder().journal(journal).start()) {
+				assertThat(second.getReceivedEmails(), hasSize(1));
+				assertThat(second.getReceivedEmailsByRecipient("receiver@there.com"), hasSize(1));
+				SmtpMessage email = second.getReceivedEmails().get(0);
+				assertThat(email.getHeaderValue("Subject"), is("Journaled"));
+				assertThat(email.getBody(), is("Journaled Body"));
+				second.reset();
+			}
+			try (SimpleSmtpServer third = SimpleSmtpServer.builder().journal(journal).start()) {
+				assertThat(third.getReceivedEmails(), is(empty()));
+			}
+		} finally {
+			Files.delete(journal);
+			Files.delete(directory);
+		}
+	}
+
+	@Test
+	public void testJournalWithNonBlockingEngine() throws Exception {
+		Path directory = Files.createTempDirectory("dumbster-test");
+		Path journal = directory.resolve("journal");
+		try {
+			try (SimpleSmtpServer first = SimpleSmtpServer.builder().nonBlocking(1).journal(journal).start()) {
+				sendMessage(first.getPort(), "sender@here.com", "First", "Body", "receiver@there.com");
+				sendMessage(first.getPort(), "sender@here.com", "Second", "Body", "receiver@there.com");
+				assertThat(first.getReceivedEmails(), hasSize(2));
+			}
+			try (SimpleSmtpServer second = SimpleSmtpServer.builder().nonBlocking(1).journal(journal).start()) {
+				assertThat(second.getReceivedEmails(), hasSize(2));
+				assertThat(second.getReceivedEmails().get(1).getHeaderValue("Subject"), is("Second"));
+			}
+		} finally {
+			Files.delete(journal);
+			Files.delete(directory);
+		}
+	}
+
+	@Test
+	public void testIndexes() throws Exception {
+		sendMessage(server.getPort(), "sender@here.com", "First", "Body", "receiver@there.com");
+		sendMessage(server.getPort(), "other@here.com", "Second", "Body", "Receiver@There.com");
+		sendMessage(server.getPort(), "sender@here.com", "Third", "Body", "someone@else.com");
+
+		List<SmtpMessage> toReceiver = server.getReceivedEmailsByRecipient("receiver@there.com");
+		assertThat(toReceiver, hasSize(2));
+		assertThat(toReceiver.get(0).getHeaderValue("Subject"), is("First"));
+		assertThat(toReceiver.get(0).getEnvelopeSender(), is("sender@here.com"));
+		assertThat(toReceiver.get(1).getEnvelopeRecipients(), contains("Receiver@There.com"));
+		assertThat(server.getReceivedEmailsBySender("sender@here.com"), hasSize(2));
+		assertThat(server.getReceivedEmailsBySubject("Second"), hasSize(1));
+		String messageId = toReceiver.get(0).getHeaderValue("Message-ID");
+		assertThat(server.getReceivedEmailsByMessageId(messageId), contains(toReceiver.get(0)));
+		assertThat(server.getReceivedEmailsBySubject("Fourth"), is(empty()));
+
+		server.reset();
+		assertThat(server.getReceivedEmailsBySender("sender@here.com"), is(empty()));
+	}
+
+	@Test
+	public void testIndexesForgetEvictedMessages() throws Exception {
+		try (SimpleSmtpServer limited = SimpleSmtpServer.builder().maxRetainedEmails(1).start()) {
+			sendMessage(limited.getPort(), "sender@here.com", "First", "Body", "receiver@there.com");
+			sendMessage(limited.getPort(), "sender@here.com", "Second", "Body", "receiver@there.com");
+			assertThat(limited.getEvictedEmailCount(), is(1L));
+			assertThat(limited.getReceivedEmailsBySubject("First"), is(empty()));
+			List<SmtpMessage> kept = limited.getReceivedEmailsByRecipient("receiver@there.com");
+			assertThat(kept, hasSize(1));
+			assertThat(kept.get(0).getHeaderValue("Subject"), is("Second"));
+		}
+	}
+
+	@Test
+	public void testMailboxes() throws Exception {
+		Mailbox alice = server.getMailbox("alice@one.com");
+		Mailbox bob = server.getMailbox("bob@two.com");
+		Mailbox one = server.getDomainMailbox("ONE.com");
+		sendMessage(server.getPort(), "sender@here.com", "For Alice", "Body", "alice@one.com");
+		sendMessage(server.getPort(), "sender@here.com", "For Bob", "Body", "bob@two.com");
+		sendMessage(server.getPort(), "sender@here.com", "For Carol", "Body", "carol@one.com");
+
+		assertThat(alice.getReceivedEmails(), hasSize(1));
+		assertThat(alice.getReceivedEmails().get(0).getHeaderValue("Subject"), is("For Alice"));
+		assertThat(one.getReceivedEmailCount(), is(2));
+
+		alice.reset();
+		assertThat(alice.getReceivedEmails(), is(empty()));
+		assertThat(bob.getReceivedEmailCount(), is(1));
+		assertThat(one.getReceivedEmailCount(), is(2));
+		assertThat(server.getReceivedEmailCount(), is(3));
+
+		Thread sender = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					sendMessage(server.getPort(), "sender@here.com", "Again", "Body", "alice@one.com");
+				} catch (MessagingException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		});
+		sender.start();
+		assertThat(alice.awaitEmails(1, 5, TimeUnit.SECONDS), hasSize(1));
+		sender.join();
+	}
+
+	@Test
+	public void testMetrics() throws Exception {
+		assertMetrics(server);
+	}
+
+	@Test
+	public void testMetricsNonBlocking() throws Exception {
+		try (SimpleSmtpServer nonBlocking = SimpleSmtpServer.builder().nonBlocking(1).start()) {
+			assertMetrics(nonBlocking);
+		}
+	}
+
+	@Test
+	public void testMetricsOverJmx() throws Exception {
+		MBeanServer mbeans = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name;
+		try (SimpleSmtpServer published = SimpleSmtpServer.builder().jmx(true).start()) {
+			name = new ObjectName("com.dumbster.smtp:type=SimpleSmtpServer,port=" + published.getPort());
+			sendMessage(published.getPort(), "sender@here.com", "Test", "Test Body", "receiver@there.com");
+
+			assertThat(mbeans.getAttribute(name, "MessagesReceived"), is((Object) 1L));
+			assertThat(mbeans.getAttribute(name, "StoredMessages"), is((Object) 1));
+		}
+		assertThat(mbeans.isRegistered(name), is(false));
+	}
+
+	@Test
+	public void testMaxSessions() throws Exception {
+		try (SimpleSmtpServer limited = SimpleSmtpServer.builder().maxSessions(2).workerThreads(1).backlog(10).start()) {
+			assertMaxSessions(limited);
+		}
+	}
+
+	@Test
+	public void testMaxSessionsNonBlocking() throws Exception {
+		try (SimpleSmtpServer limited = SimpleSmtpServer.builder().maxSessions(2).nonBlocking(1).backlog(10).start()) {
+			assertMaxSessions(limited);
+		}
+	}
+
+	@Test
+	public void testResponseDelay() throws Exception {
+		for (SimpleSmtpServer.Builder builder : Arrays.asList(SimpleSmtpServer.builder(),
+				SimpleSmtpServer.builder().nonBlocking(1))) {
+			try (SimpleSmtpServer slow = builder.responseDelay("DATA_END", ResponseDelay.fixed(200, TimeUnit.MILLISECONDS))
+					.responseDelay(ResponseDelay.uniform(0, 10, TimeUnit.MILLISECONDS)).start()) {
+				long start = System.nanoTime();
+				sendMessage(slow.getPort(), "sender@here.com", "Test", "Test Body", "receiver@there.com");
+
+				assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), is(greaterThanOrEqualTo(200L)));
+				assertThat(slow.getReceivedEmails(), hasSize(1));
+			}
+		}
+	}
+
+	@Test
+	public void testResponseDelayWithPipelining() throws Exception {
+		for (SimpleSmtpServer.Builder builder : Arrays.asList(SimpleSmtpServer.builder(),
+				SimpleSmtpServer.builder().nonBlocking(1))) {
+			try (SimpleSmtpServer slow = builder.responseDelay("MAIL", ResponseDelay.fixed(100, TimeUnit.MILLISECONDS))
+					.responseDelay("DATA", ResponseDelay.fixed(50, TimeUnit.MILLISECONDS)).start()) {
+				// the commands after a delayed one are already in the buffer when the delay is over
+				assertPipelining(slow);
+			}
+		}
+	}
+
+	@Test
+	public void testDelayedResponsesDoNotOccupySelectorThread() throws Exception {
+		try (SimpleSmtpServer slow = SimpleSmtpServer.builder().nonBlocking(1)
+				.responseDelay("CONNECT", ResponseDelay.fixed(500, TimeUnit.MILLISECONDS)).start()) {
+			List<Socket> sockets = new ArrayList<>();
+			try {
+				long start = System.nanoTime();
+				for (int i = 0; i < 10; i++) {
+					sockets.add(new Socket("localhost", slow.getPort()));
+				}
+				for (Socket socket : sockets) {
+					assertThat(new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.ISO_8859_1))
+							.readLine(), startsWith("220 "));
+				}
+				long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+				// the greetings are delayed side by side, not one after the other
+				assertThat(elapsed, is(greaterThanOrEqualTo(500L)));
+				assertThat(elapsed, is(lessThan(2500L)));
+			} finally {
+				for (Socket socket : sockets) {
+					socket.close();
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testReadThrottle() throws Exception {
+		StringBuilder body = new StringBuilder();
+		for (int i = 0; i < 100; i++) {
+			body.append("a line of body text, about one hundred bytes long once the line ending is added to it.......\n");
+		}
+		for (SimpleSmtpServer.Builder builder : Arrays.asList(SimpleSmtpServer.builder(),
+				SimpleSmtpServer.builder().nonBlocking(1))) {
+			try (SimpleSmtpServer slow = builder.readThrottle(20000).start()) {
+				long start = System.nanoTime();
+				sendMessage(slow.getPort(), "sender@here.com", "Test", body.toString(), "receiver@there.com");
+
+				// 10 kB at 20 kB/s
+				assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), is(greaterThanOrEqualTo(400L)));
+				assertThat(slow.getReceivedEmails(), hasSize(1));
+			}
+		}
+	}
+
+	@Test
+	public void testIdleTimeout() throws Exception {
+		for (SimpleSmtpServer.Builder builder : Arrays.asList(SimpleSmtpServer.builder(),
+				SimpleSmtpServer.builder().nonBlocking(1))) {
+			try (SimpleSmtpServer strict = builder.idleTimeout(200, TimeUnit.MILLISECONDS).start();
+			     Socket socket = new Socket("localhost", strict.getPort())) {
+				BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.ISO_8859_1));
+				assertThat(in.readLine(), startsWith("220 "));
+				long start = System.nanoTime();
+
+				assertThat(in.readLine(), startsWith("421 "));
+				assertThat(in.readLine(), is(nullValue()));
+				assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), is(greaterThanOrEqualTo(150L)));
+				assertThat(strict.getMetrics().getTimedOutSessions(), is(1L));
+			}
+		}
+	}
+
+	@Test
+	public void testCommandTimeoutCountsUntilTheLineIsComplete() throws Exception {
+		for (SimpleSmtpServer.Builder builder : Arrays.asList(SimpleSmtpServer.builder(),
+				SimpleSmtpServer.builder().nonBlocking(1))) {
+			try (SimpleSmtpServer strict = builder.commandTimeout(300, TimeUnit.MILLISECONDS).start();
+			     Socket socket = new Socket("localhost", strict.getPort())) {
+				BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.ISO_8859_1));
+				OutputStream out = socket.getOutputStream();
+				assertThat(in.readLine(), startsWith("220 "));
+				out.write("HELO localhost\r\nMAIL FROM:<sender@here.com>\r\n".getBytes(StandardCharsets.ISO_8859_1));
+				assertThat(in.readLine(), is("250 OK"));
+				assertThat(in.readLine(), is("250 OK"));
+
+				// a byte every 50 ms, too slow to complete the line in time
+				try {
+					for (byte b : "RCPT TO:<receiver@there.com>\r\n".getBytes(StandardCharsets.ISO_8859_1)) {
+						out.write(b);
+						Thread.sleep(50);
+					}
+				} catch (IOException e) {
+					// closed by the server
+				}
+				assertThat(in.readLine(), startsWith("421 "));
+				assertThat(strict.getReceivedEmails(), is(empty()));
+			}
+		}
+	}
+
+	@Test
+	public void testStopEndsIdleSessionsRightAway() throws Exception {
+		for (SimpleSmtpServer.Builder builder : Arrays.asList(SimpleSmtpServer.builder(),
+				SimpleSmtpServer.builder().nonBlocking(1))) {
+			SimpleSmtpServer stopping = builder.start();
+			try (Socket socket = new Socket("localhost", stopping.getPort())) {
+				BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.ISO_8859_1));
+				assertThat(in.readLine(), startsWith("220 "));
+				long start = System.nanoTime();
+
+				stopping.stop();
+
+				assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), is(lessThan(1000L)));
+				assertThat(in.readLine(), startsWith("421 "));
+				assertThat(in.readLine(), is(nullValue()));
+			}
+		}
+	}
+
+	@Test
+	public void testStopAbortsStalledSessions() throws Exception {
+		SimpleSmtpServer stopping = SimpleSmtpServer.builder().shutdownTimeout(100, TimeUnit.MILLISECONDS).start();
+		try (Socket socket = new Socket("localhost", stopping.getPort())) {
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.ISO_8859_1));
+			assertThat(in.readLine(), startsWith("220 "));
+			socket.getOutputStream().write("HELO localhost\r\nMAIL FROM:<sender@here.com>\r\n".getBytes(StandardCharsets.ISO_8859_1));
+			assertThat(in.readLine(), is("250 OK"));
+			assertThat(in.readLine(), is("250 OK"));
+			long start = System.nanoTime();
+
+			// in the middle of a transaction, so it gets the shutdown timeout
+			stopping.stop();
+
+			assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), is(greaterThanOrEqualTo(100L)));
+			assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), is(lessThan(1000L)));
+		}
+	}
+
+	@Test
+	public void testConnectionsRefusedByExecutorAreRejected() throws Exception {
+		ExecutorService refusing = Executors.newSingleThreadExecutor();
+		refusing.shutdown();
+		SessionTimeouts timeouts = new SessionTimeouts(0, 0, 0, "timer");
+		ServerMetrics metrics = new ServerMetrics();
+		BlockingSmtpEngine engine = new BlockingSmtpEngine(new ServerSocket(0), refusing, new MessageSink() {
+			@Override
+			public void deliver(SmtpMessage msg) {
+			}
+		}, metrics, TrafficShaping.NONE, timeouts, Integer.MAX_VALUE);
+		try {
+			// the accept loop goes on after a refused connection
+			for (int i = 0; i < 2; i++) {
+				try (Socket socket = new Socket("localhost", engine.getPort())) {
+					socket.setSoTimeout(5000);
+					BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.ISO_8859_1));
+					assertThat(in.readLine(), startsWith("421 "));
+					assertThat(in.readLine(), is(nullValue()));
+				}
+			}
+			assertThat(metrics.snapshot(0, 0).getRejectedConnections(), is(2L));
+		} finally {
+			engine.stop(1000);
+			timeouts.close();
+		}
+	}
+
+	@Test
+	public void testStopWithoutTimeoutAbortsAtOnce() throws Exception {
+		SimpleSmtpServer stopping = SimpleSmtpServer.builder().shutdownTimeout(0, TimeUnit.MILLISECONDS).start();
+		try (Socket socket = new Socket("localhost", stopping.getPort())) {
+			socket.setSoTimeout(5000);
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.ISO_8859_1));
+			assertThat(in.readLine(), startsWith("220 "));
+			socket.getOutputStream().write("HELO localhost\r\nMAIL FROM:<sender@here.com>\r\n".getBytes(StandardCharsets.ISO_8859_1));
+			assertThat(in.readLine(), is("250 OK"));
+			assertThat(in.readLine(), is("250 OK"));
+			long start = System.nanoTime();
+
+			stopping.stop();
+
+			assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), is(lessThan(1000L)));
+			assertThat(in.readLine(), is(nullValue()));
+		}
+	}
+
+	@Test
+	public void testAwaitEmails() throws Exception {
+		Thread sender = sendInBackground("Test 1", "Test 2");
+		List<SmtpMessage> emails = server.awaitEmails(2, 10, TimeUnit.SECONDS);
+		sender.join();
+
+		assertThat(emails, hasSize(2));
+		assertThat(server.awaitEmails(3, 10, TimeUnit.MILLISECONDS), hasSize(2));
+	}
+
+	@Test
+	public void testAwaitEmailMatching() throws Exception {
+		Thread sender = sendInBackground("Test 1", "Test 2", "Test 3");
+		SmtpMessage email = server.awaitEmail(new MessagePredicate() {
+			@Override
+			public boolean test(SmtpMessage msg) {
+				return "Test 2".equals(msg.getHeaderValue("Subject"));
+			}
+		}, 10, TimeUnit.SECONDS);
+		sender.join();
+
+		assertThat(email.getHeaderValue("Subject"), is("Test 2"));
+		assertThat(server.awaitEmail(new MessagePredicate() {
+			@Override
+			public boolean test(SmtpMessage msg) {
+				return "Test 4".equals(msg.getHeaderValue("Subject"));
+			}
+		}, 10, TimeUnit.MILLISECONDS), is(nullValue()));
+	}
+
+	@Test
+	public void testMessageListener() throws Exception {
+		final BlockingQueue<SmtpMessage> notified = new LinkedBlockingQueue<>();
+		server.addMessageListener(new MessageListener() {
+			@Override
+			public void messageReceived(SmtpMessage msg) {
+				notified.add(msg);
+			}
+		});
+		sendMessage(server.getPort(), "sender@here.com", "Test", "Test Body", "receiver@there.com");
+
+		SmtpMessage email = notified.poll(10, TimeUnit.SECONDS);
+		assertThat(email, is(sameInstance(server.getReceivedEmails().get(0))));
+	}
+
+	@Test
+	public void testSlowMessageListenerDoesNotBlockClients() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		try (SimpleSmtpServer small = SimpleSmtpServer.builder().listenerQueueCapacity(1).start()) {
+			small.addMessageListener(new MessageListener() {
+				@Override
+				public void messageReceived(SmtpMessage msg) {
+					try {
+						release.await();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			});
+			for (int i = 0; i < 4; i++) {
+				sendMessage(small.getPort(), "sender@here.com", "Test", "Test Body", "receiver@there.com");
+			}
+			assertThat(small.getReceivedEmails(), hasSize(4));
+			assertThat(small.getDroppedListenerNotifications(), is(greaterThan(0L)));
+			release.countDown();
+		}
+	}
+
+	@Test
+	public void testIdleClientDoesNotBlockOtherSessions() throws Exception {
+		try (SimpleSmtpServer pooled = SimpleSmtpServer.builder().workerThreads(2).start();
+		     Socket idle = new Socket("localhost", pooled.getPort())) {
+			BufferedReader greeting = new BufferedReader(new InputStreamReader(idle.getInputStream(), StandardCharsets.ISO_8859_1));
+			assertThat(greeting.readLine(), startsWith("220 "));
+
+			sendMessage(pooled.getPort(), "sender@here.com", "Test", "Test Body", "receiver@there.com");
+			assertThat(pooled.getReceivedEmails(), hasSize(1));
+		}
+	}
+
+	@Test
+	public void testSendFromManyThreads() throws Exception {
+		try (final SimpleSmtpServer pooled = SimpleSmtpServer.builder().workerThreads(4).start()) {
+			Thread[] senders = new Thread[8];
+			final List<Exception> failures = Collections.synchronizedList(new ArrayList<Exception>());
+			for (int i = 0; i < senders.length; i++) {
+				final int number = i;
+				senders[i] = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							sendMessage(pooled.getPort(), "sender@here.com", "Test " + number, "Test Body", "receiver@there.com");
+						} catch (Exception e) {
+							failures.add(e);
+						}
+					}
+				});
+				senders[i].start();
+			}
+			for (Thread sender : senders) {
+				sender.join();
+			}
+			assertThat(failures, is(empty()));
+			assertThat(pooled.getReceivedEmails(), hasSize(senders.length));
+		}
+	}
+
+	@Test
+	public void testThreadPerSessionModes() throws Exception {
+		for (ExecutionMode mode : ExecutionMode.values()) {
+			if (!mode.isSupported()) {
+				continue;
+			}
+			try (SimpleSmtpServer server = SimpleSmtpServer.builder().executionMode(mode).start();
+			     Socket idle = new Socket("localhost", server.getPort())) {
+				BufferedReader greeting = new BufferedReader(new InputStreamReader(idle.getInputStream(), StandardCharsets.ISO_8859_1));
+				assertThat(greeting.readLine(), startsWith("220 "));
+
+				if (mode != ExecutionMode.POOLED) {
+					// the idle client only blocks the single pooled worker
+					sendMessage(server.getPort(), "sender@here.com", "Test", "Test Body", "receiver@there.com");
+					assertThat(server.getReceivedEmails(), hasSize(1));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testNonBlockingServerKeepsManyIdleClients() throws Exception {
+		try (SimpleSmtpServer nio = SimpleSmtpServer.builder().nonBlocking(2).start()) {
+			List<Socket> idle = new ArrayList<>();
+			try {
+				for (int i = 0; i < 50; i++) {
+					Socket socket = new Socket("localhost", nio.getPort());
+					idle.add(socket);
+					BufferedReader greeting = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.ISO_8859_1));
+					assertThat(greeting.readLine(), startsWith("220 "));
+				}
+
+				sendMessage(nio.getPort(), "sender@here.com", "Test", "Test Body", "receiver@there.com");
+				sendMessage(nio.getPort(), "sender@here.com", "CRTest", "\n\nKeep these pesky carriage returns\n\n", "receiver@there.com");
+			} finally {
+				for (Socket socket : idle) {
+					socket.close();
+				}
+			}
+
+			List<SmtpMessage> emails = nio.getReceivedEmails();
+			assertThat(emails, hasSize(2));
+			assertThat(emails.get(0).getHeaderValue("Subject"), is("Test"));
+			assertThat(emails.get(0).getBody(), is("Test Body"));
+			assertThat(emails.get(1).getBody(), is("\n\nKeep these pesky carriage returns\n\n"));
+		}
+	}
+
+	private static void assertPipelining(SimpleSmtpServer server) throws Exception {
+		try (Socket socket = new Socket("localhost", server.getPort())) {
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.ISO_8859_1));
+			OutputStream out = socket.getOutputStream();
+			assertThat(in.readLine(), startsWith("220 "));
+
+			out.write("EHLO localhost\r\n".getBytes(StandardCharsets.ISO_8859_1));
+			assertThat(in.readLine(), is("250-OK"));
+			assertThat(in.readLine(), is("250-PIPELINING"));
+			assertThat(in.readLine(), is("250 CHUNKING"));
+
+			out.write(("MAIL FROM:<sender@here.com>\r\nRCPT TO:<one@there.com>\r\nRCPT TO:<two@there.com>\r\nDATA\r\n")
+					.getBytes(StandardCharsets.ISO_8859_1));
+			assertThat(in.readLine(), is("250 OK"));
+			assertThat(in.readLine(), is("250 OK"));
+			assertThat(in.readLine(), is("250 OK"));
+			assertThat(in.readLine(), startsWith("354 "));
+
+			out.write("Subject: Pipelined\r\n\r\nTest Body\r\n.\r\nQUIT\r\n".getBytes(StandardCharsets.ISO_8859_1));
+			assertThat(in.readLine(), is("250 OK"));
+			assertThat(in.readLine(), startsWith("221 "));
+		}
+		List<SmtpMessage> emails = server.getReceivedEmails();
+		assertThat(emails, hasSize(1));
+		assertThat(emails.get(0).getHeaderValue("Subject"), is("Pipelined"));
+		assertThat(emails.get(0).getBody(), is("Test Body"));
+	}
+
+	private static void assertMetrics(SimpleSmtpServer server) throws Exception {
+		assertPipelining(server);
+		try (Socket socket = new Socket("localhost", server.getPort())) {
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.ISO_8859_1));
+			assertThat(in.readLine(), startsWith("220 "));
+			socket.getOutputStream().write("RCPT TO:<one@there.com>\r\n".getBytes(StandardCharsets.ISO_8859_1));
+			assertThat(in.readLine(), startsWith("503 "));
+		}
+		long deadline = System.currentTimeMillis() + 5000;
+		while (server.getMetrics().getSessionsClosed() < 2 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+
+		SmtpMetrics metrics = server.getMetrics();
+		assertThat(metrics.getSessionsOpened(), is(2L));
+		assertThat(metrics.getSessionsClosed(), is(2L));
+		assertThat(metrics.getActiveSessions(), is(0L));
+		assertThat(metrics.getCommandCounts().get("CONNECT"), is(2L));
+		assertThat(metrics.getCommandCounts().get("RCPT"), is(3L));
+		assertThat(metrics.getCommandCounts().get("DATA_END"), is(1L));
+		assertThat(metrics.getErrorResponses(), is(1L));
+		assertThat(metrics.getMessagesReceived(), is(1L));
+		assertThat(metrics.getStoredMessages(), is(1));
+		// the whole conversation, as sent by the clients
+		assertThat(metrics.getBytesReceived(), is(168L));
+		assertThat(metrics.getSessionDurations().getCount(), is(2L));
+		assertThat(metrics.getDataDurations().getCount(), is(1L));
+		assertThat(metrics.getDataDurations().getMax(TimeUnit.NANOSECONDS), is(greaterThan(0L)));
+	}
+
+	private void assertMaxSessions(SimpleSmtpServer server) throws Exception {
+		try (Socket first = new Socket("localhost", server.getPort());
+		     Socket second = new Socket("localhost", server.getPort())) {
+			// the second session waits for the worker thread of the first one if there is only one
+			assertThat(new BufferedReader(new InputStreamReader(first.getInputStream(), StandardCharsets.ISO_8859_1))
+					.readLine(), startsWith("220 "));
+			try (Socket third = new Socket("localhost", server.getPort())) {
+				BufferedReader in = new BufferedReader(new InputStreamReader(third.getInputStream(), StandardCharsets.ISO_8859_1));
+				assertThat(in.readLine(), startsWith("421 "));
+				assertThat(in.readLine(), is(nullValue()));
+			}
+			first.getOutputStream().write("QUIT\r\n".getBytes(StandardCharsets.ISO_8859_1));
+			second.getOutputStream().write("QUIT\r\n".getBytes(StandardCharsets.ISO_8859_1));
+			assertThat(first.getInputStream().read(new byte[1024]), is(greaterThan(0)));
+		}
+		long deadline = System.currentTimeMillis() + 5000;
+		while (server.getMetrics().getSessionsClosed() < 2 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		// served again once sessions have finished
+		sendMessage(server.getPort(), "sender@here.com", "Test", "Test Body", "receiver@there.com");
+		assertThat(server.getReceivedEmails(), hasSize(1));
+		assertThat(server.getMetrics().getRejectedConnections(), is(1L));
+		assertThat(server.getMetrics().getSessionsOpened(), is(3L));
+	}
+
+	private static void assertChunking(SimpleSmtpServer server) throws Exception {
+		String first = "Subject: Chunked\r\nTo: receiver@there.com\r\n\r\nLine 1\r\nLi";
+		String last = "ne 2\r\n";
+		try (Socket socket = new Socket("localhost", server.getPort())) {
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.ISO_8859_1));
+			OutputStream out = socket.getOutputStream();
+			assertThat(in.readLine(), startsWith("220 "));
+
+			// data of a rejected BDAT is skipped as well
+			out.write("BDAT 5\r\nQUIT\n".getBytes(StandardCharsets.ISO_8859_1));
+			assertThat(in.readLine(), startsWith("503 "));
+
+			out.write(("EHLO localhost\r\nMAIL FROM:<sender@here.com>\r\nRCPT TO:<receiver@there.com>\r\n"
+					+ "BDAT " + first.length() + "\r\n" + first
+					+ "bdat " + last.length() + " last\r\n" + last
+					+ "QUIT\r\n").getBytes(StandardCharsets.ISO_8859_1));
+			assertThat(in.readLine(), is("250-OK"));
+			assertThat(in.readLine(), is("250-PIPELINING"));
+			assertThat(in.readLine(), is("250 CHUNKING"));
+			assertThat(in.readLine(), is("250 OK"));
+			assertThat(in.readLine(), is("250 OK"));
+			assertThat(in.readLine(), is("250 OK"));
+			assertThat(in.readLine(), is("250 OK"));
+			assertThat(in.readLine(), startsWith("221 "));
+		}
+		List<SmtpMessage> emails = server.getReceivedEmails();
+		assertThat(emails, hasSize(1));
+		assertThat(emails.get(0).getHeaderValue("Subject"), is("Chunked"));
+		assertThat(emails.get(0).getHeaderValue("To"), is("receiver@there.com"));
+		assertThat(emails.get(0).getBody(), is("Line 1Line 2"));
+	}
+
+	private Thread sendInBackground(final String... subjects) {
+		Thread sender = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					for (String subject : subjects) {
+						sendMessage(server.getPort(), "sender@here.com", subject, "Test Body", "receiver@there.com");
+					}
+				} catch (MessagingException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		});
+		sender.start();
+		return sender;
+	}
+
 	private Properties getMailProperties(int port) {
 		Properties mailProps = new Properties();
 		mailProps.setProperty("mail.smtp.host", "localhost");
 		mailProps.setProperty("mail.smtp.port", "" + port);
 		mailProps.setProperty("mail.smtp.sendpartial", "true");
+		// fail instead of hanging when the server stops answering
+		mailProps.setProperty("mail.smtp.timeout", "5000");
 		return mailProps;
 	}
 
@@ -0,0 +1,167 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2016 Joachim Nicolay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.Assert.assertThat;
+
+public class SmtpLoadGeneratorTest {
+
+	@Test
+	public void testSendsAllMessages() throws Exception {
+		try (SimpleSmtpServer server = SimpleSmtpServer.builder().nonBlocking(2).start()) {
+			SmtpLoadGenerator.Report report = SmtpLoadGenerator.builder()
+					.port(server.getPort())
+					.connections(4)
+					.messages(200)
+					.recipients(3)
+					.messageSize(2000)
+					.messagesPerConnection(30)
+					.pipelining(true)
+					.run();
+
+			assertThat(report.getMessages(), is(200L));
+			assertThat(report.getFailedMessages(), is(0L));
+			assertThat(report.getReconnects(), greaterThan(0L));
+			assertThat(report.getMessagesPerSecond(), greaterThan(0.0));
+			assertThat(report.getLatencyPercentile(50, TimeUnit.NANOSECONDS),
+					is(lessThanOrEqualTo(report.getLatencyPercentile(99, TimeUnit.NANOSECONDS))));
+			assertThat(server.getReceivedEmails(), hasSize(200));
+			SmtpMessage email = server.getReceivedEmails().get(0);
+			assertThat(email.getEnvelopeRecipients(), hasSize(3));
+			assertThat((double) email.size(), is(greaterThanOrEqualTo(1900.0)));
+		}
+	}
+
+	@Test
+	public void testSendsForDuration() throws Exception {
+		try (SimpleSmtpServer server = SimpleSmtpServer.start(SimpleSmtpServer.AUTO_SMTP_PORT)) {
+			SmtpLoadGenerator.Report report = SmtpLoadGenerator.builder()
+					.port(server.getPort())
+					.duration(200, TimeUnit.MILLISECONDS)
+					.run();
+
+			assertThat(report.getElapsed(TimeUnit.MILLISECONDS), is(greaterThanOrEqualTo(200L)));
+			assertThat((long) server.getReceivedEmailCount(), is(report.getMessages()));
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void testPipeliningWithRefusedRecipient() throws Exception {
+		try (final ServerSocket serverSocket = new ServerSocket(0)) {
+			Thread server = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try (Socket socket = serverSocket.accept()) {
+						refuseSecondRecipient(socket);
+					} catch (IOException e) {
+						// the test fails on the client side
+					}
+				}
+			});
+			server.start();
+			SmtpLoadGenerator.Report report = SmtpLoadGenerator.builder()
+					.port(serverSocket.getLocalPort())
+					.connections(1)
+					.messages(3)
+					.recipients(2)
+					.pipelining(true)
+					.run();
+			server.join();
+
+			assertThat(report.getFailedMessages(), is(3L));
+			assertThat(report.getReconnects(), is(0L));
+		}
+	}
+
+	/**
+	 * Plays a server that refuses the second recipient of each message, but still accepts the data.
+	 */
+	private static void refuseSecondRecipient(Socket socket) throws IOException {
+		BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+		Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.US_ASCII);
+		out.write("220 localhost\r\n");
+		out.flush();
+		int recipients = 0;
+		boolean data = false;
+		String line;
+		while ((line = in.readLine()) != null) {
+			String reply;
+			if (data) {
+				data = !line.equals(".");
+				reply = data ? null : "250 OK";
+			} else if (line.startsWith("RCPT")) {
+				reply = ++recipients == 2 ? "550 no such user" : "250 OK";
+			} else if (line.equals("DATA")) {
+				data = true;
+				reply = "354 go ahead";
+			} else if (line.equals("QUIT")) {
+				reply = "221 bye";
+			} else {
+				// EHLO, MAIL and RSET
+				recipients = 0;
+				reply = "250 OK";
+			}
+			if (reply != null) {
+				out.write(reply + "\r\n");
+				out.flush();
+			}
+		}
+	}
+
+	@Test
+	public void testHistogramPercentiles() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (int i = 1; i <= 10000; i++) {
+			histogram.record(i * 1000L);
+		}
+		assertThat(histogram.getCount(), is(10000L));
+		assertThat(histogram.getMin(), is(1000L));
+		assertThat(histogram.getMax(), is(10000000L));
+		assertPercentile(histogram, 50, 5000000);
+		assertPercentile(histogram, 99, 9900000);
+		assertThat(histogram.getPercentile(100), is(10000000L));
+
+		LatencyHistogram other = new LatencyHistogram();
+		other.record(20000000);
+		histogram.add(other);
+		assertThat(histogram.getMax(), is(20000000L));
+		assertThat(histogram.getCount(), is(10001L));
+	}
+
+	private static void assertPercentile(LatencyHistogram histogram, double percentile, long expected) {
+		long value = histogram.getPercentile(percentile);
+		assertThat((double) value, is(greaterThanOrEqualTo(expected * 0.97)));
+		assertThat((double) value, is(lessThanOrEqualTo(expected * 1.04)));
+	}
+}
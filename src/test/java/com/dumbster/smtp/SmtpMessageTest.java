@@ -0,0 +1,52 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2016 Joachim Nicolay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class SmtpMessageTest {
+
+	private static final SmtpResponse HEADER = new SmtpResponse(-1, "", SmtpState.DATA_HDR);
+
+	@Test
+	public void testHeadersAreParsedOnDemand() {
+		SmtpMessage msg = new SmtpMessage();
+		msg.store(HEADER, "Subject:  Lazy ");
+		msg.store(HEADER, "not a header");
+		msg.store(HEADER, "To: first@there.com");
+		msg.store(HEADER, "To: second@there.com");
+
+		assertThat(msg.getHeaderValue("Subject"), is("Lazy"));
+		assertThat(msg.getHeaderNames(), contains("Subject", "To"));
+		assertThat(msg.getHeaderValues("To"), contains("first@there.com", "second@there.com"));
+		assertThat(msg.getHeaderValue("From"), is(nullValue()));
+	}
+
+	@Test
+	public void testHeadersStoredAfterParsingAreSeen() {
+		SmtpMessage msg = new SmtpMessage();
+		msg.store(HEADER, "Subject: first");
+		assertThat(msg.getHeaderValue("From"), is(nullValue()));
+		msg.store(HEADER, "From: sender@here.com");
+		assertThat(msg.getHeaderValue("From"), is("sender@here.com"));
+	}
+}
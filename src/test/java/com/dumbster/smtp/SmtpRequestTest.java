@@ -20,7 +20,11 @@ package com.dumbster.smtp;
 
 import org.junit.Test;
 
+import java.nio.charset.StandardCharsets;
+
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
 import static org.junit.Assert.assertThat;
 
 public class SmtpRequestTest {
@@ -74,5 +78,53 @@ public class SmtpRequestTest {
 		assertThat(response.getCode(), is(-1));
 	}
 
+	@Test
+	public void testCommandsAreCaseInsensitive() {
+		SmtpRequest request = createRequest("xx mail From:<sender@here.com>", 3, SmtpState.MAIL);
+		assertThat(request.execute().getCode(), is(250));
+		assertThat(request.getParams(), is("<sender@here.com>"));
+	}
+
+	@Test
+	public void testCommandWithoutParams() {
+		SmtpRequest request = createRequest("quit", 0, SmtpState.QUIT);
+		assertThat(request.execute().getCode(), is(221));
+		assertThat(request.getParams(), is(nullValue()));
+	}
+
+	@Test
+	public void testHeloWithoutDomain() {
+		SmtpRequest request = createRequest("HELO", 0, SmtpState.GREET);
+		assertThat(request.execute().getCode(), is(250));
+		assertThat(request.getParams(), is(""));
+	}
 
+	@Test
+	public void testDataLinesAreKeptAsIs() {
+		SmtpRequest request = createRequest("MAIL FROM: looks like a command", 0, SmtpState.DATA_BODY);
+		assertThat(request.execute().getCode(), is(-1));
+		assertThat(request.getParams(), is("MAIL FROM: looks like a command"));
+	}
+
+	@Test
+	public void testResponsesAreShared() {
+		SmtpResponse first = createRequest("Some body text", 0, SmtpState.DATA_BODY).execute();
+		SmtpResponse second = createRequest("More body text", 0, SmtpState.DATA_BODY).execute();
+		assertThat(second, is(sameInstance(first)));
+		assertThat(second.getNextState(), is(SmtpState.DATA_BODY));
+	}
+
+	@Test
+	public void testBadSequence() {
+		SmtpResponse response = new SmtpRequest(SmtpActionType.DATA, null, SmtpState.MAIL).execute();
+		assertThat(response.getCode(), is(503));
+		assertThat(response.getMessage(), is("Bad sequence of commands: DATA"));
+		assertThat(response.getNextState(), is(SmtpState.MAIL));
+		assertThat(new String(response.toBytes(), StandardCharsets.ISO_8859_1), is("503 Bad sequence of commands: DATA\r\n"));
+	}
+
+	private static SmtpRequest createRequest(String buffer, int offset, SmtpState state) {
+		byte[] line = buffer.getBytes(StandardCharsets.ISO_8859_1);
+		return SmtpRequest.createRequest(line, offset, line.length - offset, state);
+	}
 }
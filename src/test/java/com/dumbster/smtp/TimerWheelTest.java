@@ -0,0 +1,55 @@
+/*
+ * Dumbster - a dummy SMTP server
+ * Copyright 2016 Joachim Nicolay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dumbster.smtp;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class TimerWheelTest {
+
+	@Test
+	public void testRunsTasksInOrderOfTheirDelays() throws Exception {
+		// with 1 ms ticks, a turn of the wheel takes 512 ms
+		try (TimerWheel wheel = new TimerWheel(1, TimeUnit.MILLISECONDS, "test-timer")) {
+			final List<Integer> order = new CopyOnWriteArrayList<>();
+			final CountDownLatch done = new CountDownLatch(4);
+			long start = System.nanoTime();
+			for (final int millis : new int[]{700, 50, 0, 300}) {
+				wheel.schedule(new Runnable() {
+					@Override
+					public void run() {
+						order.add(millis);
+						done.countDown();
+					}
+				}, TimeUnit.MILLISECONDS.toNanos(millis));
+			}
+
+			assertThat(done.await(5, TimeUnit.SECONDS), is(true));
+			assertThat(order, contains(0, 50, 300, 700));
+			assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), is(greaterThanOrEqualTo(700L)));
+		}
+	}
+}